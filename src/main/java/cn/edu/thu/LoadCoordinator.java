@@ -0,0 +1,212 @@
+package cn.edu.thu;
+
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.IndexedSchema;
+import cn.edu.thu.common.Schema;
+import cn.edu.thu.common.Statistics;
+import cn.edu.thu.database.DatabaseFactory;
+import cn.edu.thu.database.IDataBaseManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the data with WORKER_PROCESS_NUM worker JVMs on this host, so that the client load is not
+ * limited by one JVM and its GC. The coordinator creates the schemas, collects the overall csv
+ * schema once, splits the files, or the synthetic devices, between the workers, starts them
+ * together once they all opened their clients, and merges their statistics into one report.
+ * Workers connect to it over a localhost socket, see LoadWorker for the protocol.
+ */
+public class LoadCoordinator {
+
+  private static Logger logger = LoggerFactory.getLogger(LoadCoordinator.class);
+
+  // the time the workers may take to start and connect
+  private static final int CONNECT_TIMEOUT = 60_000; // unit: ms
+
+  private LoadCoordinator() {
+  }
+
+  /**
+   * @param configPath the config file the workers load, they get their part of the data from the
+   * coordinator
+   */
+  static void load(Config config, String configPath, double stdDev, Statistics statistics)
+      throws Exception {
+    IDataBaseManager database = DatabaseFactory.getDbManager(config);
+    database.initServer();
+
+    int workerNum = config.WORKER_PROCESS_NUM;
+    logger.info("worker process num : {}, thread num of each : {}", workerNum,
+        config.THREAD_NUM);
+    logger.info("using database: {}", config.DATABASE);
+
+    List<String> loadedFiles = MainLoad.listFiles(config, statistics);
+    if (loadedFiles == null) {
+      return;
+    }
+    List<List<String>> partitions = partition(loadedFiles, workerNum);
+    // the workers get the schema instead of scanning all files each
+    IndexedSchema overallSchema = MainLoad.collectOverallSchema(config, loadedFiles);
+
+    List<Process> workers = new ArrayList<>(workerNum);
+    Socket[] sockets = new Socket[workerNum];
+    boolean succeeded = false;
+    try (ServerSocket server = new ServerSocket(0, workerNum, InetAddress.getLoopbackAddress())) {
+      server.setSoTimeout(CONNECT_TIMEOUT);
+      for (int i = 0; i < workerNum; i++) {
+        workers.add(startWorker(config, server.getLocalPort(), i, configPath, stdDev));
+      }
+
+      DataInputStream[] inputs = new DataInputStream[workerNum];
+      DataOutputStream[] outputs = new DataOutputStream[workerNum];
+      for (int i = 0; i < workerNum; i++) {
+        Socket socket = server.accept();
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream()));
+        int index = in.readInt();
+        sockets[index] = socket;
+        inputs[index] = in;
+        outputs[index] = out;
+        sendPart(config, out, index, partitions.get(index), overallSchema);
+      }
+
+      // no worker writes before all of them opened their clients
+      for (int i = 0; i < workerNum; i++) {
+        if (inputs[i].readByte() != LoadWorker.READY) {
+          throw new IOException("worker " + i + " is not ready");
+        }
+      }
+      long origin = System.nanoTime();
+      for (DataOutputStream out : outputs) {
+        out.writeByte(LoadWorker.START);
+        out.flush();
+      }
+      logger.info("started {} workers", workerNum);
+
+      for (int i = 0; i < workerNum; i++) {
+        try {
+          statistics.mergeFrom(inputs[i], origin, "worker-" + i);
+        } catch (IOException e) {
+          logger.error("worker {} failed, its statistics are missing", i, e);
+        }
+      }
+      succeeded = true;
+    } finally {
+      for (Socket socket : sockets) {
+        if (socket != null) {
+          socket.close();
+        }
+      }
+      for (Process worker : workers) {
+        if (!succeeded) {
+          worker.destroy();
+        }
+        worker.waitFor();
+      }
+    }
+
+    MainLoad.logStatistics(config, statistics);
+  }
+
+  /**
+   * split the files so that the workers load about the same number of bytes, largest first
+   */
+  private static List<List<String>> partition(List<String> files, int workerNum) {
+    List<List<String>> partitions = new ArrayList<>(workerNum);
+    long[] partitionBytes = new long[workerNum];
+    for (int i = 0; i < workerNum; i++) {
+      partitions.add(new ArrayList<>());
+    }
+    List<String> sortedFiles = new ArrayList<>(files);
+    sortedFiles.sort(Comparator.comparingLong((String file) -> new File(file).length())
+        .reversed());
+    for (String file : sortedFiles) {
+      int smallest = 0;
+      for (int i = 1; i < workerNum; i++) {
+        if (partitionBytes[i] < partitionBytes[smallest]) {
+          smallest = i;
+        }
+      }
+      partitions.get(smallest).add(file);
+      partitionBytes[smallest] += new File(file).length();
+    }
+    return partitions;
+  }
+
+  private static Process startWorker(Config config, int port, int index, String configPath,
+      double stdDev) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    // the same heap and GC options as the coordinator
+    command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(Main.class.getName());
+    command.add(LoadWorker.MODE);
+    command.add(String.valueOf(port));
+    command.add(String.valueOf(index));
+    command.add(configPath);
+    command.add(String.valueOf(stdDev));
+    if (config.resume) {
+      command.add(MainLoad.RESUME_OPTION);
+    }
+    return new ProcessBuilder(command).inheritIO().start();
+  }
+
+  /**
+   * send a worker its files, its range of synthetic devices and the overall csv schema
+   *
+   * @param overallSchema the schema of the files of all workers, null if each file has its own
+   */
+  private static void sendPart(Config config, DataOutputStream out, int index, List<String> files,
+      IndexedSchema overallSchema) throws IOException {
+    int workerNum = config.WORKER_PROCESS_NUM;
+    int firstDevice = (int) ((long) config.syntheticDeviceNum * index / workerNum);
+    int lastDevice = (int) ((long) config.syntheticDeviceNum * (index + 1) / workerNum);
+    out.writeInt(workerNum);
+    out.writeInt(config.syntheticDeviceOffset + firstDevice);
+    out.writeInt(lastDevice - firstDevice);
+    writeFiles(out, files);
+    writeSchema(out, overallSchema);
+    out.flush();
+  }
+
+  private static void writeFiles(DataOutputStream out, List<String> files) throws IOException {
+    out.writeInt(files.size());
+    for (String file : files) {
+      out.writeUTF(file);
+    }
+  }
+
+  private static void writeSchema(DataOutputStream out, Schema schema) throws IOException {
+    out.writeBoolean(schema != null);
+    if (schema == null) {
+      return;
+    }
+    out.writeUTF(schema.getTag());
+    out.writeInt(schema.getFields().length);
+    for (int i = 0; i < schema.getFields().length; i++) {
+      out.writeUTF(schema.getFields()[i]);
+      out.writeInt(schema.getPrecision()[i]);
+      // fields without a declared type stay untyped
+      Class<?> type = schema.getTypes()[i];
+      out.writeUTF(type == null ? "" : type.getName());
+    }
+  }
+}
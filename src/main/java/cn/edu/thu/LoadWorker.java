@@ -0,0 +1,141 @@
+package cn.edu.thu;
+
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.IndexedSchema;
+import cn.edu.thu.common.IndexedSchema.MapIndexedSchema;
+import cn.edu.thu.common.Statistics;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A worker process started by LoadCoordinator, with THREAD_NUM writers. It connects to the
+ * coordinator and sends its index, receives its files, its synthetic devices and the overall csv
+ * schema, opens the clients of its writers, sends READY, waits for START, loads its part of the
+ * data and sends its statistics. The schemas are created by the coordinator.
+ */
+public class LoadWorker {
+
+  private static Logger logger = LoggerFactory.getLogger(LoadWorker.class);
+
+  static final String MODE = "-worker";
+  static final byte READY = 1;
+  static final byte START = 2;
+
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  // the time START arrived, the times of the writers are sent relative to it
+  private long origin;
+
+  private LoadWorker(Socket socket) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+  }
+
+  /**
+   * @param args the port of the coordinator, the index of the worker, the config file, the
+   * stdDev of the disorder and "--resume" if the load of a previous run is continued
+   */
+  public static void main(String[] args) throws Exception {
+    int port = Integer.parseInt(args[0]);
+    int index = Integer.parseInt(args[1]);
+    double stdDev = Double.parseDouble(args[3]);
+
+    Config config;
+    try {
+      FileInputStream fileInputStream = new FileInputStream(args[2]);
+      config = new Config(fileInputStream);
+    } catch (Exception e) {
+      e.printStackTrace();
+      logger.error("Load config from {} failed, using default config", args[2]);
+      config = new Config();
+    }
+    config.resume = args.length > 4 && MainLoad.RESUME_OPTION.equals(args[4]);
+    // each worker keeps the progress of its own files, the same ones on resume
+    if (!config.PROGRESS_FILE.isEmpty()) {
+      config.PROGRESS_FILE += ".worker-" + index;
+    }
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      new LoadWorker(socket).load(config, index, stdDev);
+    }
+  }
+
+  private void load(Config config, int index, double stdDev) throws Exception {
+    out.writeInt(index);
+    out.flush();
+
+    int workerNum = in.readInt();
+    config.syntheticDeviceOffset = in.readInt();
+    config.syntheticDeviceNum = in.readInt();
+    List<String> files = readFiles();
+    IndexedSchema overallSchema = readSchema();
+    // the target rate is that of all workers
+    config.TARGET_RATE /= workerNum;
+    config.RATE_STEP /= workerNum;
+    logger.info("worker {} of {}: {} files, {} synthetic devices", index, workerNum,
+        files.size(), config.syntheticDeviceNum);
+
+    Statistics statistics = new Statistics();
+    MainLoad.runWriters(config, stdDev, statistics, files, overallSchema, this::awaitStart);
+    statistics.writeTo(out, origin);
+  }
+
+  private void awaitStart() {
+    try {
+      out.writeByte(READY);
+      out.flush();
+      if (in.readByte() != START) {
+        throw new IOException("unexpected message from the coordinator");
+      }
+      origin = System.nanoTime();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private List<String> readFiles() throws IOException {
+    int fileNum = in.readInt();
+    List<String> files = new ArrayList<>(fileNum);
+    for (int i = 0; i < fileNum; i++) {
+      files.add(in.readUTF());
+    }
+    return files;
+  }
+
+  /**
+   * @return the overall schema collected by the coordinator, or null if there is none
+   */
+  private IndexedSchema readSchema() throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    IndexedSchema schema = new MapIndexedSchema();
+    schema.setTag(in.readUTF());
+    int fieldNum = in.readInt();
+    schema.setFields(new String[fieldNum]);
+    schema.setPrecision(new int[fieldNum]);
+    for (int i = 0; i < fieldNum; i++) {
+      schema.getFields()[i] = in.readUTF();
+      schema.getPrecision()[i] = in.readInt();
+      String type = in.readUTF();
+      try {
+        schema.getTypes()[i] = type.isEmpty() ? null : Class.forName(type);
+      } catch (ClassNotFoundException e) {
+        throw new IOException("unknown type " + type + " of field " + schema.getFields()[i], e);
+      }
+    }
+    schema.rebuildIndex();
+    return schema;
+  }
+}
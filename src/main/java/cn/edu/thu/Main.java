@@ -31,6 +31,15 @@ public class Main {
       case "-r":
         MainQuery.main(remainingArgs);
         break;
+      case "-c":
+        MainConvert.main(remainingArgs);
+        break;
+      case "-m":
+        MainMixed.main(remainingArgs);
+        break;
+      case LoadWorker.MODE:
+        LoadWorker.main(remainingArgs);
+        break;
       default:
         System.out.println("Do not support mode: " + mode);
     }
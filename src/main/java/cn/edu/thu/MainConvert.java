@@ -0,0 +1,79 @@
+package cn.edu.thu;
+
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.IndexedSchema;
+import cn.edu.thu.common.Statistics;
+import cn.edu.thu.reader.BasicReader;
+import cn.edu.thu.reader.CSVReader;
+import cn.edu.thu.reader.ReaderFactory;
+import cn.edu.thu.writer.BinaryDatasetConverter;
+import java.io.FileInputStream;
+import java.util.Collections;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts the dataset configured by DATA_SET and DATA_DIR into binary replay files under
+ * BINARY_OUTPUT_DIR once, so that later runs with DATA_SET=BINARY measure the ingest without
+ * parsing the text files again.
+ */
+public class MainConvert {
+
+  private static Logger logger = LoggerFactory.getLogger(MainConvert.class);
+
+  public static void main(String[] args) throws Exception {
+    long start = System.nanoTime();
+    if (args == null || args.length == 0) {
+      args = new String[]{"conf/config.properties"};
+    }
+
+    Config config;
+    try {
+      FileInputStream fileInputStream = new FileInputStream(args[0]);
+      config = new Config(fileInputStream);
+    } catch (Exception e) {
+      e.printStackTrace();
+      logger.error("Load config from {} failed, using default config", args[0]);
+      config = new Config();
+    }
+
+    if ("BINARY".equals(config.DATA_SET)) {
+      logger.error("{} is already a binary replay dataset", config.DATA_DIR);
+      return;
+    }
+
+    List<String> files = Collections.emptyList();
+    if (!config.useSynthetic) {
+      // the same files as a load of the configuration
+      files = MainLoad.listFiles(config, new Statistics());
+      if (files == null) {
+        return;
+      }
+      if (files.isEmpty()) {
+        logger.error("no file to convert in {}", config.DATA_DIR);
+        return;
+      }
+    }
+    logger.info("converting {} files of {} into {}", files.size(), config.DATA_SET,
+        config.BINARY_OUTPUT_DIR);
+
+    IndexedSchema overallSchema = null;
+    if ("CSV".equals(config.DATA_SET) && !config.TYPE_INFO_EXIST && !config.splitFileByDevice) {
+      overallSchema = CSVReader.collectOverallSchema(config, files);
+    }
+
+    // no disorder is injected into the converted data, it is added when the data is replayed
+    BasicReader reader = ReaderFactory.getReader(config, files, 0, overallSchema);
+    reader.setDisorderGenerator(null);
+    try (BinaryDatasetConverter converter = new BinaryDatasetConverter(config.BINARY_OUTPUT_DIR,
+        config.BATCH_SIZE, config.BINARY_BUFFERED_BLOCKS)) {
+      while (reader.hasNext()) {
+        converter.append(reader.next(), reader.getCurrentSchema());
+      }
+    }
+
+    logger.info("total program running time: {} ms", (System.nanoTime() - start) / 1000_000F);
+  }
+
+}
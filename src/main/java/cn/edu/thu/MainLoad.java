@@ -2,17 +2,31 @@ package cn.edu.thu;
 
 import cn.edu.thu.common.BenchmarkExceptionHandler;
 import cn.edu.thu.common.Config;
+import cn.edu.thu.common.FileQueue;
+import cn.edu.thu.common.IndexedSchema;
+import cn.edu.thu.common.LatencyHistogram;
 import cn.edu.thu.common.Statistics;
+import cn.edu.thu.common.Statistics.RateStep;
+import cn.edu.thu.common.Statistics.WriterTime;
+import cn.edu.thu.common.VirtualThreads;
 import cn.edu.thu.database.DatabaseFactory;
 import cn.edu.thu.database.IDataBaseManager;
+import cn.edu.thu.reader.CSVReader;
+import cn.edu.thu.writer.DeviceRouter;
+import cn.edu.thu.writer.LoadProgress;
+import cn.edu.thu.writer.MeasurementWindow;
 import cn.edu.thu.writer.RealDatasetWriter;
+import cn.edu.thu.writer.RealDatasetWriter.Shared;
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,9 +35,21 @@ public class MainLoad {
 
   private static Logger logger = LoggerFactory.getLogger(MainLoad.class);
 
+  // continues the load of a previous run from PROGRESS_FILE
+  static final String RESUME_OPTION = "--resume";
+
+  /**
+   * @param args the config file, the stdDev of the disorder and "--resume", which may come anywhere
+   */
   public static void main(String[] args) throws Exception {
     double stdDev = 1;
     long start = System.nanoTime();
+    boolean resume = false;
+    if (args != null) {
+      List<String> argList = new ArrayList<>(Arrays.asList(args));
+      resume = argList.remove(RESUME_OPTION);
+      args = argList.toArray(new String[0]);
+    }
     if (args == null || args.length == 0) {
       args = new String[]{"conf/config.properties"};
     }
@@ -47,18 +73,52 @@ public class MainLoad {
     if (args.length > 1) {
       stdDev = Double.parseDouble(args[1]);
     }
+    config.resume = resume;
+
+    if (config.WORKER_PROCESS_NUM > 0) {
+      LoadCoordinator.load(config, args[0], stdDev, statistics);
+    } else {
+      load(config, stdDev, statistics, null);
+    }
 
+    logger.info("total program running time: {} ms", (System.nanoTime() - start) / 1000_000F);
+  }
+
+  /**
+   * load the data with THREAD_NUM writers and log the statistics
+   *
+   * @param onServerReady runs once the schemas are created and before the writers start, or null
+   */
+  static void load(Config config, double stdDev, Statistics statistics, Runnable onServerReady)
+      throws Exception {
     // init database
     IDataBaseManager database = DatabaseFactory.getDbManager(config);
     database.initServer();
+    if (onServerReady != null) {
+      onServerReady.run();
+    }
 
     logger.info("thread num : {}", config.THREAD_NUM);
     logger.info("using database: {}", config.DATABASE);
 
+    List<String> loadedFiles = listFiles(config, statistics);
+    if (loadedFiles == null) {
+      return;
+    }
+    runWriters(config, stdDev, statistics, loadedFiles, collectOverallSchema(config, loadedFiles),
+        null);
+    logStatistics(config, statistics);
+  }
+
+  /**
+   * @return the files numbered in [BEGIN_FILE, END_FILE] under DATA_DIR, none for synthetic
+   * data, or null if DATA_DIR does not exist
+   */
+  static List<String> listFiles(Config config, Statistics statistics) {
     File dirFile = new File(config.DATA_DIR);
     if (!dirFile.exists()) {
       logger.error(config.DATA_DIR + " do not exit");
-      return;
+      return null;
     }
 
     List<String> files = new ArrayList<>();
@@ -68,11 +128,7 @@ public class MainLoad {
 
     Collections.sort(files);
 
-    List<List<String>> thread_files = new ArrayList<>();
-    for (int i = 0; i < config.THREAD_NUM; i++) {
-      thread_files.add(new ArrayList<>());
-    }
-
+    List<String> loadedFiles = new ArrayList<>();
     for (int i = 0; i < files.size(); i++) {
       if (config.useSynthetic) {
         break;
@@ -86,31 +142,164 @@ public class MainLoad {
       if (filePath.contains(".DS_Store")) {
         continue;
       }
-      int thread = i % config.THREAD_NUM;
-      thread_files.get(thread).add(filePath);
+      loadedFiles.add(filePath);
     }
+    return loadedFiles;
+  }
 
-    Thread.UncaughtExceptionHandler handler = new BenchmarkExceptionHandler();
-    ExecutorService executorService = Executors.newFixedThreadPool(config.THREAD_NUM);
+  /**
+   * @param allFiles the files of all processes
+   * @return the overall schema shared by all csv readers, null if each file has its own
+   */
+  static IndexedSchema collectOverallSchema(Config config, List<String> allFiles) {
+    if ("CSV".equals(config.DATA_SET) && !config.TYPE_INFO_EXIST && !config.splitFileByDevice) {
+      return CSVReader.collectOverallSchema(config, allFiles);
+    }
+    return null;
+  }
+
+  /**
+   * run THREAD_NUM writers on the files until they are all loaded
+   *
+   * @param overallSchema see collectOverallSchema(), collected once for all processes
+   * @param beforeStart runs once the writers opened their clients and before they start, or null
+   */
+  static void runWriters(Config config, double stdDev, Statistics statistics,
+      List<String> loadedFiles, IndexedSchema overallSchema, Runnable beforeStart)
+      throws Exception {
+    LoadProgress progress = openProgress(config, statistics);
+    if (progress != null) {
+      // the files a previous run loaded completely are not read again
+      List<String> remainingFiles = new ArrayList<>();
+      for (String file : loadedFiles) {
+        if (!progress.isDone(file)) {
+          remainingFiles.add(file);
+        }
+      }
+      if (remainingFiles.size() < loadedFiles.size()) {
+        logger.info("skip {} files loaded before", loadedFiles.size() - remainingFiles.size());
+      }
+      loadedFiles = remainingFiles;
+    }
+    // idle writers take the next file, largest first
+    FileQueue fileQueue = FileQueue.largestFirst(loadedFiles);
+
+    if (config.VIRTUAL_THREADS && !VirtualThreads.isSupported()) {
+      logger.warn("VIRTUAL_THREADS requires JDK 21+, running {} on {}, using platform threads",
+          config.THREAD_NUM, System.getProperty("java.version"));
+      config.VIRTUAL_THREADS = false;
+    }
+    Semaphore connections = config.SINK_CONNECTION_LIMIT > 0
+        ? new Semaphore(config.SINK_CONNECTION_LIMIT, true) : null;
+    if (connections != null && config.SINK_CONNECTION_LIMIT < config.THREAD_NUM) {
+      logger.warn("SINK_CONNECTION_LIMIT={}: only {} of the {} writers run at once, each until "
+              + "it is done, set CONNECTION_POOL_SIZE instead for all writers to share fewer "
+              + "connections", config.SINK_CONNECTION_LIMIT, config.SINK_CONNECTION_LIMIT,
+          config.THREAD_NUM);
+    }
+
+    Shared shared = new Shared(fileQueue);
+    shared.setOverallSchema(overallSchema);
+    shared.setConnections(connections);
+    shared.setProgress(progress);
+    shared.setRouter(openRouter(config));
+
+    List<RealDatasetWriter> writers = new ArrayList<>(config.THREAD_NUM);
     for (int threadId = 0; threadId < config.THREAD_NUM; threadId++) {
-      Thread thread = new Thread(
-          new RealDatasetWriter(config, thread_files.get(threadId), statistics, stdDev));
-      thread.setUncaughtExceptionHandler(handler);
-      executorService.submit(thread);
+      writers.add(new RealDatasetWriter(config, statistics, stdDev, shared));
+    }
+    if (beforeStart != null) {
+      beforeStart.run();
+    }
+    if (progress != null) {
+      progress.start();
     }
 
-    executorService.shutdown();
-    logger.info("@+++<<<: shutdown thread pool");
+    Thread.UncaughtExceptionHandler handler = new BenchmarkExceptionHandler();
+    if (config.VIRTUAL_THREADS) {
+      // one virtual thread per writer, like one client per device
+      List<Thread> threads = new ArrayList<>(config.THREAD_NUM);
+      for (int threadId = 0; threadId < config.THREAD_NUM; threadId++) {
+        Thread thread = VirtualThreads.newThread(true, "writer-" + threadId,
+            writers.get(threadId));
+        // set before the start, a writer may fail at once
+        thread.setUncaughtExceptionHandler(handler);
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } else {
+      ExecutorService executorService = Executors.newFixedThreadPool(config.THREAD_NUM);
+      for (RealDatasetWriter writer : writers) {
+        Thread thread = new Thread(writer);
+        thread.setUncaughtExceptionHandler(handler);
+        executorService.submit(thread);
+      }
+
+      executorService.shutdown();
+      logger.info("@+++<<<: shutdown thread pool");
 
-    // wait for all threads done
-    boolean allDown = false;
-    while (!allDown) {
-      if (executorService.isTerminated()) {
-        allDown = true;
+      // wait for all threads done
+      boolean allDown = false;
+      while (!allDown) {
+        if (executorService.isTerminated()) {
+          allDown = true;
+        }
+        Thread.sleep(1000);
       }
-      Thread.sleep(1000);
     }
+    if (progress != null) {
+      progress.stop();
+    }
+  }
 
+  /**
+   * @return the router of the records to the writers owning their devices, or null if
+   * DEVICE_AFFINITY is false
+   */
+  private static DeviceRouter openRouter(Config config) {
+    if (!config.DEVICE_AFFINITY) {
+      return null;
+    }
+    if (config.SINK_CONNECTION_LIMIT > 0 && config.SINK_CONNECTION_LIMIT < config.THREAD_NUM) {
+      // a writer waiting for a connection would never take the records of its devices
+      logger.warn("DEVICE_AFFINITY requires all {} writers to run at once, "
+          + "SINK_CONNECTION_LIMIT={} allows fewer, writing the records read", config.THREAD_NUM,
+          config.SINK_CONNECTION_LIMIT);
+      return null;
+    }
+    if (config.PIPELINE_QUEUE_DEPTH > 0) {
+      logger.warn("DEVICE_AFFINITY replaces PIPELINE_QUEUE_DEPTH={}, the queues between writers "
+          + "overlap parsing and inserts", config.PIPELINE_QUEUE_DEPTH);
+    }
+    if (config.COLUMNAR_BATCH) {
+      logger.warn("DEVICE_AFFINITY routes records, batches are not passed by column");
+    }
+    return new DeviceRouter(config, config.THREAD_NUM);
+  }
+
+  /**
+   * @return the progress of the load, resumed from PROGRESS_FILE with "--resume", or null if
+   * PROGRESS_FILE is not set
+   */
+  private static LoadProgress openProgress(Config config, Statistics statistics)
+      throws Exception {
+    if (config.PROGRESS_FILE.isEmpty()) {
+      if (config.resume) {
+        logger.warn("{} requires PROGRESS_FILE, loading all the data", RESUME_OPTION);
+      }
+      return null;
+    }
+    LoadProgress progress = new LoadProgress(config, statistics);
+    if (config.resume && !progress.resume()) {
+      logger.warn("{} does not exist, loading all the data", config.PROGRESS_FILE);
+    }
+    return progress;
+  }
+
+  static void logStatistics(Config config, Statistics statistics) {
     logger.info("Exp:{} All done! Total records:{}, points:{}, time:{} ms, speed:{} pts/s, "
             + "average latency using all:{} ms, "
             + "average latency circular:{} ms, "
@@ -120,11 +309,119 @@ public class MainLoad {
         statistics.pointNum, (float) statistics.timeCost.get() / 1000_000F, statistics.speed(),
         statistics.getAverageAllLatencyInMillisecond(),
         statistics.getAverageCircularLatencyInMillisecond(),
-        statistics.writeLatency.size(),
-        statistics.writeLatency
+        statistics.getLatencySampleNum(),
+        statistics.getLatencySamples()
     );
+    LatencyHistogram latencies = statistics.writeLatencies;
+    logger.info("Exp:{} write latency p50:{} ms, p90:{} ms, p99:{} ms, p99.9:{} ms, max:{} ms",
+        config.EXP_NAME, latencies.getPercentileInMillisecond(0.5),
+        latencies.getPercentileInMillisecond(0.9), latencies.getPercentileInMillisecond(0.99),
+        latencies.getPercentileInMillisecond(0.999), latencies.getMax() / 1000_000F);
 
-    logger.info("total program running time: {} ms", (System.nanoTime() - start) / 1000_000F);
+    if (config.PIPELINE_QUEUE_DEPTH > 0) {
+      logger.info("Exp:{} pipeline stall time (summed over threads): reader:{} ms, writer:{} ms",
+          config.EXP_NAME,
+          (float) statistics.readerStallTime.get() / 1000_000F,
+          (float) statistics.writerStallTime.get() / 1000_000F);
+    }
+
+    logWriterTimes(config, statistics);
+    if (MeasurementWindow.hasWarmUp(config)) {
+      logPhases(config, statistics);
+    }
+    if (config.TARGET_RATE > 0) {
+      logRateSteps(config, statistics);
+    }
+  }
+
+  /**
+   * busy is the time a writer spent on its files, idle is the rest of the time between the start
+   * of the first writer and the end of the last one
+   */
+  private static void logWriterTimes(Config config, Statistics statistics) {
+    if (statistics.writerTimes.isEmpty()) {
+      return;
+    }
+    long firstStart = Long.MAX_VALUE;
+    long lastEnd = Long.MIN_VALUE;
+    for (WriterTime writerTime : statistics.writerTimes) {
+      firstStart = Math.min(firstStart, writerTime.startTime);
+      lastEnd = Math.max(lastEnd, writerTime.endTime);
+    }
+    long minBusy = Long.MAX_VALUE;
+    long maxBusy = 0;
+    for (WriterTime writerTime : statistics.writerTimes) {
+      long busy = writerTime.endTime - writerTime.startTime;
+      minBusy = Math.min(minBusy, busy);
+      maxBusy = Math.max(maxBusy, busy);
+      logger.info("Exp:{} writer {}: files:{}, records:{}, busy:{} ms, idle:{} ms",
+          config.EXP_NAME, writerTime.name, writerTime.fileNum, writerTime.recordNum,
+          busy / 1000_000F, (lastEnd - firstStart - busy) / 1000_000F);
+    }
+    logger.info("Exp:{} writer busy time: min:{} ms, max:{} ms", config.EXP_NAME,
+        minBusy / 1000_000F, maxBusy / 1000_000F);
+    // unlike speed(), which divides by the summed insert latencies, this counts overlapping
+    // inserts, e.g., of ASYNC_INSERT_WINDOW, once; the points of a resumed run exclude the ones
+    // loaded before
+    long pointNum = statistics.pointNum.get() + statistics.warmUpPointNum.get()
+        - statistics.resumedPointNum.get();
+    logger.info("Exp:{} wall-clock speed: {} pts/s", config.EXP_NAME,
+        pointNum * 1000_000_000.0 / Math.max(lastEnd - firstStart, 1));
+  }
+
+  /**
+   * the warm-ups of the writers overlap, so the warm-up lasts from the start of the first writer
+   * to the end of the last warm-up and the steady state from the end of the first warm-up to the
+   * end of the last writer
+   */
+  private static void logPhases(Config config, Statistics statistics) {
+    if (statistics.writerTimes.isEmpty()) {
+      return;
+    }
+    long firstStart = Long.MAX_VALUE;
+    long firstSteadyStart = Long.MAX_VALUE;
+    long lastSteadyStart = Long.MIN_VALUE;
+    long lastEnd = Long.MIN_VALUE;
+    for (WriterTime writerTime : statistics.writerTimes) {
+      firstStart = Math.min(firstStart, writerTime.startTime);
+      firstSteadyStart = Math.min(firstSteadyStart, writerTime.steadyStartTime);
+      lastSteadyStart = Math.max(lastSteadyStart, writerTime.steadyStartTime);
+      lastEnd = Math.max(lastEnd, writerTime.endTime);
+    }
+    logger.info("Exp:{} warm-up: batches:{}, records:{}, points:{}, time:{} ms, speed:{} pts/s, "
+            + "wall-clock speed:{} pts/s", config.EXP_NAME, statistics.warmUpBatchNum,
+        statistics.warmUpRecordNum, statistics.warmUpPointNum,
+        (float) statistics.warmUpTimeCost.get() / 1000_000F,
+        statistics.warmUpPointNum.get() * 1000_000_000.0 / statistics.warmUpTimeCost.get(),
+        statistics.warmUpPointNum.get() * 1000_000_000.0
+            / Math.max(lastSteadyStart - firstStart, 1));
+    logger.info("Exp:{} steady state: batches:{}, records:{}, points:{}, time:{} ms, speed:{} "
+            + "pts/s, wall-clock:{} ms, wall-clock speed:{} pts/s", config.EXP_NAME,
+        statistics.batchInsertNum, statistics.recordNum, statistics.pointNum,
+        (float) statistics.timeCost.get() / 1000_000F, statistics.speed(),
+        (lastEnd - firstSteadyStart) / 1000_000F,
+        statistics.pointNum.get() * 1000_000_000.0 / Math.max(lastEnd - firstSteadyStart, 1));
+  }
+
+  /**
+   * the achieved rate counts the batches completed in a step, the latencies are those of the
+   * batches due in it, from their due time; the last step is usually cut short by the end of the
+   * data
+   */
+  private static void logRateSteps(Config config, Statistics statistics) {
+    for (Map.Entry<Integer, RateStep> entry : statistics.rateSteps.entrySet()) {
+      RateStep step = entry.getValue();
+      LatencyHistogram latencies = step.latencies;
+      // the last step, or the only one of the CONSTANT profile, is not RATE_STEP_SECONDS long
+      double length = Math.max(step.length.get(), 1) / 1000_000_000.0;
+      logger.info("Exp:{} rate step {}: target:{} pts/s, achieved:{} pts/s, batches due:{}, "
+              + "latency p50:{} ms, p90:{} ms, p99:{} ms, p99.9:{} ms, max:{} ms",
+          config.EXP_NAME, entry.getKey(), step.targetRate,
+          step.completedPointNum.get() / length, latencies.getCount(),
+          latencies.getPercentileInMillisecond(0.5), latencies.getPercentileInMillisecond(0.9),
+          latencies.getPercentileInMillisecond(0.99),
+          latencies.getPercentileInMillisecond(0.999), latencies.getMax() / 1000_000F);
+    }
   }
 
   private static void getAllFiles(String strPath, List<String> files) {
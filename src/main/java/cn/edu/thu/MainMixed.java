@@ -0,0 +1,183 @@
+package cn.edu.thu;
+
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.LatencyHistogram;
+import cn.edu.thu.common.Statistics;
+import cn.edu.thu.common.VirtualThreads;
+import cn.edu.thu.database.DatabaseFactory;
+import cn.edu.thu.database.IDataBaseManager;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the data like MainLoad while QUERY_THREAD_NUM threads run the query of MainQuery, each
+ * with its own client, so the ingest throughput is measured under query load and the query
+ * latencies under write load. Queries run at QUERY_RATE queries/s on a fixed schedule, with
+ * latencies from their due time, or QUERY_RATIO queries per inserted batch, or back to back.
+ */
+public class MainMixed {
+
+  private static Logger logger = LoggerFactory.getLogger(MainMixed.class);
+  // the wait after a failed query, doubled while the queries keep failing
+  private static final long MIN_FAILURE_BACKOFF = 10_000_000L; // unit: ns
+  private static final long MAX_FAILURE_BACKOFF = 1000_000_000L; // unit: ns
+
+  private final Config config;
+  private final Statistics statistics;
+  private final List<Thread> queryThreads = new ArrayList<>();
+  // queries claimed by the query threads in QUERY_RATIO mode
+  private final AtomicLong issuedQueryNum = new AtomicLong(0);
+  private volatile boolean stopped = false;
+  private long startTime; // unit: ns
+  private long endTime; // unit: ns
+
+  private MainMixed(Config config, Statistics statistics) {
+    this.config = config;
+    this.statistics = statistics;
+  }
+
+  public static void main(String[] args) throws Exception {
+    double stdDev = 1;
+    long start = System.nanoTime();
+    if (args == null || args.length == 0) {
+      args = new String[]{"conf/config.properties"};
+    }
+
+    Config config;
+    try {
+      FileInputStream fileInputStream = new FileInputStream(args[0]);
+      config = new Config(fileInputStream);
+    } catch (Exception e) {
+      e.printStackTrace();
+      logger.error("Load config from {} failed, using default config", args[0]);
+      config = new Config();
+    }
+
+    if (args.length > 1) {
+      stdDev = Double.parseDouble(args[1]);
+    }
+
+    Statistics statistics = new Statistics();
+    MainMixed mixed = new MainMixed(config, statistics);
+    try {
+      // the queries start once the schemas exist
+      MainLoad.load(config, stdDev, statistics, mixed::startQueries);
+    } finally {
+      mixed.stopQueries();
+    }
+    mixed.logQueries();
+
+    logger.info("total program running time: {} ms", (System.nanoTime() - start) / 1000_000F);
+  }
+
+  private void startQueries() {
+    logger.info("query thread num : {}", config.QUERY_THREAD_NUM);
+    startTime = System.nanoTime();
+    for (int i = 0; i < config.QUERY_THREAD_NUM; i++) {
+      queryThreads.add(VirtualThreads.start(config.VIRTUAL_THREADS, "query-" + i, this::query));
+    }
+  }
+
+  /**
+   * stop the query threads after their current query
+   */
+  private void stopQueries() throws InterruptedException {
+    stopped = true;
+    for (Thread thread : queryThreads) {
+      LockSupport.unpark(thread);
+    }
+    for (Thread thread : queryThreads) {
+      thread.join();
+    }
+    endTime = System.nanoTime();
+  }
+
+  private void query() {
+    IDataBaseManager database = DatabaseFactory.getDbManager(config);
+    database.initClient();
+    // each thread runs its share of the rate
+    long interval = config.QUERY_RATE > 0
+        ? (long) (config.QUERY_THREAD_NUM * 1000_000_000.0 / config.QUERY_RATE) : 0;
+    long nextDueTime = System.nanoTime();
+    long backoff = MIN_FAILURE_BACKOFF;
+    try {
+      while (!stopped) {
+        long dueTime = nextDueTime;
+        if (config.QUERY_RATE > 0) {
+          nextDueTime += interval;
+          if (!awaitUntil(dueTime)) {
+            break;
+          }
+        } else if (config.QUERY_RATIO > 0 && !awaitQueryClaimed()) {
+          break;
+        }
+
+        long elapsedTime;
+        try {
+          elapsedTime = database.query();
+        } catch (Exception e) {
+          logger.warn("Exception during query, retry in {} ms", backoff / 1000_000, e);
+          // a failing query does not spin, e.g., with neither QUERY_RATE nor QUERY_RATIO
+          if (!awaitUntil(System.nanoTime() + backoff)) {
+            break;
+          }
+          backoff = Math.min(backoff * 2, MAX_FAILURE_BACKOFF);
+          continue;
+        }
+        backoff = MIN_FAILURE_BACKOFF;
+        // a late query counts from its due time, like the batches of the open-loop mode
+        statistics.queryLatencies.add(
+            config.QUERY_RATE > 0 ? System.nanoTime() - dueTime : elapsedTime);
+      }
+    } finally {
+      database.close();
+    }
+  }
+
+  /**
+   * @return false if the queries stopped before the time
+   */
+  private boolean awaitUntil(long time) {
+    long now;
+    while (!stopped && (now = System.nanoTime()) < time) {
+      LockSupport.parkNanos(time - now);
+    }
+    return !stopped;
+  }
+
+  /**
+   * wait until the writers inserted enough batches for one more query and claim it
+   *
+   * @return false if the queries stopped before
+   */
+  private boolean awaitQueryClaimed() {
+    while (!stopped) {
+      long issued = issuedQueryNum.get();
+      long batchNum = statistics.batchInsertNum.get() + statistics.warmUpBatchNum.get();
+      if (issued < config.QUERY_RATIO * batchNum
+          && issuedQueryNum.compareAndSet(issued, issued + 1)) {
+        return true;
+      }
+      // batches take milliseconds, so polling at this interval adds little delay
+      LockSupport.parkNanos(1000_000L);
+    }
+    return false;
+  }
+
+  private void logQueries() {
+    LatencyHistogram latencies = statistics.queryLatencies;
+    logger.info("Exp:{} queries under write load: threads:{}, queries:{}, time:{} ms, rate:{} "
+            + "queries/s, latency mean:{} ms, p50:{} ms, p90:{} ms, p99:{} ms, p99.9:{} ms, "
+            + "max:{} ms", config.EXP_NAME, config.QUERY_THREAD_NUM, latencies.getCount(),
+        (endTime - startTime) / 1000_000F,
+        latencies.getCount() * 1000_000_000.0 / Math.max(endTime - startTime, 1),
+        latencies.getMean() / 1000_000.0, latencies.getPercentileInMillisecond(0.5),
+        latencies.getPercentileInMillisecond(0.9), latencies.getPercentileInMillisecond(0.99),
+        latencies.getPercentileInMillisecond(0.999), latencies.getMax() / 1000_000F);
+  }
+}
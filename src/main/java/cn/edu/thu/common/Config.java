@@ -28,6 +28,8 @@ public class Config {
   public int syntheticDeviceNum = 100;
   public int syntheticMeasurementNum = 100;
   public int syntheticPointNum = 10000;
+  // the synthetic devices are numbered from it, each worker process generates its own range
+  public int syntheticDeviceOffset = 0;
 
   // out file path
   public String FILE_PATH = "redd.tsfile";
@@ -35,17 +37,91 @@ public class Config {
 
   public int BEGIN_FILE = 0;
   public int END_FILE = Integer.MAX_VALUE;
+  // non-empty to checkpoint the progress of "-w" to this file, which "--resume" continues from
+  public String PROGRESS_FILE = "";
+  // <= 0 to save the progress only at the end
+  public double CHECKPOINT_INTERVAL_SECONDS = 10;
+  // set by "--resume", skip the data a previous run loaded according to PROGRESS_FILE
+  public boolean resume = false;
 
   public static final String TAG_NAME = "deviceId";
   public static final String TIME_NAME = "time";
   public static boolean FOR_QUERY = false;
   public boolean splitFileByDevice = true;
 
+  // NONE, GAUSSIAN (stdDev from the command line), RATIO, BURSTY or DEVICE_LATE
+  public String DISORDER_MODEL = "GAUSSIAN";
+  // records are disordered the same way in every run with the same seed
+  public long DISORDER_SEED = 0;
+  // RATIO: delayed records, BURSTY: chance a burst starts, DEVICE_LATE: late devices
+  public double DISORDER_RATIO = 0.1;
+  // the maximum delay of RATIO and BURSTY, the delay and period of DEVICE_LATE, in timestamp units
+  public long DISORDER_MAX_DELAY = 1000;
+  // records delayed together in a burst
+  public int DISORDER_BURST_LENGTH = 100;
+
   public int THREAD_NUM = 1;
+  // > 0 to load with this many worker processes of THREAD_NUM writers each, "-w" coordinates them
+  public int WORKER_PROCESS_NUM = 0;
+  // run each writer on a virtual thread (JDK 21+), for THREAD_NUM in the thousands
+  public boolean VIRTUAL_THREADS = false;
+  // > 0 to cap the database connections open at once: a writer holds its connection until it is
+  // done, so only this many writers run at once and the others wait, see CONNECTION_POOL_SIZE
+  public int SINK_CONNECTION_LIMIT = 0;
+  // > 0 for the clients of a process to share this many connections per server, whatever the
+  // THREAD_NUM (IoTDB, TimescaleDB, InfluxDB, KairosDB, OpenTSDB)
+  public int CONNECTION_POOL_SIZE = 0;
+  // > 0 to keep up to this many batches in flight per client (IoTDB, InfluxDB, KairosDB)
+  public int ASYNC_INSERT_WINDOW = 0;
+  // > 0 for open-loop ingest, the writers together send this many points/s on a fixed schedule
+  public double TARGET_RATE = 0;
+  // CONSTANT, STEP (RATE_STEP more points/s every RATE_STEP_SECONDS) or RAMP (the same, linearly)
+  public String RATE_PROFILE = "CONSTANT";
+  public double RATE_STEP = 0;
+  // also the window the achieved rate and the latency percentiles are reported by
+  public double RATE_STEP_SECONDS = 10;
+  // the first batches of each writer, by count or by time, are reported apart as its warm-up
+  public int WARMUP_BATCHES = 0;
+  public double WARMUP_SECONDS = 0;
+  // > 0 to stop each writer this long after its warm-up, otherwise it loads all the data
+  public double MEASURE_SECONDS = 0;
   public int BATCH_SIZE = 1000;
+  // tune the batch size of each writer at runtime, starting from BATCH_SIZE
+  public boolean ADAPTIVE_BATCH_SIZE = false;
+  public int BATCH_SIZE_MIN = 100;
+  public int BATCH_SIZE_MAX = 100000;
+  // batches measured at each batch size before choosing the next one
+  public int BATCH_SIZE_WINDOW = 20;
+  // > 0 to halve the batch size whenever the mean batch latency of a window exceeds it
+  public double BATCH_LATENCY_LIMIT_MS = 0;
+  // > 0 to parse and insert in different threads, with this many ready batches in between
+  public int PIPELINE_QUEUE_DEPTH = 0;
+  // parser threads of each writer in pipelined mode, each one reads a part of the files
+  public int PIPELINE_PARSER_NUM = 1;
+  // route each record to the writer owning its device, by the hash of the tag, instead of
+  // writing it with the writer that read it
+  public boolean DEVICE_AFFINITY = false;
+  // with DEVICE_AFFINITY, the records queued to a writer, in batches, beyond which readers wait
+  public int ROUTING_QUEUE_BATCHES = 4;
+  // pass batches from readers to databases by column instead of as boxed records
+  public boolean COLUMNAR_BATCH = false;
+  // > 0 to keep the numeric columns of batches in direct memory, at most this many MB per writer
+  public int OFF_HEAP_BATCH_BUDGET_MB = 0;
   public int INFER_TYPE_MAX_RECORD_NUM = 10;
+  // non-empty to cache inferred csv schemas across runs in this file
+  public String SCHEMA_CATALOG_FILE = "";
+  // where "-c" writes the binary replay files, which are loaded with DATA_SET=BINARY
+  public String BINARY_OUTPUT_DIR = "data/binary";
+  // the devices whose block "-c" keeps in memory, the least recently appended one is flushed
+  public int BINARY_BUFFERED_BLOCKS = 1024;
 
   public String CSV_SEPARATOR = ",";
+  // memory-map csv files and parse fields in place, requires a single-char separator
+  public boolean CSV_USE_MMAP = false;
+  // 1MB chunks decompressed ahead of the reader for .gz/.zst/.lz4 data files
+  public int COMPRESSED_READ_AHEAD_CHUNKS = 4;
+  // distinct text values each reader interns with their UTF-8 bytes, 0 to intern none
+  public int TEXT_DICTIONARY_SIZE = 65536;
 
   public boolean TYPE_INFO_EXIST = true;
   public String TYPE_INFO_FILE = "show_timeseries.csv";
@@ -100,6 +176,12 @@ public class Config {
   public String QUERY_TYPE = "SINGLE_SERIES_RAW_QUERY";
   public int QUERY_PARAM = 1;
   public boolean QUERY_RESULT_PRINT_FOR_DEBUG = false;
+  // mixed mode ("-m"): query threads running while the writers load the data
+  public int QUERY_THREAD_NUM = 1;
+  // > 0 for queries/s of all query threads on a fixed schedule
+  public double QUERY_RATE = 0;
+  // > 0 without QUERY_RATE for queries per inserted batch, otherwise queries run back to back
+  public double QUERY_RATIO = 0;
 
   private static int sensorNum_for_MULTI_SERIES_ALIGN_QUERY = 1000;
   public String[] sensorArray_for_MULTI_SERIES_ALIGN_QUERY = new String[sensorNum_for_MULTI_SERIES_ALIGN_QUERY];
@@ -154,6 +236,28 @@ public class Config {
     DATA_SET = properties.getOrDefault("DATA_SET", DATA_SET).toString();
     useSynthetic = "SYNTHETIC".equals(DATA_SET);
     THREAD_NUM = Integer.parseInt(properties.getOrDefault("THREAD_NUM", THREAD_NUM).toString());
+    WORKER_PROCESS_NUM = Integer.parseInt(
+        properties.getOrDefault("WORKER_PROCESS_NUM", WORKER_PROCESS_NUM).toString());
+    VIRTUAL_THREADS = Boolean.parseBoolean(
+        properties.getOrDefault("VIRTUAL_THREADS", VIRTUAL_THREADS).toString());
+    SINK_CONNECTION_LIMIT = Integer.parseInt(
+        properties.getOrDefault("SINK_CONNECTION_LIMIT", SINK_CONNECTION_LIMIT).toString());
+    CONNECTION_POOL_SIZE = Integer.parseInt(
+        properties.getOrDefault("CONNECTION_POOL_SIZE", CONNECTION_POOL_SIZE).toString());
+    ASYNC_INSERT_WINDOW = Integer.parseInt(
+        properties.getOrDefault("ASYNC_INSERT_WINDOW", ASYNC_INSERT_WINDOW).toString());
+    TARGET_RATE = Double.parseDouble(
+        properties.getOrDefault("TARGET_RATE", TARGET_RATE).toString());
+    RATE_PROFILE = properties.getOrDefault("RATE_PROFILE", RATE_PROFILE).toString();
+    RATE_STEP = Double.parseDouble(properties.getOrDefault("RATE_STEP", RATE_STEP).toString());
+    RATE_STEP_SECONDS = Double.parseDouble(
+        properties.getOrDefault("RATE_STEP_SECONDS", RATE_STEP_SECONDS).toString());
+    WARMUP_BATCHES = Integer.parseInt(
+        properties.getOrDefault("WARMUP_BATCHES", WARMUP_BATCHES).toString());
+    WARMUP_SECONDS = Double.parseDouble(
+        properties.getOrDefault("WARMUP_SECONDS", WARMUP_SECONDS).toString());
+    MEASURE_SECONDS = Double.parseDouble(
+        properties.getOrDefault("MEASURE_SECONDS", MEASURE_SECONDS).toString());
     DATA_DIR = properties.getOrDefault("DATA_DIR", DATA_DIR).toString();
 
     TYPE_INFO_EXIST = Boolean
@@ -218,6 +322,12 @@ public class Config {
     FILE_PATH = properties.getOrDefault("FILE_PATH", FILE_PATH).toString();
 
     CSV_SEPARATOR = properties.getOrDefault("csv_separator", CSV_SEPARATOR).toString();
+    CSV_USE_MMAP = Boolean.parseBoolean(
+        properties.getOrDefault("csv_use_mmap", CSV_USE_MMAP).toString());
+    COMPRESSED_READ_AHEAD_CHUNKS = Integer.parseInt(properties.getOrDefault(
+        "COMPRESSED_READ_AHEAD_CHUNKS", COMPRESSED_READ_AHEAD_CHUNKS).toString());
+    TEXT_DICTIONARY_SIZE = Integer.parseInt(
+        properties.getOrDefault("TEXT_DICTIONARY_SIZE", TEXT_DICTIONARY_SIZE).toString());
 
     splitFileByDevice = Boolean.parseBoolean(
         properties.getOrDefault("split_file_by_device", syntheticNullRatio).toString());
@@ -235,10 +345,21 @@ public class Config {
     syntheticPointNum =
         Integer
             .parseInt(properties.getOrDefault("synthetic_point_num", syntheticPointNum).toString());
+    syntheticDeviceOffset = Integer.parseInt(
+        properties.getOrDefault("synthetic_device_offset", syntheticDeviceOffset).toString());
 
     INFER_TYPE_MAX_RECORD_NUM = Integer
         .parseInt(properties.getOrDefault("INFER_TYPE_MAX_RECORD_NUM", INFER_TYPE_MAX_RECORD_NUM)
             .toString());
+    SCHEMA_CATALOG_FILE = properties.getOrDefault("SCHEMA_CATALOG_FILE", SCHEMA_CATALOG_FILE)
+        .toString();
+    PROGRESS_FILE = properties.getOrDefault("PROGRESS_FILE", PROGRESS_FILE).toString();
+    CHECKPOINT_INTERVAL_SECONDS = Double.parseDouble(properties.getOrDefault(
+        "CHECKPOINT_INTERVAL_SECONDS", CHECKPOINT_INTERVAL_SECONDS).toString());
+    BINARY_OUTPUT_DIR = properties.getOrDefault("BINARY_OUTPUT_DIR", BINARY_OUTPUT_DIR)
+        .toString();
+    BINARY_BUFFERED_BLOCKS = Integer.parseInt(
+        properties.getOrDefault("BINARY_BUFFERED_BLOCKS", BINARY_BUFFERED_BLOCKS).toString());
 
     useAlignedTablet = Boolean.parseBoolean(properties.getOrDefault("use_aligned_tablet",
         useAlignedTablet).toString());
@@ -253,6 +374,37 @@ public class Config {
     BEGIN_FILE = Integer.parseInt(properties.getOrDefault("BEGIN_FILE", BEGIN_FILE).toString());
     END_FILE = Integer.parseInt(properties.getOrDefault("END_FILE", END_FILE).toString());
     BATCH_SIZE = Integer.parseInt(properties.getOrDefault("BATCH_SIZE", BATCH_SIZE).toString());
+    ADAPTIVE_BATCH_SIZE = Boolean.parseBoolean(
+        properties.getOrDefault("ADAPTIVE_BATCH_SIZE", ADAPTIVE_BATCH_SIZE).toString());
+    BATCH_SIZE_MIN = Integer.parseInt(
+        properties.getOrDefault("BATCH_SIZE_MIN", BATCH_SIZE_MIN).toString());
+    BATCH_SIZE_MAX = Integer.parseInt(
+        properties.getOrDefault("BATCH_SIZE_MAX", BATCH_SIZE_MAX).toString());
+    BATCH_SIZE_WINDOW = Integer.parseInt(
+        properties.getOrDefault("BATCH_SIZE_WINDOW", BATCH_SIZE_WINDOW).toString());
+    BATCH_LATENCY_LIMIT_MS = Double.parseDouble(
+        properties.getOrDefault("BATCH_LATENCY_LIMIT_MS", BATCH_LATENCY_LIMIT_MS).toString());
+    DISORDER_MODEL = properties.getOrDefault("DISORDER_MODEL", DISORDER_MODEL).toString();
+    DISORDER_SEED = Long
+        .parseLong(properties.getOrDefault("DISORDER_SEED", DISORDER_SEED).toString());
+    DISORDER_RATIO = Double
+        .parseDouble(properties.getOrDefault("DISORDER_RATIO", DISORDER_RATIO).toString());
+    DISORDER_MAX_DELAY = Long
+        .parseLong(properties.getOrDefault("DISORDER_MAX_DELAY", DISORDER_MAX_DELAY).toString());
+    DISORDER_BURST_LENGTH = Integer.parseInt(
+        properties.getOrDefault("DISORDER_BURST_LENGTH", DISORDER_BURST_LENGTH).toString());
+    PIPELINE_QUEUE_DEPTH = Integer.parseInt(
+        properties.getOrDefault("PIPELINE_QUEUE_DEPTH", PIPELINE_QUEUE_DEPTH).toString());
+    PIPELINE_PARSER_NUM = Integer.parseInt(
+        properties.getOrDefault("PIPELINE_PARSER_NUM", PIPELINE_PARSER_NUM).toString());
+    DEVICE_AFFINITY = Boolean.parseBoolean(
+        properties.getOrDefault("DEVICE_AFFINITY", DEVICE_AFFINITY).toString());
+    ROUTING_QUEUE_BATCHES = Integer.parseInt(
+        properties.getOrDefault("ROUTING_QUEUE_BATCHES", ROUTING_QUEUE_BATCHES).toString());
+    COLUMNAR_BATCH = Boolean.parseBoolean(
+        properties.getOrDefault("COLUMNAR_BATCH", COLUMNAR_BATCH).toString());
+    OFF_HEAP_BATCH_BUDGET_MB = Integer.parseInt(properties.getOrDefault(
+        "OFF_HEAP_BATCH_BUDGET_MB", OFF_HEAP_BATCH_BUDGET_MB).toString());
     WATERWHEEL_INGEST_PORT = Integer.parseInt(
         properties.getOrDefault("WATERWHEEL_INGEST_PORT", WATERWHEEL_INGEST_PORT).toString());
     WATERWHEEL_QUERY_PORT = Integer.parseInt(
@@ -264,6 +416,11 @@ public class Config {
     QUERY_RESULT_PRINT_FOR_DEBUG = Boolean.parseBoolean(
         properties.getOrDefault("QUERY_RESULT_PRINT_FOR_DEBUG", QUERY_RESULT_PRINT_FOR_DEBUG)
             .toString());
+    QUERY_THREAD_NUM = Integer.parseInt(
+        properties.getOrDefault("QUERY_THREAD_NUM", QUERY_THREAD_NUM).toString());
+    QUERY_RATE = Double.parseDouble(properties.getOrDefault("QUERY_RATE", QUERY_RATE).toString());
+    QUERY_RATIO = Double.parseDouble(
+        properties.getOrDefault("QUERY_RATIO", QUERY_RATIO).toString());
 
     for (int i = 1; i < sensorNum_for_MULTI_SERIES_ALIGN_QUERY + 1; i++) {
       sensorArray_for_MULTI_SERIES_ALIGN_QUERY[i - 1] = "sensor" + i; // for dianchang dataset
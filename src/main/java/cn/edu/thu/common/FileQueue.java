@@ -0,0 +1,53 @@
+package cn.edu.thu.common;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Files shared by the writer threads, every idle thread takes the next file. Handing out the
+ * largest files first leaves the small ones for the end, where they fill the gaps between threads
+ * instead of one thread finishing a large file alone.
+ */
+public class FileQueue {
+
+  private final List<String> files;
+  private final AtomicInteger cursor = new AtomicInteger(0);
+
+  /**
+   * files are taken in the given order
+   */
+  public FileQueue(List<String> files) {
+    this.files = new ArrayList<>(files);
+  }
+
+  /**
+   * files are taken by descending size, files of the same size by name
+   */
+  public static FileQueue largestFirst(List<String> files) {
+    Map<String, Long> sizes = new HashMap<>();
+    for (String file : files) {
+      sizes.put(file, new File(file).length());
+    }
+    List<String> sorted = new ArrayList<>(files);
+    sorted.sort(Comparator.comparing((String file) -> sizes.get(file)).reversed()
+        .thenComparing(Comparator.naturalOrder()));
+    return new FileQueue(sorted);
+  }
+
+  /**
+   * @return the next file, or null if all files are taken
+   */
+  public String poll() {
+    int index = cursor.getAndIncrement();
+    return index < files.size() ? files.get(index) : null;
+  }
+
+  public int size() {
+    return files.size();
+  }
+}
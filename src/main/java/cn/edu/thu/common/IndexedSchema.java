@@ -19,32 +19,16 @@
 
 package cn.edu.thu.common;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public abstract class IndexedSchema extends Schema {
 
   public abstract Schema rebuildIndex();
 
   public static class MapIndexedSchema extends IndexedSchema {
-    private Map<String, Integer> fieldPosMap;
 
     @Override
     public MapIndexedSchema rebuildIndex() {
-      fieldPosMap = new HashMap<>(getFields().length);
-      for (int i = 0; i < getFields().length; i++) {
-        fieldPosMap.put(getFields()[i], i);
-      }
-
+      indexFields();
       return this;
     }
-
-    @Override
-    public int getIndex(String fieldName) {
-      if (fieldPosMap == null) {
-        rebuildIndex();
-      }
-      return fieldPosMap.getOrDefault(fieldName, -1);
-    }
   }
 }
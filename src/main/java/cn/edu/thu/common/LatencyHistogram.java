@@ -0,0 +1,133 @@
+package cn.edu.thu.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of latencies in buckets 1/16 of a power of two wide, so percentiles of any number of
+ * samples take a fixed 8KB and are at most 1/16 below the exact value. Writers may add latencies
+ * concurrently.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_NUM = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BUCKET_BITS);
+  private final AtomicLong count = new AtomicLong(0);
+  private final AtomicLong sum = new AtomicLong(0);
+  private final AtomicLong max = new AtomicLong(0);
+
+  /**
+   * @param latency in nanoseconds, negative values count as 0
+   */
+  public void add(long latency) {
+    latency = Math.max(latency, 0);
+    counts.incrementAndGet(bucketOf(latency));
+    count.incrementAndGet();
+    sum.addAndGet(latency);
+    max.accumulateAndGet(latency, Math::max);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return in nanoseconds, 0 if there is no latency
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @return in nanoseconds, 0 if there is no latency
+   */
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * @param quantile in [0, 1], e.g., 0.99 for the 99th percentile
+   * @return the lower bound of the bucket of the percentile in nanoseconds, 0 if there is no
+   * latency
+   */
+  public long getPercentile(double quantile) {
+    long rank = Math.max(1, (long) Math.ceil(quantile * count.get()));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(lowerBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * @return in milliseconds, for logs
+   */
+  public double getPercentileInMillisecond(double quantile) {
+    return getPercentile(quantile) / 1000_000.0;
+  }
+
+  /**
+   * write the non-empty buckets, for mergeFrom() of a histogram in another process
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeLong(sum.get());
+    out.writeLong(max.get());
+    int bucketNum = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      if (counts.get(i) != 0) {
+        bucketNum++;
+      }
+    }
+    out.writeInt(bucketNum);
+    for (int i = 0; i < counts.length(); i++) {
+      long bucketCount = counts.get(i);
+      if (bucketCount != 0) {
+        out.writeInt(i);
+        out.writeLong(bucketCount);
+      }
+    }
+  }
+
+  /**
+   * add the latencies of a histogram written by writeTo()
+   */
+  public void mergeFrom(DataInput in) throws IOException {
+    sum.addAndGet(in.readLong());
+    max.accumulateAndGet(in.readLong(), Math::max);
+    int bucketNum = in.readInt();
+    for (int i = 0; i < bucketNum; i++) {
+      int bucket = in.readInt();
+      long bucketCount = in.readLong();
+      counts.addAndGet(bucket, bucketCount);
+      count.addAndGet(bucketCount);
+    }
+  }
+
+  private static int bucketOf(long latency) {
+    if (latency < SUB_BUCKET_NUM) {
+      return (int) latency;
+    }
+    // the highest bit selects a power of two, the next SUB_BUCKET_BITS bits a sub-bucket
+    int exponent = 63 - Long.numberOfLeadingZeros(latency);
+    return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS)
+        + (int) ((latency >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_NUM - 1));
+  }
+
+  private static long lowerBoundOf(int bucket) {
+    if (bucket < SUB_BUCKET_NUM) {
+      return bucket;
+    }
+    int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket & (SUB_BUCKET_NUM - 1);
+    return (SUB_BUCKET_NUM + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.common;
+
+/**
+ * Classifies and parses numeric text without throwing exceptions, so that cells which are not
+ * numbers cost a scan instead of a NumberFormatException with its stack trace. A value is accepted
+ * exactly when Long.parseLong or Double.parseDouble would accept it; values that cannot be
+ * computed exactly in place are delegated to Double.parseDouble after they are validated.
+ * <p>
+ * An instance parses into primitive values, for callers that store them in primitive columns; it
+ * is not thread-safe, except inferType(), which keeps no state.
+ */
+public class NumberParser {
+
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  // the value of the last successful tryParseLong() or tryParseDouble()
+  private long longValue;
+  private double doubleValue;
+
+  /**
+   * only validates s, the values of the parser are left unchanged
+   *
+   * @return Long.class, Double.class or String.class
+   */
+  public Class<?> inferType(CharSequence s) {
+    if (scanLong(s, false)) {
+      return Long.class;
+    }
+    if (scanDouble(s, false)) {
+      return Double.class;
+    }
+    return String.class;
+  }
+
+  /**
+   * @return true if s is a long as Long.parseLong parses it, its value is then getLongValue()
+   */
+  public boolean tryParseLong(CharSequence s) {
+    return scanLong(s, true);
+  }
+
+  /**
+   * @param computeValue false to only validate, longValue is then left unchanged
+   */
+  private boolean scanLong(CharSequence s, boolean computeValue) {
+    int length = s.length();
+    if (length == 0) {
+      return false;
+    }
+
+    int pos = 0;
+    boolean negative = false;
+    long limit = -Long.MAX_VALUE;
+    char first = s.charAt(0);
+    if (first < '0') {
+      if (first == '-') {
+        negative = true;
+        limit = Long.MIN_VALUE;
+      } else if (first != '+') {
+        return false;
+      }
+      if (length == 1) {
+        return false;
+      }
+      pos++;
+    }
+
+    // accumulate negatively to cover Long.MIN_VALUE
+    long multiplyMin = limit / 10;
+    long result = 0;
+    for (; pos < length; pos++) {
+      char c = s.charAt(pos);
+      int digit = c - '0';
+      if (digit < 0 || digit > 9) {
+        // Long.parseLong also accepts non-ASCII digits
+        return c > 127 && parseLongSlowly(s, computeValue);
+      }
+      if (result < multiplyMin) {
+        return false;
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        return false;
+      }
+      result -= digit;
+    }
+    if (computeValue) {
+      longValue = negative ? result : -result;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if s is a double as Double.parseDouble parses it, its value is then
+   * getDoubleValue()
+   */
+  public boolean tryParseDouble(CharSequence s) {
+    return scanDouble(s, true);
+  }
+
+  public long getLongValue() {
+    return longValue;
+  }
+
+  public double getDoubleValue() {
+    return doubleValue;
+  }
+
+  private boolean parseLongSlowly(CharSequence s, boolean computeValue) {
+    try {
+      long value = Long.parseLong(s.toString());
+      if (computeValue) {
+        longValue = value;
+      }
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * validate s against the grammar of Double.parseDouble: surrounding whitespace, an optional
+   * sign, then NaN, Infinity, a hexadecimal or a decimal value with an optional type suffix
+   *
+   * @param computeValue false to only validate, doubleValue is then left unchanged
+   */
+  private boolean scanDouble(CharSequence s, boolean computeValue) {
+    int start = 0;
+    int end = s.length();
+    while (start < end && s.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && s.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    if (start == end) {
+      return false;
+    }
+
+    int pos = start;
+    boolean negative = false;
+    char c = s.charAt(pos);
+    if (c == '-' || c == '+') {
+      negative = c == '-';
+      if (++pos == end) {
+        return false;
+      }
+      c = s.charAt(pos);
+    }
+    if (c == 'N') {
+      return matches(s, pos, end, "NaN") && setDouble(Double.NaN, computeValue);
+    }
+    if (c == 'I') {
+      return matches(s, pos, end, "Infinity") && setDouble(
+          negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY, computeValue);
+    }
+    if (c == '0' && pos + 1 < end && (s.charAt(pos + 1) == 'x' || s.charAt(pos + 1) == 'X')) {
+      if (!isHexValue(s, pos + 2, end)) {
+        return false;
+      }
+      return !computeValue || setDouble(Double.parseDouble(s.toString()), true);
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean exact = true;
+    boolean seenDigit = false;
+    boolean seenDot = false;
+    for (; pos < end; pos++) {
+      c = s.charAt(pos);
+      if (c >= '0' && c <= '9') {
+        seenDigit = true;
+        if (mantissa == 0 && c == '0') {
+          // leading zeros are not significant
+          if (seenDot) {
+            exponent--;
+          }
+          continue;
+        }
+        if (++digits > 18) {
+          exact = false;
+          continue;
+        }
+        mantissa = mantissa * 10 + (c - '0');
+        if (seenDot) {
+          exponent--;
+        }
+      } else if (c == '.' && !seenDot) {
+        seenDot = true;
+      } else {
+        break;
+      }
+    }
+    if (!seenDigit) {
+      return false;
+    }
+
+    if (pos < end && (c == 'e' || c == 'E')) {
+      pos++;
+      boolean negativeExponent = false;
+      if (pos < end && (s.charAt(pos) == '-' || s.charAt(pos) == '+')) {
+        negativeExponent = s.charAt(pos) == '-';
+        pos++;
+      }
+      int exponentStart = pos;
+      int explicitExponent = 0;
+      for (; pos < end; pos++) {
+        int digit = s.charAt(pos) - '0';
+        if (digit < 0 || digit > 9) {
+          break;
+        }
+        if (explicitExponent < 100_000) {
+          explicitExponent = explicitExponent * 10 + digit;
+        }
+      }
+      if (pos == exponentStart) {
+        return false;
+      }
+      exponent += negativeExponent ? -explicitExponent : explicitExponent;
+    }
+
+    if (pos < end) {
+      c = s.charAt(pos);
+      if (pos != end - 1 || (c != 'f' && c != 'F' && c != 'd' && c != 'D')) {
+        return false;
+      }
+    }
+
+    if (!computeValue) {
+      return true;
+    }
+    double value;
+    if (mantissa == 0) {
+      value = 0.0;
+    } else if (exact && mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+      // both operands are exact, so a single rounding gives the correctly rounded result
+      value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent]
+          : mantissa / POWERS_OF_TEN[-exponent];
+    } else {
+      return setDouble(Double.parseDouble(s.toString()), true);
+    }
+    return setDouble(negative ? -value : value, true);
+  }
+
+  private boolean setDouble(double value, boolean computeValue) {
+    if (computeValue) {
+      doubleValue = value;
+    }
+    return true;
+  }
+
+  /**
+   * hexadecimal significand with at least one digit, then a binary exponent and an optional type
+   * suffix
+   */
+  private static boolean isHexValue(CharSequence s, int pos, int end) {
+    int hexDigits = 0;
+    boolean seenDot = false;
+    for (; pos < end; pos++) {
+      char c = s.charAt(pos);
+      if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) {
+        hexDigits++;
+      } else if (c == '.' && !seenDot) {
+        seenDot = true;
+      } else {
+        break;
+      }
+    }
+    if (hexDigits == 0 || pos == end || (s.charAt(pos) != 'p' && s.charAt(pos) != 'P')) {
+      return false;
+    }
+    pos++;
+    if (pos < end && (s.charAt(pos) == '-' || s.charAt(pos) == '+')) {
+      pos++;
+    }
+    int exponentStart = pos;
+    while (pos < end && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+      pos++;
+    }
+    if (pos == exponentStart) {
+      return false;
+    }
+    if (pos == end) {
+      return true;
+    }
+    char c = s.charAt(pos);
+    return pos == end - 1 && (c == 'f' || c == 'F' || c == 'd' || c == 'D');
+  }
+
+  private static boolean matches(CharSequence s, int pos, int end, String word) {
+    if (end - pos != word.length()) {
+      return false;
+    }
+    for (int i = 0; i < word.length(); i++) {
+      if (s.charAt(pos + i) != word.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
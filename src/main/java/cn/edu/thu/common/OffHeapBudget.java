@@ -0,0 +1,65 @@
+package cn.edu.thu.common;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The direct memory the off-heap batches of one writer may hold, OFF_HEAP_BATCH_BUDGET_MB, shared
+ * by all its readers, which may parse on several threads. A batch is charged when it is allocated
+ * and whenever it grows, and refunded once its reader drops it.
+ */
+public class OffHeapBudget {
+
+  private static Logger logger = LoggerFactory.getLogger(OffHeapBudget.class);
+
+  private final long maxBytes;
+  private final AtomicLong usedBytes = new AtomicLong(0);
+  private final AtomicBoolean exceededWarned = new AtomicBoolean(false);
+
+  public OffHeapBudget(Config config) {
+    this.maxBytes = config.OFF_HEAP_BATCH_BUDGET_MB * 1024L * 1024;
+  }
+
+  /**
+   * @return an off-heap batch charged to this budget, or null if the budget does not allow it,
+   * then a heap batch is used
+   */
+  public OffHeapRecordBatch allocate(Schema schema, int capacity) {
+    long bytes = OffHeapRecordBatch.sizeInBytes(schema, capacity);
+    if (maxBytes <= 0 || bytes < 0) {
+      return null;
+    }
+    long used;
+    do {
+      used = usedBytes.get();
+      if (used + bytes > maxBytes) {
+        if (exceededWarned.compareAndSet(false, true)) {
+          logger.warn("off-heap batches exceed OFF_HEAP_BATCH_BUDGET_MB={}, using heap batches "
+              + "until some are released", maxBytes / 1024 / 1024);
+        }
+        return null;
+      }
+    } while (!usedBytes.compareAndSet(used, used + bytes));
+    return new OffHeapRecordBatch(schema, capacity, this);
+  }
+
+  /**
+   * charge the growth of a batch, which cannot move back to the heap, even beyond the budget
+   */
+  void charge(long bytes) {
+    usedBytes.addAndGet(bytes);
+  }
+
+  void refund(long bytes) {
+    usedBytes.addAndGet(-bytes);
+  }
+
+  /**
+   * @return the bytes held by the batches of this budget
+   */
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+}
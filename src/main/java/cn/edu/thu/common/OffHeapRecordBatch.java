@@ -0,0 +1,220 @@
+package cn.edu.thu.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A RecordBatch whose timestamps, numeric columns and null bitmaps live in one direct ByteBuffer,
+ * so a batch of a wide schema costs the heap little more than its String values. The buffer is
+ * split into fixed-width regions of 8-byte words: the timestamps, one region per Long or Double
+ * column, then one null bitmap per column. Sinks copy the regions in bulk into their own arrays.
+ * <p>
+ * The memory is released when the batch is garbage collected, readers recycle batches and cap the
+ * allocated bytes of a writer by its OffHeapBudget.
+ */
+public class OffHeapRecordBatch extends RecordBatch {
+
+  private ByteBuffer buffer;
+  private LongBuffer longs;
+  private DoubleBuffer doubles;
+  // word offsets of the regions in the buffer, -1 for the String columns in valueOffsets
+  private final int[] valueOffsets;
+  private final int[] bitmapOffsets;
+  // charged for the buffer, null if the batch is not counted in a budget
+  private final OffHeapBudget budget;
+  private long chargedBytes;
+
+  public OffHeapRecordBatch(Schema schema, int capacity) {
+    this(schema, capacity, null);
+  }
+
+  /**
+   * @param budget already charged for a batch of the capacity, see OffHeapBudget.allocate()
+   */
+  OffHeapRecordBatch(Schema schema, int capacity, OffHeapBudget budget) {
+    super(schema, capacity, false);
+    int fieldNum = schema.getFields().length;
+    valueOffsets = new int[fieldNum];
+    bitmapOffsets = new int[fieldNum];
+    this.budget = budget;
+    allocate(getCapacity());
+    chargedBytes = sizeInBytes(schema, getCapacity());
+    clearNullBitmaps(bitmapLength(getCapacity()));
+  }
+
+  /**
+   * @return the direct memory a batch of the schema and capacity takes, or -1 if it does not fit
+   * in one buffer
+   */
+  public static long sizeInBytes(Schema schema, int capacity) {
+    capacity = Math.max(capacity, 1);
+    long words = capacity;
+    for (Class<?> type : schema.getTypes()) {
+      if (!isStringType(type)) {
+        words += capacity;
+      }
+      words += bitmapLength(capacity);
+    }
+    long bytes = words * 8;
+    return bytes > Integer.MAX_VALUE ? -1 : bytes;
+  }
+
+  @Override
+  public long getTimestamp(int row) {
+    return longs.get(row);
+  }
+
+  @Override
+  public void setTimestamp(int row, long timestamp) {
+    longs.put(row, timestamp);
+  }
+
+  @Override
+  public long getLong(int column, int row) {
+    return longs.get(valueOffsets[column] + row);
+  }
+
+  @Override
+  public double getDouble(int column, int row) {
+    return doubles.get(valueOffsets[column] + row);
+  }
+
+  @Override
+  public void setLong(int column, int row, long value) {
+    longs.put(valueOffsets[column] + row, value);
+    setNotNull(column, row);
+  }
+
+  @Override
+  public void setDouble(int column, int row, double value) {
+    doubles.put(valueOffsets[column] + row, value);
+    setNotNull(column, row);
+  }
+
+  @Override
+  public boolean isNull(int column, int row) {
+    return (longs.get(bitmapOffsets[column] + (row >>> 6)) & (1L << row)) != 0;
+  }
+
+  @Override
+  public boolean hasNoNulls(int column) {
+    int offset = bitmapOffsets[column];
+    int fullWords = size() >>> 6;
+    for (int i = 0; i < fullWords; i++) {
+      if (longs.get(offset + i) != 0) {
+        return false;
+      }
+    }
+    int rest = size() & 63;
+    return rest == 0 || (longs.get(offset + fullWords) & ((1L << rest) - 1)) == 0;
+  }
+
+  @Override
+  public void copyTimestamps(long[] dest) {
+    copy(longs, 0, dest);
+  }
+
+  @Override
+  public void copyLongColumn(int column, long[] dest) {
+    copy(longs, valueOffsets[column], dest);
+  }
+
+  @Override
+  public void copyDoubleColumn(int column, double[] dest) {
+    DoubleBuffer view = doubles.duplicate();
+    view.position(valueOffsets[column]);
+    view.get(dest, 0, size());
+  }
+
+  @Override
+  protected void setNotNull(int column, int row) {
+    int index = bitmapOffsets[column] + (row >>> 6);
+    longs.put(index, longs.get(index) & ~(1L << row));
+  }
+
+  @Override
+  protected void clearNullBitmaps(int wordNum) {
+    for (int offset : bitmapOffsets) {
+      for (int i = 0; i < wordNum; i++) {
+        longs.put(offset + i, -1L);
+      }
+    }
+  }
+
+  @Override
+  protected void growStorage(int newCapacity) {
+    LongBuffer oldLongs = longs;
+    int[] oldValueOffsets = valueOffsets.clone();
+    int[] oldBitmapOffsets = bitmapOffsets.clone();
+    int oldWords = bitmapLength(getCapacity());
+    allocate(newCapacity);
+    long bytes = sizeInBytes(getSchema(), newCapacity);
+    if (budget != null) {
+      budget.charge(bytes - chargedBytes);
+    }
+    chargedBytes = bytes;
+
+    int rows = size();
+    for (int i = 0; i < rows; i++) {
+      longs.put(i, oldLongs.get(i));
+    }
+    int newWords = bitmapLength(newCapacity);
+    for (int column = 0; column < valueOffsets.length; column++) {
+      if (valueOffsets[column] >= 0) {
+        for (int i = 0; i < rows; i++) {
+          // raw bits, so doubles are moved as they are
+          longs.put(valueOffsets[column] + i, oldLongs.get(oldValueOffsets[column] + i));
+        }
+      }
+      for (int i = 0; i < newWords; i++) {
+        longs.put(bitmapOffsets[column] + i,
+            i < oldWords ? oldLongs.get(oldBitmapOffsets[column] + i) : -1L);
+      }
+    }
+  }
+
+  /**
+   * refund the memory of the batch to its budget once it is dropped, the batch is not used
+   * afterwards
+   */
+  public void free() {
+    if (budget != null) {
+      budget.refund(chargedBytes);
+    }
+    chargedBytes = 0;
+  }
+
+  private void allocate(int capacity) {
+    long bytes = sizeInBytes(getSchema(), capacity);
+    if (bytes < 0) {
+      throw new IllegalArgumentException("an off-heap batch of " + capacity + " rows and "
+          + valueOffsets.length + " columns exceeds 2GB");
+    }
+    buffer = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    longs = buffer.asLongBuffer();
+    doubles = buffer.asDoubleBuffer();
+
+    Class<?>[] types = getSchema().getTypes();
+    int offset = capacity;
+    for (int i = 0; i < types.length; i++) {
+      if (isStringType(types[i])) {
+        valueOffsets[i] = -1;
+      } else {
+        valueOffsets[i] = offset;
+        offset += capacity;
+      }
+    }
+    for (int i = 0; i < types.length; i++) {
+      bitmapOffsets[i] = offset;
+      offset += bitmapLength(capacity);
+    }
+  }
+
+  private void copy(LongBuffer source, int offset, long[] dest) {
+    LongBuffer view = source.duplicate();
+    view.position(offset);
+    view.get(dest, 0, size());
+  }
+}
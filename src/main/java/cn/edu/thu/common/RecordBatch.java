@@ -0,0 +1,336 @@
+package cn.edu.thu.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of records stored by column: a long[] of timestamps and one primitive array per field,
+ * long[] for Long fields, double[] for Double fields and fields without a declared type, String[]
+ * for the others. Every column has a null bitmap whose set bits mark null values, a new row starts
+ * with all its values null. A String value may come with its UTF-8 bytes, e.g., from a
+ * StringDictionary, which sinks then write without encoding the value again.
+ * <p>
+ * Compared with a List of Record, a batch holds no boxed values, so sinks that write columns can
+ * copy them in bulk. OffHeapRecordBatch keeps the timestamps, the numeric columns and the bitmaps
+ * outside the heap, so sinks should only use the accessors and copy methods of this class.
+ */
+public class RecordBatch {
+
+  private final Schema schema;
+  private int capacity;
+  private int size = 0;
+  private String[] tags;
+  // the String columns, null for the other types
+  private final String[][] stringColumns;
+  // the UTF-8 bytes of the String columns, null if a value is not encoded yet
+  private final byte[][][] encodedColumns;
+
+  // heap storage, null in subclasses that store them elsewhere
+  private long[] timestamps;
+  // long[] or double[] by the type of the field, null for String columns
+  private final Object[] columns;
+  private final long[][] nullBitmaps;
+
+  public RecordBatch(Schema schema, int capacity) {
+    this(schema, capacity, true);
+  }
+
+  /**
+   * @param onHeap whether the timestamps, the numeric columns and the null bitmaps are allocated
+   * by this class, otherwise a subclass stores them and overrides their accessors
+   */
+  protected RecordBatch(Schema schema, int capacity, boolean onHeap) {
+    this.schema = schema;
+    this.capacity = Math.max(capacity, 1);
+    int fieldNum = schema.getFields().length;
+    tags = new String[this.capacity];
+    stringColumns = new String[fieldNum][];
+    encodedColumns = new byte[fieldNum][][];
+    for (int i = 0; i < fieldNum; i++) {
+      if (isStringType(schema.getTypes()[i])) {
+        stringColumns[i] = new String[this.capacity];
+        encodedColumns[i] = new byte[this.capacity][];
+      }
+    }
+
+    if (!onHeap) {
+      columns = null;
+      nullBitmaps = null;
+      return;
+    }
+    timestamps = new long[this.capacity];
+    columns = new Object[fieldNum];
+    nullBitmaps = new long[fieldNum][];
+    for (int i = 0; i < fieldNum; i++) {
+      Class<?> type = schema.getTypes()[i];
+      if (type == Long.class) {
+        columns[i] = new long[this.capacity];
+      } else if (!isStringType(type)) {
+        columns[i] = new double[this.capacity];
+      }
+      nullBitmaps[i] = new long[bitmapLength(this.capacity)];
+      Arrays.fill(nullBitmaps[i], -1L);
+    }
+  }
+
+  /**
+   * @param schema the schema the fields of the records follow
+   */
+  public static RecordBatch fromRecords(List<Record> records, Schema schema) {
+    RecordBatch batch = new RecordBatch(schema, records.size());
+    batch.addRecords(records);
+    return batch;
+  }
+
+  /**
+   * append the records, whose fields follow the schema of this batch
+   */
+  public void addRecords(List<Record> records) {
+    Class<?>[] types = schema.getTypes();
+    for (Record record : records) {
+      int row = addRow(record.timestamp, record.tag);
+      int fieldNum = Math.min(record.fields.size(), types.length);
+      for (int i = 0; i < fieldNum; i++) {
+        Object value = record.fields.get(i);
+        if (value == null) {
+          continue;
+        }
+        if (types[i] == Long.class) {
+          setLong(i, row, ((Number) value).longValue());
+        } else if (types[i] == null || types[i] == Double.class) {
+          setDouble(i, row, ((Number) value).doubleValue());
+        } else {
+          setString(i, row, value.toString());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the rows of this batch, nulls included, for sinks that insert records
+   */
+  public List<Record> toRecords() {
+    Class<?>[] types = schema.getTypes();
+    List<Record> records = new ArrayList<>(size);
+    for (int row = 0; row < size; row++) {
+      List<Object> fields = new ArrayList<>(types.length);
+      for (int i = 0; i < types.length; i++) {
+        if (isNull(i, row)) {
+          fields.add(null);
+        } else if (types[i] == Long.class) {
+          fields.add(getLong(i, row));
+        } else if (types[i] == null || types[i] == Double.class) {
+          fields.add(getDouble(i, row));
+        } else {
+          fields.add(stringColumns[i][row]);
+        }
+      }
+      records.add(new Record(getTimestamp(row), tags[row], fields));
+    }
+    return records;
+  }
+
+  /**
+   * append a row whose values are all null, the batch grows if it is full
+   *
+   * @return the index of the row
+   */
+  public int addRow(long timestamp, String tag) {
+    if (size == capacity) {
+      grow();
+    }
+    setTimestamp(size, timestamp);
+    tags[size] = tag;
+    return size++;
+  }
+
+  public long getTimestamp(int row) {
+    return timestamps[row];
+  }
+
+  public void setTimestamp(int row, long timestamp) {
+    timestamps[row] = timestamp;
+  }
+
+  public long getLong(int column, int row) {
+    return ((long[]) columns[column])[row];
+  }
+
+  public double getDouble(int column, int row) {
+    return ((double[]) columns[column])[row];
+  }
+
+  public void setLong(int column, int row, long value) {
+    ((long[]) columns[column])[row] = value;
+    setNotNull(column, row);
+  }
+
+  public void setDouble(int column, int row, double value) {
+    ((double[]) columns[column])[row] = value;
+    setNotNull(column, row);
+  }
+
+  /**
+   * @param value null to keep the value null
+   */
+  public void setString(int column, int row, String value) {
+    setString(column, row, value, null);
+  }
+
+  /**
+   * @param utf8 the UTF-8 bytes of the value, which are shared and never modified, or null
+   */
+  public void setString(int column, int row, String value, byte[] utf8) {
+    if (value == null) {
+      return;
+    }
+    stringColumns[column][row] = value;
+    encodedColumns[column][row] = utf8;
+    setNotNull(column, row);
+  }
+
+  public boolean isNull(int column, int row) {
+    return (nullBitmaps[column][row >>> 6] & (1L << row)) != 0;
+  }
+
+  /**
+   * @return true if the column has no null value in the rows of this batch
+   */
+  public boolean hasNoNulls(int column) {
+    long[] bitmap = nullBitmaps[column];
+    int fullWords = size >>> 6;
+    for (int i = 0; i < fullWords; i++) {
+      if (bitmap[i] != 0) {
+        return false;
+      }
+    }
+    int rest = size & 63;
+    return rest == 0 || (bitmap[fullWords] & ((1L << rest) - 1)) == 0;
+  }
+
+  /**
+   * copy the timestamps of the rows of this batch to the start of dest
+   */
+  public void copyTimestamps(long[] dest) {
+    System.arraycopy(timestamps, 0, dest, 0, size);
+  }
+
+  /**
+   * copy the values of a Long column to the start of dest, nulls included as stored
+   */
+  public void copyLongColumn(int column, long[] dest) {
+    System.arraycopy(columns[column], 0, dest, 0, size);
+  }
+
+  /**
+   * copy the values of a Double column to the start of dest, nulls included as stored
+   */
+  public void copyDoubleColumn(int column, double[] dest) {
+    System.arraycopy(columns[column], 0, dest, 0, size);
+  }
+
+  /**
+   * remove all rows, the storage is kept for the next rows
+   */
+  public void clear() {
+    for (int i = 0; i < stringColumns.length; i++) {
+      if (stringColumns[i] != null) {
+        Arrays.fill(stringColumns[i], 0, size, null);
+        Arrays.fill(encodedColumns[i], 0, size, null);
+      }
+    }
+    Arrays.fill(tags, 0, size, null);
+    clearNullBitmaps(bitmapLength(size));
+    size = 0;
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public String getTag(int row) {
+    return tags[row];
+  }
+
+  public String getString(int column, int row) {
+    return stringColumns[column][row];
+  }
+
+  /**
+   * @return the UTF-8 bytes of a non-null value of a String column, which must not be modified
+   */
+  public byte[] getUtf8(int column, int row) {
+    byte[] utf8 = encodedColumns[column][row];
+    if (utf8 == null) {
+      utf8 = stringColumns[column][row].getBytes(StandardCharsets.UTF_8);
+      encodedColumns[column][row] = utf8;
+    }
+    return utf8;
+  }
+
+  protected void setNotNull(int column, int row) {
+    nullBitmaps[column][row >>> 6] &= ~(1L << row);
+  }
+
+  /**
+   * mark all values of the first words of each null bitmap as null
+   */
+  protected void clearNullBitmaps(int wordNum) {
+    for (long[] bitmap : nullBitmaps) {
+      Arrays.fill(bitmap, 0, wordNum, -1L);
+    }
+  }
+
+  /**
+   * move the timestamps, the numeric columns and the null bitmaps of the first size rows to a
+   * storage of newCapacity rows, the new rows are null
+   */
+  protected void growStorage(int newCapacity) {
+    timestamps = Arrays.copyOf(timestamps, newCapacity);
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i] instanceof long[]) {
+        columns[i] = Arrays.copyOf((long[]) columns[i], newCapacity);
+      } else if (columns[i] instanceof double[]) {
+        columns[i] = Arrays.copyOf((double[]) columns[i], newCapacity);
+      }
+      int oldLength = nullBitmaps[i].length;
+      nullBitmaps[i] = Arrays.copyOf(nullBitmaps[i], bitmapLength(newCapacity));
+      Arrays.fill(nullBitmaps[i], oldLength, nullBitmaps[i].length, -1L);
+    }
+  }
+
+  private void grow() {
+    int newCapacity = capacity * 2;
+    growStorage(newCapacity);
+    tags = Arrays.copyOf(tags, newCapacity);
+    for (int i = 0; i < stringColumns.length; i++) {
+      if (stringColumns[i] != null) {
+        stringColumns[i] = Arrays.copyOf(stringColumns[i], newCapacity);
+        encodedColumns[i] = Arrays.copyOf(encodedColumns[i], newCapacity);
+      }
+    }
+    capacity = newCapacity;
+  }
+
+  protected static boolean isStringType(Class<?> type) {
+    return type != null && type != Long.class && type != Double.class;
+  }
+
+  protected static int bitmapLength(int rowNum) {
+    return (rowNum + 63) >>> 6;
+  }
+}
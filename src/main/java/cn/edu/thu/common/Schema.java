@@ -20,6 +20,8 @@
 package cn.edu.thu.common;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 
 public class Schema {
@@ -28,14 +30,45 @@ public class Schema {
   private Class<?>[] types = null;
   // optional, if the schema is bound to a specify tag
   private String tag = Config.DEFAULT_TAG;
+  // field name -> its first index, built on the first lookup because fields are usually filled in
+  // place after setFields(); once all are set, a field renamed in place needs indexFields()
+  private volatile FieldIndex fieldIndex = null;
 
   public int getIndex(String fieldName) {
-    for (int i = 0; i < fields.length; i++) {
-      if (fieldName.equals(fields[i])) {
-        return i;
+    FieldIndex index = fieldIndex;
+    if (index == null || index.fields != fields) {
+      index = buildIndex();
+    }
+    Integer i = index.indexes.get(fieldName);
+    if (i != null ? fieldName.equals(fields[i]) : index.complete) {
+      return i == null ? -1 : i;
+    }
+    // the fields were filled or changed in place since the index was built
+    i = buildIndex().indexes.get(fieldName);
+    return i == null ? -1 : i;
+  }
+
+  /**
+   * rebuild the index of the fields, which getIndex() otherwise does lazily
+   */
+  protected Map<String, Integer> indexFields() {
+    return buildIndex().indexes;
+  }
+
+  private FieldIndex buildIndex() {
+    String[] indexed = fields;
+    Map<String, Integer> indexes = new HashMap<>(indexed.length * 2);
+    boolean complete = true;
+    for (int i = 0; i < indexed.length; i++) {
+      if (indexed[i] != null) {
+        indexes.putIfAbsent(indexed[i], i);
+      } else {
+        complete = false;
       }
     }
-    return -1;
+    FieldIndex index = new FieldIndex(indexed, indexes, complete);
+    fieldIndex = index;
+    return index;
   }
 
   public Schema() {
@@ -75,6 +108,7 @@ public class Schema {
   public void setFields(String[] fields) {
     this.fields = fields;
     this.types = new Class[fields.length];
+    this.fieldIndex = null;
   }
 
   public int[] getPrecision() {
@@ -105,4 +139,19 @@ public class Schema {
         ", tag='" + tag + '\'' +
         '}';
   }
+
+  private static class FieldIndex {
+
+    // the array the index was built from, a new one is indexed again
+    private final String[] fields;
+    private final Map<String, Integer> indexes;
+    // false if some fields were not set yet, then a missing field is looked up again
+    private final boolean complete;
+
+    private FieldIndex(String[] fields, Map<String, Integer> indexes, boolean complete) {
+      this.fields = fields;
+      this.indexes = indexes;
+      this.complete = complete;
+    }
+  }
 }
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk catalog of inferred file schemas, so that reruns over the same dataset skip header
+ * parsing and type inference. An entry is keyed by the file path and is only valid while the size
+ * and the modification time of the file, and the parameters used for inference, are unchanged.
+ * <p>
+ * The catalog file is append-only: every new entry is appended when it is put, and later entries
+ * of the same path override earlier ones when the catalog is loaded. The worker processes of a
+ * load may share the catalog, so an entry is appended in one write under a file lock.
+ */
+public class SchemaCatalog {
+
+  private static final Logger logger = LoggerFactory.getLogger(SchemaCatalog.class);
+
+  private static final Map<String, SchemaCatalog> catalogs = new ConcurrentHashMap<>();
+
+  private final File catalogFile;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * @return the catalog stored in the given file, loaded once per process
+   */
+  public static SchemaCatalog open(String catalogFile) {
+    return catalogs.computeIfAbsent(new File(catalogFile).getAbsolutePath(), SchemaCatalog::new);
+  }
+
+  private SchemaCatalog(String catalogFile) {
+    this.catalogFile = new File(catalogFile);
+    load();
+  }
+
+  /**
+   * @param params the inference parameters the schema depends on, e.g., separator and the number
+   * of rows used for type inference
+   * @return a copy of the cached schema, or null if it is missing or stale
+   */
+  public Schema get(String file, String params) {
+    File f = new File(file);
+    Entry entry = entries.get(f.getAbsolutePath());
+    if (entry == null || entry.size != f.length() || entry.lastModified != f.lastModified()
+        || !entry.params.equals(params)) {
+      return null;
+    }
+    return copy(entry.schema);
+  }
+
+  public void put(String file, String params, Schema schema) {
+    File f = new File(file);
+    Entry entry = new Entry(f.getAbsolutePath(), f.length(), f.lastModified(), params,
+        copy(schema));
+    entries.put(entry.path, entry);
+    synchronized (this) {
+      File parent = catalogFile.getAbsoluteFile().getParentFile();
+      if (parent != null) {
+        parent.mkdirs();
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (FileOutputStream out = new FileOutputStream(catalogFile, true);
+          FileLock lock = out.getChannel().lock()) {
+        write(new DataOutputStream(bytes), entry);
+        FileChannel channel = out.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } catch (IOException e) {
+        logger.warn("Cannot write schema of {} to catalog {}", file, catalogFile, e);
+      }
+    }
+  }
+
+  private void load() {
+    if (!catalogFile.exists()) {
+      return;
+    }
+    boolean truncated = false;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(catalogFile)))) {
+      Entry entry;
+      while ((entry = read(in)) != null) {
+        entries.put(entry.path, entry);
+      }
+    } catch (EOFException e) {
+      logger.warn("Schema catalog {} ends with an incomplete entry, it will be rewritten",
+          catalogFile);
+      truncated = true;
+    } catch (IOException e) {
+      logger.warn("Cannot read schema catalog {}, it will be rewritten", catalogFile, e);
+      truncated = true;
+    }
+    if (truncated) {
+      rewrite();
+    }
+    logger.info("Loaded {} schemas from catalog {}", entries.size(), catalogFile);
+  }
+
+  private synchronized void rewrite() {
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(catalogFile, false)))) {
+      for (Entry entry : entries.values()) {
+        write(out, entry);
+      }
+    } catch (IOException e) {
+      logger.warn("Cannot rewrite schema catalog {}", catalogFile, e);
+    }
+  }
+
+  private static void write(DataOutputStream out, Entry entry) throws IOException {
+    Schema schema = entry.schema;
+    out.writeUTF(entry.path);
+    out.writeLong(entry.size);
+    out.writeLong(entry.lastModified);
+    out.writeUTF(entry.params);
+    out.writeUTF(schema.getTag());
+    out.writeInt(schema.getFields().length);
+    for (int i = 0; i < schema.getFields().length; i++) {
+      out.writeUTF(schema.getFields()[i]);
+      out.writeByte(typeToCode(schema.getTypes()[i]));
+      out.writeInt(schema.getPrecision()[i]);
+    }
+  }
+
+  /**
+   * @return null at the end of the catalog
+   * @throws EOFException if the last entry is incomplete
+   */
+  private static Entry read(DataInputStream in) throws IOException {
+    in.mark(1);
+    if (in.read() == -1) {
+      return null;
+    }
+    in.reset();
+    String path = in.readUTF();
+    long size = in.readLong();
+    long lastModified = in.readLong();
+    String params = in.readUTF();
+    Schema schema = new Schema();
+    schema.setTag(in.readUTF());
+    int fieldNum = in.readInt();
+    schema.setFields(new String[fieldNum]);
+    schema.setPrecision(new int[fieldNum]);
+    for (int i = 0; i < fieldNum; i++) {
+      schema.getFields()[i] = in.readUTF();
+      schema.getTypes()[i] = codeToType(in.readByte());
+      schema.getPrecision()[i] = in.readInt();
+    }
+    return new Entry(path, size, lastModified, params, schema);
+  }
+
+  private static Schema copy(Schema schema) {
+    Schema copy = new Schema(schema.getFields().clone(), schema.getPrecision().clone());
+    System.arraycopy(schema.getTypes(), 0, copy.getTypes(), 0, schema.getTypes().length);
+    copy.setTag(schema.getTag());
+    return copy;
+  }
+
+  private static byte typeToCode(Class<?> type) {
+    if (type == Long.class) {
+      return 'L';
+    }
+    if (type == Double.class) {
+      return 'D';
+    }
+    return 'S';
+  }
+
+  private static Class<?> codeToType(byte code) {
+    switch (code) {
+      case 'L':
+        return Long.class;
+      case 'D':
+        return Double.class;
+      default:
+        return String.class;
+    }
+  }
+
+  private static class Entry {
+
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final String params;
+    private final Schema schema;
+
+    private Entry(String path, long size, long lastModified, String params, Schema schema) {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.params = params;
+      this.schema = schema;
+    }
+  }
+}
@@ -1,7 +1,15 @@
 package cn.edu.thu.common;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class Statistics {
 
@@ -10,21 +18,171 @@ public class Statistics {
   public AtomicLong pointNum = new AtomicLong(0);
   public AtomicLong timeCost = new AtomicLong(0); // unit: ns
   public AtomicLong batchInsertNum = new AtomicLong(0);
+  // the batches of the warm-up, which the counters above and the latencies exclude
+  public AtomicLong warmUpBatchNum = new AtomicLong(0);
+  public AtomicLong warmUpRecordNum = new AtomicLong(0);
+  public AtomicLong warmUpPointNum = new AtomicLong(0);
+  public AtomicLong warmUpTimeCost = new AtomicLong(0); // unit: ns
+  // pipelined mode only, time parsers wait for a full queue and inserts wait for an empty one
+  public AtomicLong readerStallTime = new AtomicLong(0); // unit: ns
+  public AtomicLong writerStallTime = new AtomicLong(0); // unit: ns
+  // the points of the counters above loaded by the runs a resumed run continues
+  public AtomicLong resumedPointNum = new AtomicLong(0);
 
+  // one entry per writer thread, to check the load balance between threads
+  public Vector<WriterTime> writerTimes = new Vector<>();
+
+  // mixed mode only, of the queries run while loading, from their due time with QUERY_RATE
+  public final LatencyHistogram queryLatencies = new LatencyHistogram();
+
+  // open-loop mode only, by rate step
+  public final ConcurrentSkipListMap<Integer, RateStep> rateSteps = new ConcurrentSkipListMap<>();
+
+  // the latest latencies of all threads, each sample takes its own slot of the ring, so
+  // concurrent writers never race on the position or grow the list beyond vectorSize
   private final int vectorSize = 10000;
-  private static int pos = 0;
-  public Vector<Long> writeLatency = new Vector<>(vectorSize); // in nanoseconds
+  private final AtomicLongArray writeLatency = new AtomicLongArray(vectorSize); // in nanoseconds
+  private final AtomicLong latencyCount = new AtomicLong(0);
+  // all latencies, for percentiles
+  public final LatencyHistogram writeLatencies = new LatencyHistogram();
 
   public void addLatency(long timestampInNanosecond) {
-    if (writeLatency.size() < vectorSize) {
-      writeLatency.add(timestampInNanosecond);
-    } else {
-      if (pos >= vectorSize) {
-        pos = 0;
-      }
-      writeLatency.set(pos, timestampInNanosecond);
-      pos++;
+    addLatencySample(timestampInNanosecond);
+    writeLatencies.add(timestampInNanosecond);
+  }
+
+  private void addLatencySample(long timestampInNanosecond) {
+    long index = latencyCount.getAndIncrement();
+    writeLatency.set((int) (index % vectorSize), timestampInNanosecond);
+  }
+
+  /**
+   * @return the number of latencies in the circular list
+   */
+  public int getLatencySampleNum() {
+    return (int) Math.min(latencyCount.get(), vectorSize);
+  }
+
+  /**
+   * @return the latencies in the circular list, in nanoseconds
+   */
+  public List<Long> getLatencySamples() {
+    int sampleNum = getLatencySampleNum();
+    List<Long> samples = new ArrayList<>(sampleNum);
+    for (int i = 0; i < sampleNum; i++) {
+      samples.add(writeLatency.get(i));
+    }
+    return samples;
+  }
+
+  /**
+   * @param targetRate the points/s of all writers in the step, used if the step is new
+   */
+  public RateStep getRateStep(int step, double targetRate) {
+    return rateSteps.computeIfAbsent(step, s -> new RateStep(targetRate));
+  }
+
+  /**
+   * send the statistics of a worker process to the coordinator, which adds them to its own by
+   * mergeFrom(), the file number excluded
+   *
+   * @param origin the times of the writers are sent relative to it, because System.nanoTime() of
+   * different processes is not comparable
+   */
+  public void writeTo(DataOutputStream out, long origin) throws IOException {
+    writeTotalsTo(out);
+
+    out.writeInt(rateSteps.size());
+    for (Map.Entry<Integer, RateStep> entry : rateSteps.entrySet()) {
+      out.writeInt(entry.getKey());
+      out.writeDouble(entry.getValue().targetRate);
+      out.writeLong(entry.getValue().completedPointNum.get());
+      out.writeLong(entry.getValue().length.get());
+      entry.getValue().latencies.writeTo(out);
+    }
+
+    List<WriterTime> times = new ArrayList<>(writerTimes);
+    out.writeInt(times.size());
+    for (WriterTime writerTime : times) {
+      out.writeUTF(writerTime.name);
+      out.writeLong(writerTime.startTime - origin);
+      out.writeLong(writerTime.steadyStartTime - origin);
+      out.writeLong(writerTime.endTime - origin);
+      out.writeLong(writerTime.fileNum);
+      out.writeLong(writerTime.recordNum);
     }
+    out.flush();
+  }
+
+  /**
+   * add the statistics of a worker process sent by writeTo()
+   *
+   * @param origin the time of this process the relative times of the writers are added to
+   * @param worker prefixes the names of the writers
+   */
+  public void mergeFrom(DataInputStream in, long origin, String worker) throws IOException {
+    mergeTotalsFrom(in);
+
+    int stepNum = in.readInt();
+    for (int i = 0; i < stepNum; i++) {
+      // each worker sends its share of the rate
+      RateStep step = getRateStep(in.readInt(), 0);
+      step.targetRate += in.readDouble();
+      step.completedPointNum.addAndGet(in.readLong());
+      step.addLength(in.readLong());
+      step.latencies.mergeFrom(in);
+    }
+
+    int writerNum = in.readInt();
+    for (int i = 0; i < writerNum; i++) {
+      String name = worker + "/" + in.readUTF();
+      long startTime = origin + in.readLong();
+      long steadyStartTime = origin + in.readLong();
+      long endTime = origin + in.readLong();
+      writerTimes.add(new WriterTime(name, startTime, steadyStartTime, endTime, in.readLong(),
+          in.readLong()));
+    }
+  }
+
+  /**
+   * write the counters and the latencies, which do not depend on the time of this process, e.g.,
+   * to carry them over to a resumed run
+   */
+  public void writeTotalsTo(DataOutputStream out) throws IOException {
+    for (AtomicLong counter : counters()) {
+      out.writeLong(counter.get());
+    }
+    List<Long> samples = getLatencySamples();
+    out.writeInt(samples.size());
+    for (long sample : samples) {
+      out.writeLong(sample);
+    }
+    writeLatencies.writeTo(out);
+    queryLatencies.writeTo(out);
+  }
+
+  /**
+   * add the counters and the latencies written by writeTotalsTo()
+   */
+  public void mergeTotalsFrom(DataInputStream in) throws IOException {
+    for (AtomicLong counter : counters()) {
+      counter.addAndGet(in.readLong());
+    }
+    int sampleNum = in.readInt();
+    for (int i = 0; i < sampleNum; i++) {
+      addLatencySample(in.readLong());
+    }
+    writeLatencies.mergeFrom(in);
+    queryLatencies.mergeFrom(in);
+  }
+
+  /**
+   * @return the counters summed over processes, in the order they are sent
+   */
+  private AtomicLong[] counters() {
+    return new AtomicLong[]{recordNum, pointNum, timeCost, batchInsertNum, readerStallTime,
+        writerStallTime, warmUpBatchNum, warmUpRecordNum, warmUpPointNum, warmUpTimeCost,
+        resumedPointNum};
   }
 
   public double getAverageAllLatencyInMillisecond() {
@@ -32,12 +190,13 @@ public class Statistics {
   }
 
   public double getAverageCircularLatencyInMillisecond() {
+    int sampleNum = getLatencySampleNum();
     double sum = 0;
-    for (int i = 0; i <= writeLatency.size() - 1; i++) {
+    for (int i = 0; i < sampleNum; i++) {
       sum += (writeLatency.get(i) * 1.0
           / 1000_000F); // convert nanosecond to millisecond beforehand
     }
-    return sum / writeLatency.size();
+    return sum / sampleNum;
   }
 
   public Statistics() {
@@ -51,4 +210,51 @@ public class Statistics {
   public double speed() {
     return ((double) pointNum.get()) / ((double) timeCost.get()) * 1000_000_000L;
   }
+
+  public static class RateStep {
+
+    public double targetRate; // points/s of all writers
+    // points of the batches completed in the step, whenever they were due
+    public final AtomicLong completedPointNum = new AtomicLong(0);
+    // the time the step lasted so far, the longest of all writers, unit: ns
+    public final AtomicLong length = new AtomicLong(0);
+    // latencies from the due time of the batches due in the step
+    public final LatencyHistogram latencies = new LatencyHistogram();
+
+    public RateStep(double targetRate) {
+      this.targetRate = targetRate;
+    }
+
+    /**
+     * @param length the time a writer spent in the step, unit: ns
+     */
+    public void addLength(long length) {
+      this.length.accumulateAndGet(length, Math::max);
+    }
+  }
+
+  public static class WriterTime {
+
+    public final String name;
+    public final long startTime; // unit: ns, from System.nanoTime()
+    public final long endTime; // unit: ns, from System.nanoTime()
+    // the end of the warm-up, startTime without one, endTime if it never ended
+    public final long steadyStartTime; // unit: ns, from System.nanoTime()
+    public final long fileNum;
+    public final long recordNum;
+
+    public WriterTime(String name, long startTime, long endTime, long fileNum, long recordNum) {
+      this(name, startTime, startTime, endTime, fileNum, recordNum);
+    }
+
+    public WriterTime(String name, long startTime, long steadyStartTime, long endTime,
+        long fileNum, long recordNum) {
+      this.name = name;
+      this.startTime = startTime;
+      this.steadyStartTime = steadyStartTime;
+      this.endTime = endTime;
+      this.fileNum = fileNum;
+      this.recordNum = recordNum;
+    }
+  }
 }
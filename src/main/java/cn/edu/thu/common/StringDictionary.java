@@ -0,0 +1,209 @@
+package cn.edu.thu.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns the text values of a reader to small integer ids. Each id keeps one String and its UTF-8
+ * bytes, so a repeated value is neither materialized nor encoded again, and sinks write the same
+ * bytes for every occurrence. Values are looked up either as Strings or as UTF-8 bytes, e.g., in a
+ * mapped file, without decoding them first.
+ * <p>
+ * Once maxSize values are interned, new values get no id and are handled as plain Strings. A
+ * dictionary is not thread-safe, the bytes it returns may be read by other threads.
+ */
+public class StringDictionary {
+
+  // long values rarely repeat, they are not interned
+  private static final int MAX_VALUE_LENGTH = 256;
+
+  private final int maxSize;
+  private int size = 0;
+  private String[] values = new String[16];
+  private byte[][] encodedValues = new byte[16][];
+  private int[] hashes = new int[16];
+  // open addressing by the hash of the bytes, a slot holds id + 1 and 0 if it is empty
+  private int[] slots = new int[32];
+  private final Map<String, Integer> stringIds = new HashMap<>();
+
+  /**
+   * @param maxSize the maximum number of interned values, 0 to intern none
+   */
+  public StringDictionary(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return the id of the value, which is added if it is new, or -1 if it cannot be interned
+   */
+  public int getId(String value) {
+    Integer id = stringIds.get(value);
+    if (id != null) {
+      return id;
+    }
+    if (size >= maxSize || value.length() > MAX_VALUE_LENGTH) {
+      return -1;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(bytes, 0, bytes.length);
+    int slot = findSlot(bytes, 0, bytes.length, hash);
+    if (slots[slot] != 0) {
+      // the same bytes were added with another String, e.g., from malformed UTF-8
+      return slots[slot] - 1;
+    }
+    return add(value, bytes, hash, slot);
+  }
+
+  /**
+   * @return the id of the UTF-8 value, which is added if it is new, or -1 if it cannot be interned
+   */
+  public int getId(byte[] bytes, int offset, int length) {
+    int hash = hash(bytes, offset, length);
+    int slot = findSlot(bytes, offset, length, hash);
+    if (slots[slot] != 0) {
+      return slots[slot] - 1;
+    }
+    if (size >= maxSize || length > MAX_VALUE_LENGTH) {
+      return -1;
+    }
+    byte[] copy = Arrays.copyOfRange(bytes, offset, offset + length);
+    return add(new String(copy, StandardCharsets.UTF_8), copy, hash, slot);
+  }
+
+  /**
+   * @return the id of the UTF-8 value in [offset, offset + length) of the buffer, which is added
+   * if it is new, or -1 if it cannot be interned
+   */
+  public int getId(ByteBuffer buffer, int offset, int length) {
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + buffer.get(offset + i);
+    }
+    int mask = slots.length - 1;
+    int slot = spread(hash) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (hashes[id] == hash && equals(encodedValues[id], buffer, offset, length)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (size >= maxSize || length > MAX_VALUE_LENGTH) {
+      return -1;
+    }
+    byte[] copy = new byte[length];
+    for (int i = 0; i < length; i++) {
+      copy[i] = buffer.get(offset + i);
+    }
+    return add(new String(copy, StandardCharsets.UTF_8), copy, hash, slot);
+  }
+
+  /**
+   * @return the interned instance of the value, or the value itself if it cannot be interned
+   */
+  public String intern(String value) {
+    int id = getId(value);
+    return id < 0 ? value : values[id];
+  }
+
+  public String getString(int id) {
+    return values[id];
+  }
+
+  /**
+   * @return the UTF-8 bytes of the value, shared by all its occurrences and not to be modified
+   */
+  public byte[] getUtf8(int id) {
+    return encodedValues[id];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private int add(String value, byte[] bytes, int hash, int slot) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+      encodedValues = Arrays.copyOf(encodedValues, size * 2);
+      hashes = Arrays.copyOf(hashes, size * 2);
+    }
+    int id = size++;
+    values[id] = value;
+    encodedValues[id] = bytes;
+    hashes[id] = hash;
+    slots[slot] = id + 1;
+    stringIds.put(value, id);
+    // keep the load factor under 1/2
+    if (size * 2 > slots.length) {
+      rehash();
+    }
+    return id;
+  }
+
+  private void rehash() {
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = spread(hashes[id]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id + 1;
+    }
+  }
+
+  /**
+   * @return the slot of the value, or the empty slot where it should be added
+   */
+  private int findSlot(byte[] bytes, int offset, int length, int hash) {
+    int mask = slots.length - 1;
+    int slot = spread(hash) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (hashes[id] == hash && equals(encodedValues[id], bytes, offset, length)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static int hash(byte[] bytes, int offset, int length) {
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + bytes[offset + i];
+    }
+    return hash;
+  }
+
+  private static boolean equals(byte[] value, byte[] bytes, int offset, int length) {
+    if (value.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (value[i] != bytes[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean equals(byte[] value, ByteBuffer buffer, int offset, int length) {
+    if (value.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (value[i] != buffer.get(offset + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -4,16 +4,52 @@ package cn.edu.thu.common;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.concurrent.Semaphore;
 
 /**
  * From https://www.cnblogs.com/zhuawang/archive/2012/12/08/2809380.html
  */
 public class ThuHttpRequest {
 
+  // the requests in flight when the connections are pooled, null if they are not
+  private static volatile Semaphore connections;
+
+  /**
+   * keep up to size connections per server alive and send at most size requests at once, so all
+   * the clients of the process share size keep-alive connections; the first call sets the size
+   */
+  public static synchronized void setConnectionPoolSize(int size) {
+    if (connections != null) {
+      return;
+    }
+    // read when the JDK first caches an idle connection, so before any request
+    System.setProperty("http.maxConnections", String.valueOf(size));
+    connections = new Semaphore(size, true);
+  }
+
+  private static void acquireConnection() throws InterruptedIOException {
+    if (connections == null) {
+      return;
+    }
+    try {
+      connections.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a connection");
+    }
+  }
+
+  private static void releaseConnection() {
+    if (connections != null) {
+      connections.release();
+    }
+  }
+
   /**
    * 向指定URL发送GET方法的请求
    *
@@ -24,6 +60,7 @@ public class ThuHttpRequest {
   public static String sendGet(String url, String param) throws IOException {
     String result = "";
     BufferedReader in = null;
+    acquireConnection();
     try {
       String urlNameString = url;
       if (param != null) {
@@ -63,6 +100,8 @@ public class ThuHttpRequest {
         }
       } catch (Exception e2) {
         throw e2;
+      } finally {
+        releaseConnection();
       }
     }
     return result;
@@ -79,6 +118,7 @@ public class ThuHttpRequest {
     PrintWriter out = null;
     BufferedReader in = null;
     String result = "";
+    acquireConnection();
     try {
       URL realUrl = new URL(url);
       // 打开和URL之间的连接
@@ -111,7 +151,12 @@ public class ThuHttpRequest {
     }
     //使用finally块来关闭输出流、输入流
     finally {
-      close(out, in);
+      try {
+        close(out, in);
+      } finally {
+        // the connection is back in the keep-alive cache once the streams are closed
+        releaseConnection();
+      }
     }
     return result;
   }
@@ -120,6 +165,7 @@ public class ThuHttpRequest {
     PrintWriter out = null;
     BufferedReader in = null;
     long cnt = 0;
+    acquireConnection();
     try {
       URL realUrl = new URL(url);
       // 打开和URL之间的连接
@@ -154,7 +200,12 @@ public class ThuHttpRequest {
     }
     //使用finally块来关闭输出流、输入流
     finally {
-      close(out, in);
+      try {
+        close(out, in);
+      } finally {
+        // the connection is back in the keep-alive cache once the streams are closed
+        releaseConnection();
+      }
     }
     return cnt;
   }
@@ -163,6 +214,7 @@ public class ThuHttpRequest {
     PrintWriter out = null;
     BufferedReader in = null;
     String result = "";
+    acquireConnection();
     try {
       URL realUrl = new URL(url);
       // 打开和URL之间的连接
@@ -195,7 +247,12 @@ public class ThuHttpRequest {
     }
     //使用finally块来关闭输出流、输入流
     finally {
-      close(out, in);
+      try {
+        close(out, in);
+      } finally {
+        // the connection is back in the keep-alive cache once the streams are closed
+        releaseConnection();
+      }
     }
     return result;
   }
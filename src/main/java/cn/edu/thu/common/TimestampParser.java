@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.common;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Parses timestamps into epoch milliseconds directly from characters, replacing per-row
+ * SimpleDateFormat/Date objects. Dates are interpreted in the default time zone, the same as
+ * SimpleDateFormat does.
+ * <p>
+ * The millisecond value of the day/hour prefix is cached, so consecutive rows of the same hour only
+ * parse minutes, seconds and the fraction. The detected format and the cache are immutable
+ * snapshots published through volatile fields, so an instance may be shared between threads.
+ * Readers keep one instance and call reset() for every file to detect the format again.
+ */
+public class TimestampParser {
+
+  public enum Format {
+    /**
+     * decimal milliseconds since epoch
+     */
+    EPOCH_MILLIS,
+    /**
+     * yyyy-MM-dd?HH:mm:ss[.fraction], '?' being any single separator such as 'T', ' ', '-' or ','
+     */
+    DATE_TIME,
+    /**
+     * yyyyMMdd
+     */
+    BASIC_DATE
+  }
+
+  // "yyyy-MM-dd?HH"
+  private static final int DATE_HOUR_LENGTH = 13;
+  private static final int BASIC_DATE_LENGTH = 8;
+
+  private final ZoneId zoneId = ZoneId.systemDefault();
+  private final Format fixedFormat;
+  private volatile Format format;
+  private volatile PrefixCache cache;
+
+  /**
+   * detect the format from the first parsed value
+   */
+  public TimestampParser() {
+    this.fixedFormat = null;
+  }
+
+  public TimestampParser(Format format) {
+    this.fixedFormat = format;
+    this.format = format;
+  }
+
+  /**
+   * forget the detected format, e.g., when a new file is opened
+   */
+  public void reset() {
+    format = fixedFormat;
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  public long parse(CharSequence s) {
+    return parse(s, 0, s.length());
+  }
+
+  /**
+   * @throws NumberFormatException if s[start, end) does not match the format
+   */
+  public long parse(CharSequence s, int start, int end) {
+    Format f = format;
+    if (f == null) {
+      f = detect(s, start, end);
+      format = f;
+    }
+    switch (f) {
+      case EPOCH_MILLIS:
+        return parseEpochMillis(s, start, end);
+      case DATE_TIME:
+        return parseDateTime(s, start, end);
+      case BASIC_DATE:
+        return parseBasicDate(s, start, end);
+      default:
+        throw new IllegalStateException("unknown format " + f);
+    }
+  }
+
+  public static Format detect(CharSequence s, int start, int end) {
+    if (end - start >= DATE_HOUR_LENGTH + 6 && s.charAt(start + 4) == '-'
+        && s.charAt(start + 7) == '-' && s.charAt(start + 13) == ':') {
+      return Format.DATE_TIME;
+    }
+    return Format.EPOCH_MILLIS;
+  }
+
+  private long parseEpochMillis(CharSequence s, int start, int end) {
+    if (start == end) {
+      throw new NumberFormatException("empty timestamp");
+    }
+    boolean negative = s.charAt(start) == '-';
+    int pos = negative || s.charAt(start) == '+' ? start + 1 : start;
+    if (pos == end) {
+      throw new NumberFormatException("malformed timestamp: " + s.subSequence(start, end));
+    }
+    if (end - pos > 18) {
+      // may overflow, e.g., epoch nanoseconds, Long.parseLong checks it
+      return Long.parseLong(s.subSequence(start, end).toString());
+    }
+    long value = 0;
+    for (; pos < end; pos++) {
+      value = value * 10 + digit(s, pos, start, end);
+    }
+    return negative ? -value : value;
+  }
+
+  private long parseDateTime(CharSequence s, int start, int end) {
+    // yyyy-MM-dd?HH:mm:ss
+    if (end - start < DATE_HOUR_LENGTH + 6 || s.charAt(start + 13) != ':'
+        || s.charAt(start + 16) != ':') {
+      throw new NumberFormatException("malformed timestamp: " + s.subSequence(start, end));
+    }
+    long hourMillis = prefixMillis(s, start, DATE_HOUR_LENGTH);
+    int minute = twoDigits(s, start + 14, start, end);
+    int second = twoDigits(s, start + 17, start, end);
+
+    // an optional fraction of a second, more than 3 digits are truncated to milliseconds
+    int millis = 0;
+    int pos = start + 19;
+    if (pos < end && s.charAt(pos) == '.') {
+      int scale = 100;
+      for (pos++; pos < end; pos++) {
+        char c = s.charAt(pos);
+        if (c < '0' || c > '9') {
+          break;
+        }
+        millis += (c - '0') * scale;
+        scale /= 10;
+      }
+    }
+    return hourMillis + minute * 60_000L + second * 1000L + millis;
+  }
+
+  private long parseBasicDate(CharSequence s, int start, int end) {
+    if (end - start != BASIC_DATE_LENGTH) {
+      throw new NumberFormatException("malformed timestamp: " + s.subSequence(start, end));
+    }
+    return prefixMillis(s, start, BASIC_DATE_LENGTH);
+  }
+
+  /**
+   * @return the epoch milliseconds of the date (and hour) in s[start, start + length)
+   */
+  private long prefixMillis(CharSequence s, int start, int length) {
+    PrefixCache c = cache;
+    if (c != null && c.matches(s, start, length)) {
+      return c.millis;
+    }
+
+    int end = start + length;
+    int year;
+    int month;
+    int day;
+    int hour = 0;
+    if (length == BASIC_DATE_LENGTH) {
+      year = twoDigits(s, start, start, end) * 100 + twoDigits(s, start + 2, start, end);
+      month = twoDigits(s, start + 4, start, end);
+      day = twoDigits(s, start + 6, start, end);
+    } else {
+      year = twoDigits(s, start, start, end) * 100 + twoDigits(s, start + 2, start, end);
+      month = twoDigits(s, start + 5, start, end);
+      day = twoDigits(s, start + 8, start, end);
+      hour = twoDigits(s, start + 11, start, end);
+    }
+
+    long millis;
+    try {
+      millis = LocalDateTime.of(year, month, day, hour, 0).atZone(zoneId).toInstant()
+          .toEpochMilli();
+    } catch (DateTimeException e) {
+      throw new NumberFormatException("malformed timestamp: " + s.subSequence(start, end));
+    }
+    cache = new PrefixCache(s, start, length, millis);
+    return millis;
+  }
+
+  private static int twoDigits(CharSequence s, int pos, int start, int end) {
+    return digit(s, pos, start, end) * 10 + digit(s, pos + 1, start, end);
+  }
+
+  private static int digit(CharSequence s, int pos, int start, int end) {
+    int d = s.charAt(pos) - '0';
+    if (d < 0 || d > 9) {
+      throw new NumberFormatException("malformed timestamp: " + s.subSequence(start, end));
+    }
+    return d;
+  }
+
+  private static class PrefixCache {
+
+    private final char[] prefix;
+    private final long millis;
+
+    private PrefixCache(CharSequence s, int start, int length, long millis) {
+      this.prefix = new char[length];
+      for (int i = 0; i < length; i++) {
+        prefix[i] = s.charAt(start + i);
+      }
+      this.millis = millis;
+    }
+
+    private boolean matches(CharSequence s, int start, int length) {
+      if (prefix.length != length) {
+        return false;
+      }
+      // compare backwards, the hour changes more often than the year
+      for (int i = length - 1; i >= 0; i--) {
+        if (prefix[i] != s.charAt(start + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package cn.edu.thu.common;
+
+import java.lang.reflect.Method;
+
+/**
+ * Virtual threads of JDK 21+, looked up by reflection so that the project still builds and runs on
+ * JDK 8, where isSupported() is false. Build with the virtual-threads profile to target JDK 21.
+ */
+public class VirtualThreads {
+
+  // Thread.ofVirtual(), Thread.Builder.name(String), Thread.Builder.start(Runnable) and
+  // Thread.Builder.unstarted(Runnable)
+  private static final Method[] BUILDER_METHODS = findBuilderMethods();
+
+  private VirtualThreads() {
+  }
+
+  public static boolean isSupported() {
+    return BUILDER_METHODS != null;
+  }
+
+  /**
+   * start the task on a new virtual thread if useVirtual, otherwise on a new platform thread
+   */
+  public static Thread start(boolean useVirtual, String name, Runnable task) {
+    if (!useVirtual) {
+      Thread thread = new Thread(task, name);
+      thread.start();
+      return thread;
+    }
+    return (Thread) invokeBuilder(name, 2, task);
+  }
+
+  /**
+   * @return a virtual thread of the task if useVirtual, otherwise a platform thread, not started
+   */
+  public static Thread newThread(boolean useVirtual, String name, Runnable task) {
+    if (!useVirtual) {
+      return new Thread(task, name);
+    }
+    return (Thread) invokeBuilder(name, 3, task);
+  }
+
+  private static Object invokeBuilder(String name, int method, Runnable task) {
+    if (!isSupported()) {
+      throw new IllegalStateException("virtual threads are not supported by this JVM");
+    }
+    try {
+      Object builder = BUILDER_METHODS[0].invoke(null);
+      builder = BUILDER_METHODS[1].invoke(builder, name);
+      return BUILDER_METHODS[method].invoke(builder, task);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("cannot create virtual thread " + name, e);
+    }
+  }
+
+  private static Method[] findBuilderMethods() {
+    // virtual threads are a preview feature before JDK 21
+    String version = System.getProperty("java.specification.version");
+    if (version.startsWith("1.") || Integer.parseInt(version) < 21) {
+      return null;
+    }
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      return new Method[]{Thread.class.getMethod("ofVirtual"),
+          builder.getMethod("name", String.class), builder.getMethod("start", Runnable.class),
+          builder.getMethod("unstarted", Runnable.class)};
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package cn.edu.thu.database;
+
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.VirtualThreads;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads a client sends its writes on when ASYNC_INSERT_WINDOW > 0, one per batch the client
+ * may have in flight. Each client has its own inserter, so the window is per client.
+ */
+public class AsyncInserter {
+
+  private static final AtomicInteger inserterNum = new AtomicInteger(0);
+
+  private final ExecutorService executor;
+
+  public AsyncInserter(Config config) {
+    String name = "async-insert-" + inserterNum.getAndIncrement() + "-";
+    AtomicInteger threadNum = new AtomicInteger(0);
+    executor = Executors.newFixedThreadPool(config.ASYNC_INSERT_WINDOW, task -> {
+      Thread thread = VirtualThreads.newThread(config.VIRTUAL_THREADS,
+          name + threadNum.getAndIncrement(), task);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @param write sends a converted batch and handles its errors like the synchronous insert
+   * @return completes with the time from this call until the write returned, in ns
+   */
+  public CompletableFuture<Long> submit(Runnable write) {
+    long start = System.nanoTime();
+    return CompletableFuture.supplyAsync(() -> {
+      write.run();
+      return System.nanoTime() - start;
+    }, executor);
+  }
+
+  /**
+   * wait for the submitted writes and stop the threads
+   */
+  public void shutdown() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
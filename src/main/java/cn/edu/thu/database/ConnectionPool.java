@@ -0,0 +1,162 @@
+package cn.edu.thu.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Up to CONNECTION_POOL_SIZE connections to one server, shared by all the clients of this process
+ * that connect to it, so the number of server connections does not follow THREAD_NUM. Each write
+ * borrows a connection and waits while all of them are in use. Connections are opened on demand,
+ * a broken one is discarded and replaced by a new one, and they are closed when the last client
+ * releases the pool, or when they are given back if they were borrowed then.
+ *
+ * @param <T> the connection, which only one thread uses at a time
+ */
+public class ConnectionPool<T> {
+
+  private static Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+  // the pools in use by key, e.g., the url of the server
+  private static final Map<String, ConnectionPool<?>> pools = new HashMap<>();
+  // how often a borrow waiting for an idle connection checks whether one was discarded
+  private static final long DISCARD_CHECK_INTERVAL = 100; // unit: ms
+
+  public interface Opener<T> {
+
+    T open() throws Exception;
+  }
+
+  public interface Closer<T> {
+
+    void close(T connection) throws Exception;
+  }
+
+  private final String key;
+  private final int size;
+  private final Opener<T> opener;
+  private final Closer<T> closer;
+  private final BlockingQueue<T> idle;
+  // guarded by this
+  private int openedNum = 0;
+  // set once the last client released the pool, connections given back later are closed,
+  // guarded by this
+  private boolean released = false;
+  // the clients using the pool, guarded by the class
+  private int clientNum = 0;
+
+  private ConnectionPool(String key, int size, Opener<T> opener, Closer<T> closer) {
+    this.key = key;
+    this.size = size;
+    this.opener = opener;
+    this.closer = closer;
+    this.idle = new ArrayBlockingQueue<>(size);
+  }
+
+  /**
+   * @param key identifies the server, clients with the same key share the pool
+   * @return the pool of the key, which the client releases with release() once it is closed
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> ConnectionPool<T> acquire(String key, int size, Opener<T> opener,
+      Closer<T> closer) {
+    synchronized (ConnectionPool.class) {
+      ConnectionPool<T> pool = (ConnectionPool<T>) pools.get(key);
+      if (pool == null) {
+        pool = new ConnectionPool<>(key, size, opener, closer);
+        pools.put(key, pool);
+        logger.info("connection pool of {} connections to {}", size, key);
+      }
+      pool.clientNum++;
+      return pool;
+    }
+  }
+
+  /**
+   * @return an idle connection, a new one if fewer than the pool size are open
+   */
+  public T borrow() throws Exception {
+    while (true) {
+      T connection = idle.poll();
+      if (connection != null) {
+        return connection;
+      }
+      synchronized (this) {
+        if (openedNum < size) {
+          // the failed open is not counted, the next borrow tries again
+          connection = opener.open();
+          openedNum++;
+          return connection;
+        }
+      }
+      // a discarded connection is not given back, then a new one is opened in its place
+      connection = idle.poll(DISCARD_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+      if (connection != null) {
+        return connection;
+      }
+    }
+  }
+
+  /**
+   * @param connection borrowed from this pool, which other writes may use from now on
+   */
+  public void giveBack(T connection) {
+    synchronized (this) {
+      if (!released) {
+        idle.offer(connection);
+        return;
+      }
+    }
+    // borrowed while the last client released the pool
+    close(connection);
+  }
+
+  /**
+   * @param connection borrowed from this pool and broken, e.g., its server went away, which is
+   * closed instead of being given back
+   */
+  public void discard(T connection) {
+    synchronized (this) {
+      openedNum--;
+    }
+    try {
+      closer.close(connection);
+    } catch (Exception e) {
+      logger.warn("Failed to close a broken connection to {}", key, e);
+    }
+  }
+
+  /**
+   * the client no longer uses the pool, the connections are closed with the last client
+   */
+  public void release() {
+    synchronized (ConnectionPool.class) {
+      if (--clientNum > 0) {
+        return;
+      }
+      pools.remove(key);
+    }
+    List<T> connections = new ArrayList<>();
+    synchronized (this) {
+      released = true;
+      idle.drainTo(connections);
+    }
+    for (T connection : connections) {
+      close(connection);
+    }
+  }
+
+  private void close(T connection) {
+    try {
+      closer.close(connection);
+    } catch (Exception e) {
+      logger.error("Failed to close a connection to {}", key, e);
+    }
+  }
+}
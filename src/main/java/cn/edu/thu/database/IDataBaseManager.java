@@ -2,8 +2,10 @@ package cn.edu.thu.database;
 
 import cn.edu.thu.common.Record;
 
+import cn.edu.thu.common.RecordBatch;
 import cn.edu.thu.common.Schema;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface IDataBaseManager {
 
@@ -12,6 +14,36 @@ public interface IDataBaseManager {
      */
     long insertBatch(List<Record> records, Schema schema);
 
+    /**
+     * insert a columnar batch, sinks that write columns override it to skip the rows
+     *
+     * @return time cost in ns
+     */
+    default long insertColumnarBatch(RecordBatch batch, Schema schema) {
+        return insertBatch(batch.toRecords(), schema);
+    }
+
+    /**
+     * insert without waiting for the database when ASYNC_INSERT_WINDOW > 0, the records must not
+     * be modified until the future completes. Sinks without asynchronous writes insert before
+     * returning.
+     *
+     * @return completes with the time from this call until the batch is written, in ns
+     */
+    default CompletableFuture<Long> insertBatchAsync(List<Record> records, Schema schema) {
+        return CompletableFuture.completedFuture(insertBatch(records, schema));
+    }
+
+    /**
+     * the columnar counterpart of insertBatchAsync(), the batch must not be modified until the
+     * future completes
+     *
+     * @return completes with the time from this call until the batch is written, in ns
+     */
+    default CompletableFuture<Long> insertColumnarBatchAsync(RecordBatch batch, Schema schema) {
+        return CompletableFuture.completedFuture(insertColumnarBatch(batch, schema));
+    }
+
 
     /**
      * init server once in main thread
@@ -0,0 +1,122 @@
+package cn.edu.thu.database;
+
+import cn.edu.thu.common.Schema;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+import org.apache.tsfile.utils.BitMap;
+import org.apache.tsfile.write.record.Tablet;
+import org.apache.tsfile.write.schema.IMeasurementSchema;
+
+/**
+ * Tablets of the recently inserted devices and schemas, reset and refilled by the following
+ * batches instead of being allocated per batch. A tablet must not be used after the next get() of
+ * the same cache, so each sink keeps its own cache.
+ */
+public class TabletCache {
+
+  // a tablet of 1000 sensors and 1000 rows takes about 8MB
+  private static final int MAX_TABLET_NUM = 4;
+
+  private final Map<Key, Entry> tablets = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, TabletCache.Entry> eldest) {
+      return size() > MAX_TABLET_NUM;
+    }
+  };
+
+  /**
+   * @param measurementSchemas creates the measurement schemas of a new tablet
+   * @return an empty tablet of the device with at least rowNum rows and a bitmap per column, none
+   * of which is marked
+   */
+  public Tablet get(String deviceId, Schema schema, int rowNum,
+      Supplier<List<IMeasurementSchema>> measurementSchemas) {
+    Key key = new Key(deviceId, schema);
+    Entry entry = tablets.get(key);
+    if (entry == null || entry.capacity < rowNum
+        || !Arrays.equals(entry.types, schema.getTypes())) {
+      entry = new Entry(new Tablet(deviceId, measurementSchemas.get(), rowNum),
+          schema.getTypes().clone(), rowNum);
+      tablets.put(key, entry);
+      return entry.tablet;
+    }
+
+    Tablet tablet = entry.tablet;
+    tablet.rowSize = 0;
+    for (BitMap bitMap : tablet.bitMaps) {
+      bitMap.reset();
+    }
+    return tablet;
+  }
+
+  public void clear() {
+    tablets.clear();
+  }
+
+  /**
+   * @return a new tablet of at least rowNum rows, with a bitmap per column, that is not cached
+   */
+  public static Tablet newTablet(String deviceId, List<IMeasurementSchema> measurementSchemas,
+      int rowNum) {
+    Tablet tablet = new Tablet(deviceId, measurementSchemas, rowNum);
+    initBitMaps(tablet, rowNum);
+    return tablet;
+  }
+
+  private static void initBitMaps(Tablet tablet, int capacity) {
+    tablet.bitMaps = new BitMap[tablet.values.length];
+    for (int i = 0; i < tablet.bitMaps.length; i++) {
+      tablet.bitMaps[i] = new BitMap(capacity);
+    }
+  }
+
+  private static class Entry {
+
+    private final Tablet tablet;
+    private final Class<?>[] types;
+    private final int capacity;
+
+    private Entry(Tablet tablet, Class<?>[] types, int capacity) {
+      this.tablet = tablet;
+      this.types = types;
+      this.capacity = capacity;
+      initBitMaps(tablet, capacity);
+    }
+  }
+
+  /**
+   * the schema is compared by identity, which is stable for the batches of a reader, so a get()
+   * does not hash or compare all its fields
+   */
+  private static class Key {
+
+    private final String deviceId;
+    private final Schema schema;
+
+    private Key(String deviceId, Schema schema) {
+      this.deviceId = deviceId;
+      this.schema = schema;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return schema == key.schema && Objects.equals(deviceId, key.deviceId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Objects.hashCode(deviceId) + System.identityHashCode(schema);
+    }
+  }
+}
@@ -2,6 +2,7 @@ package cn.edu.thu.database.fileformat;
 
 import cn.edu.thu.common.Config;
 import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
 import cn.edu.thu.common.Schema;
 import cn.edu.thu.database.IDataBaseManager;
 
@@ -19,6 +20,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.orc.*;
 import org.apache.orc.OrcFile.Version;
 import org.apache.orc.storage.ql.exec.vector.BytesColumnVector;
+import org.apache.orc.storage.ql.exec.vector.ColumnVector;
 import org.apache.orc.storage.ql.exec.vector.DoubleColumnVector;
 import org.apache.orc.storage.ql.exec.vector.LongColumnVector;
 import org.apache.orc.storage.ql.exec.vector.VectorizedRowBatch;
@@ -46,6 +48,10 @@ public class ORCManager implements IDataBaseManager {
 
   private boolean closeOnTagChanged = true;
 
+  // reused by the following batches of the same orc schema
+  private VectorizedRowBatch rowBatch;
+  private TypeDescription rowBatchSchema;
+
   public ORCManager(Config config) {
     this.config = config;
     this.filePath = config.FILE_PATH;
@@ -157,8 +163,10 @@ public class ORCManager implements IDataBaseManager {
 
     Writer writer = getWriter(tag, schema);
 
-    VectorizedRowBatch batch = writer.getSchema().createRowBatch(records.size());
+    VectorizedRowBatch batch = getRowBatch(writer, records.size());
 
+    String lastDevice = null;
+    byte[] deviceBytes = null;
     for (int i = 0; i < records.size(); i++) {
       Record record = records.get(i);
       LongColumnVector time = (LongColumnVector) batch.cols[0];
@@ -166,7 +174,12 @@ public class ORCManager implements IDataBaseManager {
 
       if (!config.splitFileByDevice) {
         BytesColumnVector device = (BytesColumnVector) batch.cols[1];
-        device.setVal(i, record.tag.getBytes(StandardCharsets.UTF_8));
+        // the records of a device share their tag, encode it once
+        if (!Objects.equals(record.tag, lastDevice)) {
+          lastDevice = record.tag;
+          deviceBytes = lastDevice.getBytes(StandardCharsets.UTF_8);
+        }
+        device.setVal(i, deviceBytes);
       }
 
       for (int j = 0; j < schema.getFields().length; j++) {
@@ -186,10 +199,114 @@ public class ORCManager implements IDataBaseManager {
       }
     }
 
+    // the reused batch may be larger than the records
+    if (batch.size > 0) {
+      try {
+        writer.addRowBatch(batch);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    lastTag = tag;
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * the same rows as insertBatch(), but the columns are copied from the batch instead of being
+   * filled row by row
+   */
+  @Override
+  public long insertColumnarBatch(RecordBatch recordBatch, Schema schema) {
+
+    long start = System.nanoTime();
+
+    String tag = recordBatch.getTag(0);
+    if(closeOnTagChanged && config.splitFileByDevice  && !Objects.equals(tag, lastTag)) {
+      close();
+    }
+
+    Writer writer = getWriter(tag, schema);
+
+    int size = recordBatch.size();
+    VectorizedRowBatch batch = getRowBatch(writer, size);
+    LongColumnVector time = (LongColumnVector) batch.cols[0];
+    recordBatch.copyTimestamps(time.vector);
+
+    int firstFieldCol = 1;
+    if (!config.splitFileByDevice) {
+      BytesColumnVector device = (BytesColumnVector) batch.cols[1];
+      String lastDevice = null;
+      byte[] deviceBytes = null;
+      for (int i = 0; i < size; i++) {
+        if (!Objects.equals(recordBatch.getTag(i), lastDevice)) {
+          lastDevice = recordBatch.getTag(i);
+          deviceBytes = lastDevice.getBytes(StandardCharsets.UTF_8);
+        }
+        device.setVal(i, deviceBytes);
+      }
+      firstFieldCol = 2;
+    }
+
+    for (int j = 0; j < schema.getFields().length; j++) {
+      insertColumn(batch.cols[j + firstFieldCol], recordBatch, j, schema.getTypes()[j]);
+    }
+    batch.size = size;
+
+    try {
+      writer.addRowBatch(batch);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
     lastTag = tag;
     return System.nanoTime() - start;
   }
 
+  private void insertColumn(ColumnVector column, RecordBatch recordBatch, int colIndex,
+      Class<?> type) {
+    int size = recordBatch.size();
+    if (type == Long.class) {
+      recordBatch.copyLongColumn(colIndex, ((LongColumnVector) column).vector);
+    } else if (type == Double.class) {
+      recordBatch.copyDoubleColumn(colIndex, ((DoubleColumnVector) column).vector);
+    } else {
+      BytesColumnVector v = (BytesColumnVector) column;
+      for (int i = 0; i < size; i++) {
+        if (!recordBatch.isNull(colIndex, i)) {
+          // columns without a declared type are written as strings
+          byte[] bytes = type == null
+              ? String.valueOf(recordBatch.getDouble(colIndex, i))
+              .getBytes(StandardCharsets.UTF_8)
+              : recordBatch.getUtf8(colIndex, i);
+          v.setRef(i, bytes, 0, bytes.length);
+        }
+      }
+    }
+    if (!recordBatch.hasNoNulls(colIndex)) {
+      for (int i = 0; i < size; i++) {
+        if (recordBatch.isNull(colIndex, i)) {
+          column.isNull[i] = true;
+          column.noNulls = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return an empty row batch of the writer schema with room for at least rowNum rows
+   */
+  private VectorizedRowBatch getRowBatch(Writer writer, int rowNum) {
+    TypeDescription orcSchema = writer.getSchema();
+    if (rowBatch == null || rowBatch.getMaxSize() < rowNum || !orcSchema.equals(rowBatchSchema)) {
+      rowBatch = orcSchema.createRowBatch(Math.max(rowNum, config.BATCH_SIZE));
+      rowBatchSchema = orcSchema;
+    } else {
+      rowBatch.reset();
+    }
+    return rowBatch;
+  }
+
   private Writer getWriter(String tag, Schema schema) {
     if (!config.splitFileByDevice) {
       return writerMap.computeIfAbsent(Config.DEFAULT_TAG, t -> createWriter(t, schema));
@@ -2,10 +2,13 @@ package cn.edu.thu.database.fileformat;
 
 import cn.edu.thu.common.Config;
 import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
 import cn.edu.thu.common.Schema;
 import cn.edu.thu.database.IDataBaseManager;
+import cn.edu.thu.database.TabletCache;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -32,6 +35,7 @@ public class TsFileManager implements IDataBaseManager {
   private static Logger logger = LoggerFactory.getLogger(TsFileManager.class);
   private Map<String, TsFileWriter> tagWriterMap = new HashMap<>();
   private Map<String, List<IMeasurementSchema>> tagSchemasMap = new HashMap<>();
+  private final TabletCache tabletCache = new TabletCache();
   private String lastTag;
   private String filePath;
   private Config config;
@@ -161,6 +165,25 @@ public class TsFileManager implements IDataBaseManager {
     return System.nanoTime() - start;
   }
 
+  @Override
+  public long insertColumnarBatch(RecordBatch batch, Schema schema) {
+    long start = System.nanoTime();
+    String tag = batch.getTag(0);
+    if (closeOnTagChanged && config.splitFileByDevice && !Objects.equals(tag, lastTag)) {
+      close();
+    }
+
+    TsFileWriter writer = getWriter(tag, schema);
+    if (config.useAlignedTablet) {
+      writeTablet(convertToTablet(batch, schema), batch.size(), writer, schema);
+    } else {
+      logger.error("not supported mode: NonAlignedTablet");
+    }
+
+    lastTag = tag;
+    return System.nanoTime() - start;
+  }
+
   // TODO NonAlignedTablet related
 //  private void insertBatchNonAligned(List<Record> records,
 //      TsFileWriter writer, Schema schema) {
@@ -175,6 +198,10 @@ public class TsFileManager implements IDataBaseManager {
   private void insertBatchAligned(List<Record> records,
       TsFileWriter writer, Schema schema) {
     Tablet tablet = convertToTablet(records, schema);
+    writeTablet(tablet, records.size(), writer, schema);
+  }
+
+  private void writeTablet(Tablet tablet, int recordNum, TsFileWriter writer, Schema schema) {
     try {
       if (config.useAlignedSeries) {
         writer.writeAligned(tablet);
@@ -182,7 +209,7 @@ public class TsFileManager implements IDataBaseManager {
         writer.write(tablet);
       }
     } catch (Exception e) {
-      logger.error("Insert {} records failed, schema {}, ", records.size(), schema, e);
+      logger.error("Insert {} records failed, schema {}, ", recordNum, schema, e);
     }
   }
 
@@ -215,14 +242,10 @@ public class TsFileManager implements IDataBaseManager {
 
   private Tablet convertToTablet(List<Record> records, Schema schema) {
     String tag = records.get(0).tag;
-    Tablet tablet = new Tablet(tag, tagToMeasurementSchemas(tag), records.size());
+    Tablet tablet = tabletCache.get(tag, schema, records.size(),
+        () -> tagToMeasurementSchemas(tag));
 
     long[] timestamps = tablet.timestamps;
-    Object[] values = tablet.values;
-    tablet.bitMaps = new BitMap[values.length];
-    for (int i = 0; i < tablet.bitMaps.length; i++) {
-      tablet.bitMaps[i] = new BitMap(records.size());
-    }
 
     for (Record record : records) {
       int row = tablet.rowSize++;
@@ -235,6 +258,62 @@ public class TsFileManager implements IDataBaseManager {
     return tablet;
   }
 
+  /**
+   * the same tablet as convertToTablet(List, Schema), copied column by column from the batch
+   */
+  private Tablet convertToTablet(RecordBatch batch, Schema schema) {
+    String tag = batch.getTag(0);
+    int size = batch.size();
+    Tablet tablet = tabletCache.get(tag, schema, size, () -> tagToMeasurementSchemas(tag));
+    batch.copyTimestamps(tablet.timestamps);
+    for (int i = 0; i < tablet.bitMaps.length; i++) {
+      BitMap bitMap = tablet.bitMaps[i];
+      Class<?> type = schema.getTypes()[i];
+      if (type == Long.class) {
+        copyToLongColumn(batch, i, tablet.values[i]);
+      } else if (type == Double.class) {
+        copyToDoubleColumn(batch, i, tablet.values[i]);
+      } else {
+        copyToTextColumn(batch, i, tablet.values[i]);
+      }
+      for (int row = 0; row < size; row++) {
+        if (!batch.isNull(i, row)) {
+          bitMap.mark(row);
+        } else {
+          clearValue(tablet.values[i], row);
+        }
+      }
+    }
+    tablet.rowSize = size;
+    return tablet;
+  }
+
+  private void copyToLongColumn(RecordBatch batch, int column, Object values) {
+    batch.copyLongColumn(column, (long[]) values);
+  }
+
+  private void copyToDoubleColumn(RecordBatch batch, int column, Object values) {
+    batch.copyDoubleColumn(column, (double[]) values);
+  }
+
+  private void copyToTextColumn(RecordBatch batch, int column, Object values) {
+    Binary[] sensor = (Binary[]) values;
+    for (int row = 0; row < batch.size(); row++) {
+      if (!batch.isNull(column, row)) {
+        sensor[row] = new Binary(textValue(batch, column, row));
+      }
+    }
+  }
+
+  /**
+   * columns without a declared type are written as TEXT, as in the row path
+   */
+  private static byte[] textValue(RecordBatch batch, int column, int row) {
+    return batch.getSchema().getTypes()[column] == null
+        ? String.valueOf(batch.getDouble(column, row)).getBytes(StandardCharsets.UTF_8)
+        : batch.getUtf8(column, row);
+  }
+
   private void addToColumn(Object column, int rowIndex, Object field, BitMap bitMap,
       Class<?> type) {
     if (type == Long.class) {
@@ -251,6 +330,8 @@ public class TsFileManager implements IDataBaseManager {
     if (field != null) {
       sensor[rowIndex] = (double) field;
       bitMap.mark(rowIndex);
+    } else {
+      clearValue(column, rowIndex);
     }
   }
 
@@ -259,6 +340,8 @@ public class TsFileManager implements IDataBaseManager {
     if (field != null) {
       sensor[rowIndex] = (long) field;
       bitMap.mark(rowIndex);
+    } else {
+      clearValue(column, rowIndex);
     }
   }
 
@@ -267,6 +350,21 @@ public class TsFileManager implements IDataBaseManager {
     if (field != null) {
       sensor[rowIndex] = new Binary(((String) field).getBytes());
       bitMap.mark(rowIndex);
+    } else {
+      clearValue(column, rowIndex);
+    }
+  }
+
+  /**
+   * a tablet is reused across batches, reset a missing value as in a new tablet
+   */
+  private static void clearValue(Object column, int rowIndex) {
+    if (column instanceof long[]) {
+      ((long[]) column)[rowIndex] = 0;
+    } else if (column instanceof double[]) {
+      ((double[]) column)[rowIndex] = 0;
+    } else {
+      ((Object[]) column)[rowIndex] = null;
     }
   }
 
@@ -334,6 +432,7 @@ public class TsFileManager implements IDataBaseManager {
 
     tagWriterMap.clear();
     tagSchemasMap.clear();
+    tabletCache.clear();
 
     logger.info("Total file size: {}", totalFileSize / (1024 * 1024.0));
     return System.nanoTime() - start;
@@ -2,13 +2,17 @@ package cn.edu.thu.database.influxdb;
 
 import cn.edu.thu.common.Config;
 import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
 import cn.edu.thu.common.Schema;
+import cn.edu.thu.database.AsyncInserter;
+import cn.edu.thu.database.ConnectionPool;
 import cn.edu.thu.database.IDataBaseManager;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import okhttp3.OkHttpClient;
@@ -30,6 +34,10 @@ public class InfluxDBManager implements IDataBaseManager {
   private String measurementId = "tb1";
   private String database;
   private Config config;
+  // null if inserts are synchronous
+  private AsyncInserter asyncInserter;
+  // null unless CONNECTION_POOL_SIZE > 0, then each write takes a client of one connection from it
+  private ConnectionPool<InfluxDB> clientPool;
 
   private static String COUNT_SQL_WITH_TIME = "select count(%s) from %s where time >= %dms and time <= %dms and %s='%s'";
 
@@ -39,18 +47,21 @@ public class InfluxDBManager implements IDataBaseManager {
   public InfluxDBManager(Config config) {
     this.config = config;
 
-    OkHttpClient.Builder okHttpClientBuilder = new OkHttpClient().newBuilder()
-        .connectTimeout(5, TimeUnit.MINUTES)
-        .readTimeout(5, TimeUnit.MINUTES)
-        .writeTimeout(5, TimeUnit.MINUTES)
-        .retryOnConnectionFailure(true);
-    influxDB = InfluxDBFactory.connect(config.INFLUXDB_URL, okHttpClientBuilder);
+    influxDB = InfluxDBFactory.connect(config.INFLUXDB_URL, newHttpClientBuilder());
     if (influxDB == null) {
       logger.error("influxdb connection failed! Maybe the server has not finished start up.");
     }
     database = config.INFLUXDB_DATABASE;
   }
 
+  private static OkHttpClient.Builder newHttpClientBuilder() {
+    return new OkHttpClient().newBuilder()
+        .connectTimeout(5, TimeUnit.MINUTES)
+        .readTimeout(5, TimeUnit.MINUTES)
+        .writeTimeout(5, TimeUnit.MINUTES)
+        .retryOnConnectionFailure(true);
+  }
+
   @Override
   public void initServer() {
     influxDB.query(new Query("DROP DATABASE " + database, "_internal"));
@@ -60,10 +71,34 @@ public class InfluxDBManager implements IDataBaseManager {
 
   @Override
   public void initClient() {
+    if (config.CONNECTION_POOL_SIZE > 0) {
+      // a client is used by one write at a time, so it keeps a single connection alive
+      clientPool = ConnectionPool.acquire(config.INFLUXDB_URL, config.CONNECTION_POOL_SIZE,
+          () -> InfluxDBFactory.connect(config.INFLUXDB_URL, newHttpClientBuilder()
+              .connectionPool(new okhttp3.ConnectionPool(1, 5, TimeUnit.MINUTES))),
+          InfluxDB::close);
+    }
+    if (config.ASYNC_INSERT_WINDOW > 0) {
+      // the client is thread-safe, the writes of a window share its connection pool
+      asyncInserter = new AsyncInserter(config);
+    }
   }
 
   @Override
   public long query() {
+    if (clientPool == null) {
+      return query(influxDB);
+    }
+    // a chunked query holds the connection of its client until the result is read
+    InfluxDB client = borrowClient();
+    try {
+      return query(client);
+    } finally {
+      clientPool.giveBack(client);
+    }
+  }
+
+  private long query(InfluxDB influxDB) {
     // prepare sql
     String[] queryInfo = generateQuery();
     String queryDatabase = queryInfo[0];
@@ -237,6 +272,12 @@ public class InfluxDBManager implements IDataBaseManager {
 
   @Override
   public long close() {
+    if (asyncInserter != null) {
+      asyncInserter.shutdown();
+    }
+    if (clientPool != null) {
+      clientPool.release();
+    }
     influxDB.close();
     return 0;
   }
@@ -245,21 +286,77 @@ public class InfluxDBManager implements IDataBaseManager {
   public long insertBatch(List<Record> records, Schema schema) {
 
     // get data points
+    BatchPoints batchPoints = convertToBatchPoints(records, schema);
+
+    return write(batchPoints);
+  }
+
+  @Override
+  public CompletableFuture<Long> insertBatchAsync(List<Record> records, Schema schema) {
+    if (asyncInserter == null) {
+      return IDataBaseManager.super.insertBatchAsync(records, schema);
+    }
+    // converted here, so the records are no longer used once this returns
+    BatchPoints batchPoints = convertToBatchPoints(records, schema);
+    return asyncInserter.submit(() -> write(batchPoints));
+  }
+
+  @Override
+  public CompletableFuture<Long> insertColumnarBatchAsync(RecordBatch batch, Schema schema) {
+    return insertBatchAsync(batch.toRecords(), schema);
+  }
+
+  private BatchPoints convertToBatchPoints(List<Record> records, Schema schema) {
     List<Point> points = convertRecords(records, schema);
-    BatchPoints batchPoints = BatchPoints.database(database).points(points.toArray(new Point[0]))
-        .build();
+    return BatchPoints.database(database).points(points.toArray(new Point[0])).build();
+  }
 
+  /**
+   * @return the time the write took, without the wait for a client of the pool
+   */
+  private long write(BatchPoints batchPoints) {
+    if (clientPool == null) {
+      long start = System.nanoTime();
+      try {
+        influxDB.write(batchPoints);
+      } catch (Exception e) {
+        logWriteFailure(e);
+      }
+      return System.nanoTime() - start;
+    }
+    // the write fails if no client can be opened or the write fails, so that it is not counted
+    InfluxDB client = borrowClient();
     long start = System.nanoTime();
     try {
-      influxDB.write(batchPoints);
+      client.write(batchPoints);
+    } catch (RuntimeException e) {
+      // the connection of the client may be broken, it is closed instead of reused
+      clientPool.discard(client);
+      logWriteFailure(e);
+      throw e;
+    }
+    long elapsedTime = System.nanoTime() - start;
+    clientPool.giveBack(client);
+    return elapsedTime;
+  }
+
+  private InfluxDB borrowClient() {
+    try {
+      return clientPool.borrow();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("interrupted while waiting for an influxdb client", e);
     } catch (Exception e) {
-      if (e.getMessage() != null && e.getMessage().contains("Failed to connect to")) {
-        logger.error("InfluxDBManager is down!!!!!!");
-      } else {
-        e.printStackTrace();
-      }
+      throw new RuntimeException("influxdb connection failed!", e);
+    }
+  }
+
+  private void logWriteFailure(Exception e) {
+    if (e.getMessage() != null && e.getMessage().contains("Failed to connect to")) {
+      logger.error("InfluxDBManager is down!!!!!!");
+    } else {
+      e.printStackTrace();
     }
-    return System.nanoTime() - start;
   }
 
   private List<Point> convertRecords(List<Record> records, Schema schema) {
@@ -2,12 +2,20 @@ package cn.edu.thu.database.iotdb;
 
 import cn.edu.thu.common.Config;
 import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
 import cn.edu.thu.common.Schema;
+import cn.edu.thu.database.AsyncInserter;
+import cn.edu.thu.database.ConnectionPool;
 import cn.edu.thu.database.IDataBaseManager;
+import cn.edu.thu.database.TabletCache;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import org.apache.iotdb.isession.SessionDataSet;
 import org.apache.iotdb.isession.SessionDataSet.DataIterator;
 import org.apache.iotdb.rpc.IoTDBConnectionException;
@@ -31,16 +39,16 @@ public class IoTDBManager implements IDataBaseManager {
       IoTDBManager.class);
   private Config config;
   private Session session;
+  private final TabletCache tabletCache = new TabletCache();
+  // null if inserts are synchronous, otherwise one session per write in flight
+  private AsyncInserter asyncInserter;
+  private BlockingQueue<Session> asyncSessions;
+  // null unless CONNECTION_POOL_SIZE > 0, then the writes and queries take sessions from it
+  private ConnectionPool<Session> sessionPool;
 
   public IoTDBManager(Config config) {
     this.config = config;
-    session =
-        new Session(
-            config.IOTDB_HOST,
-            config.IOTDB_PORT,
-            config.IOTDB_USERNAME,
-            config.IOTDB_PASSWORD,
-            true);
+    session = newSession();
   }
 
   @Override
@@ -65,6 +73,41 @@ public class IoTDBManager implements IDataBaseManager {
 
   @Override
   public void initClient() {
+    if (config.CONNECTION_POOL_SIZE > 0) {
+      String server = config.IOTDB_HOST + ":" + config.IOTDB_PORT;
+      sessionPool = ConnectionPool.acquire(server, config.CONNECTION_POOL_SIZE, () -> {
+        Session pooledSession = newSession();
+        pooledSession.open(config.IOTDB_ENABLE_THRIFT_COMPRESSION);
+        return pooledSession;
+      }, Session::close);
+      if (config.ASYNC_INSERT_WINDOW > 0) {
+        asyncInserter = new AsyncInserter(config);
+      }
+      return;
+    }
+    openSession(session);
+    if (config.ASYNC_INSERT_WINDOW > 0) {
+      asyncInserter = new AsyncInserter(config);
+      asyncSessions = new ArrayBlockingQueue<>(config.ASYNC_INSERT_WINDOW);
+      asyncSessions.add(session);
+      for (int i = 1; i < config.ASYNC_INSERT_WINDOW; i++) {
+        Session asyncSession = newSession();
+        openSession(asyncSession);
+        asyncSessions.add(asyncSession);
+      }
+    }
+  }
+
+  private Session newSession() {
+    return new Session(
+        config.IOTDB_HOST,
+        config.IOTDB_PORT,
+        config.IOTDB_USERNAME,
+        config.IOTDB_PASSWORD,
+        true);
+  }
+
+  private void openSession(Session session) {
     try {
       if (config.IOTDB_ENABLE_THRIFT_COMPRESSION) {
         session.open(true);
@@ -78,38 +121,116 @@ public class IoTDBManager implements IDataBaseManager {
 
   @Override
   public long insertBatch(List<Record> records, Schema schema) { // use insertTablet interface
-    long elapsedTime;
-    if (config.useAlignedTablet) {
-      elapsedTime = insertBatchAligned(records, session, schema);
-    } else {
-      elapsedTime = insertBatchNonAligned(records, session, schema);
+    return timedWrite(convertToWrite(records, schema));
+  }
+
+  @Override
+  public long insertColumnarBatch(RecordBatch batch, Schema schema) {
+    return timedWrite(convertToWrite(batch, schema));
+  }
+
+  @Override
+  public CompletableFuture<Long> insertBatchAsync(List<Record> records, Schema schema) {
+    if (asyncInserter == null) {
+      return IDataBaseManager.super.insertBatchAsync(records, schema);
     }
-    return elapsedTime;
+    // converted here, so the records are no longer used once this returns
+    return submitWrite(convertToWrite(records, schema));
+  }
+
+  @Override
+  public CompletableFuture<Long> insertColumnarBatchAsync(RecordBatch batch, Schema schema) {
+    if (asyncInserter == null) {
+      return IDataBaseManager.super.insertColumnarBatchAsync(batch, schema);
+    }
+    return submitWrite(convertToWrite(batch, schema));
   }
 
-  private long insertBatchAligned(List<Record> records, Session session, Schema schema) {
-    logger.info("insert aligned tablet...");
-    Tablet tablet = convertToTablet(records, schema);
+  private long timedWrite(SessionWrite write) {
+    if (sessionPool != null) {
+      return pooledWrite(write);
+    }
     long start = System.nanoTime();
+    write.writeTo(session);
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * @return the time the write took on a session of the shared pool, without the wait for it
+   */
+  private long pooledWrite(SessionWrite write) {
+    Session pooledSession = borrowSession();
+    boolean broken = true;
     try {
-      session.insertAlignedTablet(tablet);
+      long start = System.nanoTime();
+      broken = !write.writeTo(pooledSession);
+      return System.nanoTime() - start;
+    } finally {
+      giveBack(pooledSession, broken);
+    }
+  }
+
+  /**
+   * @return a session of the shared pool, the write or query fails if none can be opened, so that
+   * it is not counted
+   */
+  private Session borrowSession() {
+    try {
+      return sessionPool.borrow();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("interrupted while waiting for a session", e);
     } catch (Exception e) {
-      logger.error("Insert {} records failed, schema {}, ", records.size(), schema, e);
+      throw new RuntimeException("Failed to add session", e);
     }
-    return System.nanoTime() - start;
   }
 
-  private long insertBatchNonAligned(List<Record> records, Session session, Schema schema) {
-    if (config.IOTDB_INSERT_NONALIGN_BY_TABLET) { // insert by tablet
-      logger.info("insert nonaligned tablet by tablet...");
-      Tablet tablet = convertToTablet(records, schema);
-      long start = System.nanoTime();
+  /**
+   * @param broken whether the connection of the session failed, then it is closed instead
+   */
+  private void giveBack(Session pooledSession, boolean broken) {
+    if (broken) {
+      sessionPool.discard(pooledSession);
+    } else {
+      sessionPool.giveBack(pooledSession);
+    }
+  }
+
+  /**
+   * a session is not thread-safe, each write in flight takes one of the pool
+   */
+  private CompletableFuture<Long> submitWrite(SessionWrite write) {
+    if (sessionPool != null) {
+      return asyncInserter.submit(() -> pooledWrite(write));
+    }
+    return asyncInserter.submit(() -> {
+      Session asyncSession = asyncSessions.poll();
       try {
-        session.insertTablet(tablet);
-      } catch (Exception e) {
-        logger.error("Insert {} records failed, schema {}, ", records.size(), schema, e);
+        if (asyncSession == null) {
+          asyncSession = asyncSessions.take();
+        }
+        write.writeTo(asyncSession);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        if (asyncSession != null) {
+          asyncSessions.offer(asyncSession);
+        }
       }
-      return System.nanoTime() - start;
+    });
+  }
+
+  /**
+   * @return the write of the records by the configured interface, which only uses the converted
+   * values
+   */
+  private SessionWrite convertToWrite(List<Record> records, Schema schema) {
+    if (config.useAlignedTablet) {
+      logger.info("insert aligned tablet...");
+      return tabletWrite(convertToTablet(records, schema), records.size(), schema);
+    } else if (config.IOTDB_INSERT_NONALIGN_BY_TABLET) { // insert by tablet
+      logger.info("insert nonaligned tablet by tablet...");
+      return tabletWrite(convertToTablet(records, schema), records.size(), schema);
     } else { // insert by records
       logger.info("insert nonaligned tablet by records...");
       String deviceId = schema.getTag();
@@ -138,17 +259,63 @@ public class IoTDBManager implements IDataBaseManager {
         valuesList.add(values);
       }
 
-      long start = System.nanoTime();
+      int recordNum = records.size();
+      return session -> {
+        try {
+          session.insertRecords(deviceIds, times, measurementsList, typesList, valuesList);
+        } catch (IoTDBConnectionException e) {
+          logger.error("Insert {} records failed, schema {}, ", recordNum, schema, e);
+          return false;
+        } catch (Exception e) {
+          logger.error("Insert {} records failed, schema {}, ", recordNum, schema, e);
+        }
+        return true;
+      };
+    }
+  }
+
+  private SessionWrite convertToWrite(RecordBatch batch, Schema schema) {
+    if (!config.useAlignedTablet && !config.IOTDB_INSERT_NONALIGN_BY_TABLET) {
+      // insertRecords takes boxed values anyway
+      return convertToWrite(batch.toRecords(), schema);
+    }
+    if (config.useAlignedTablet) {
+      logger.info("insert aligned tablet...");
+    } else {
+      logger.info("insert nonaligned tablet by tablet...");
+    }
+    return tabletWrite(convertToTablet(batch, schema), batch.size(), schema);
+  }
+
+  private SessionWrite tabletWrite(Tablet tablet, int recordNum, Schema schema) {
+    return session -> {
       try {
-        session.insertRecords(deviceIds, times, measurementsList, typesList, valuesList);
+        if (config.useAlignedTablet) {
+          session.insertAlignedTablet(tablet);
+        } else {
+          session.insertTablet(tablet);
+        }
+      } catch (IoTDBConnectionException e) {
+        logger.error("Insert {} records failed, schema {}, ", recordNum, schema, e);
+        return false;
       } catch (Exception e) {
-        logger.error("Insert {} records failed, schema {}, ", records.size(), schema, e);
+        logger.error("Insert {} records failed, schema {}, ", recordNum, schema, e);
       }
-      return System.nanoTime() - start;
+      return true;
+    };
+  }
+
+  /**
+   * @return an empty tablet of the schema, a cached one unless it may still be in flight
+   */
+  private Tablet newTablet(Schema schema, int rowNum) {
+    if (asyncInserter != null) {
+      return TabletCache.newTablet(schema.getTag(), toMeasurementSchemas(schema), rowNum);
     }
+    return tabletCache.get(schema.getTag(), schema, rowNum, () -> toMeasurementSchemas(schema));
   }
 
-  private Tablet convertToTablet(List<Record> records, Schema schema) {
+  private List<IMeasurementSchema> toMeasurementSchemas(Schema schema) {
     List<IMeasurementSchema> schemaList = new ArrayList<>();
     for (int i = 0; i < schema.getFields().length; i++) {
       Map<String, String> props = new HashMap<>();
@@ -158,15 +325,13 @@ public class IoTDBManager implements IDataBaseManager {
           toTsEncoding(schema.getTypes()[i]), CompressionType.SNAPPY, props);
       schemaList.add(measurementSchema);
     }
+    return schemaList;
+  }
 
-    Tablet tablet = new Tablet(schema.getTag(), schemaList, records.size());
+  private Tablet convertToTablet(List<Record> records, Schema schema) {
+    Tablet tablet = newTablet(schema, records.size());
 
     long[] timestamps = tablet.timestamps;
-    Object[] values = tablet.values;
-    tablet.bitMaps = new BitMap[values.length];
-    for (int i = 0; i < tablet.bitMaps.length; i++) {
-      tablet.bitMaps[i] = new BitMap(records.size());
-    }
 
     for (Record record : records) {
       int row = tablet.rowSize++;
@@ -180,6 +345,75 @@ public class IoTDBManager implements IDataBaseManager {
     return tablet;
   }
 
+  /**
+   * the same tablet as convertToTablet(List, Schema), copied column by column from the batch
+   */
+  private Tablet convertToTablet(RecordBatch batch, Schema schema) {
+    int size = batch.size();
+    Tablet tablet = newTablet(schema, size);
+    batch.copyTimestamps(tablet.timestamps);
+    for (int i = 0; i < tablet.bitMaps.length; i++) {
+      BitMap bitMap = tablet.bitMaps[i];
+      Class<?> type = schema.getTypes()[i];
+      if (type == Long.class) {
+        copyToLongColumn(batch, i, tablet.values[i], bitMap);
+      } else if (type == Double.class) {
+        copyToDoubleColumn(batch, i, tablet.values[i], bitMap);
+      } else {
+        copyToTextColumn(batch, i, tablet.values[i], bitMap);
+      }
+    }
+    tablet.rowSize = size;
+    return tablet;
+  }
+
+  private void copyToLongColumn(RecordBatch batch, int column, Object values, BitMap bitMap) {
+    long[] sensor = (long[]) values;
+    batch.copyLongColumn(column, sensor);
+    if (!batch.hasNoNulls(column)) {
+      for (int row = 0; row < batch.size(); row++) {
+        if (batch.isNull(column, row)) {
+          sensor[row] = Long.MIN_VALUE;
+          bitMap.mark(row);
+        }
+      }
+    }
+  }
+
+  private void copyToDoubleColumn(RecordBatch batch, int column, Object values, BitMap bitMap) {
+    double[] sensor = (double[]) values;
+    batch.copyDoubleColumn(column, sensor);
+    if (!batch.hasNoNulls(column)) {
+      for (int row = 0; row < batch.size(); row++) {
+        if (batch.isNull(column, row)) {
+          sensor[row] = Double.MIN_VALUE;
+          bitMap.mark(row);
+        }
+      }
+    }
+  }
+
+  private void copyToTextColumn(RecordBatch batch, int column, Object values, BitMap bitMap) {
+    Binary[] sensor = (Binary[]) values;
+    for (int row = 0; row < batch.size(); row++) {
+      if (batch.isNull(column, row)) {
+        sensor[row] = Binary.EMPTY_VALUE;
+        bitMap.mark(row);
+      } else {
+        sensor[row] = new Binary(textValue(batch, column, row));
+      }
+    }
+  }
+
+  /**
+   * columns without a declared type are written as TEXT, as in the row path
+   */
+  private static byte[] textValue(RecordBatch batch, int column, int row) {
+    return batch.getSchema().getTypes()[column] == null
+        ? String.valueOf(batch.getDouble(column, row)).getBytes(StandardCharsets.UTF_8)
+        : batch.getUtf8(column, row);
+  }
+
   private void addToColumn(Object column, int rowIndex, Object field, BitMap bitMap,
       Class<?> type) {
     if (type == Long.class) {
@@ -237,6 +471,18 @@ public class IoTDBManager implements IDataBaseManager {
 
   @Override
   public long query() {
+    if (sessionPool == null) {
+      return query(session);
+    }
+    Session pooledSession = borrowSession();
+    try {
+      return query(pooledSession);
+    } finally {
+      sessionPool.giveBack(pooledSession);
+    }
+  }
+
+  private long query(Session session) {
     String sql = generateQuery();
     logger.info("Begin query: {}", sql);
     session.setFetchSize(config.IOTDB_QUERY_SESSION_FETCH_SIZE);
@@ -383,12 +629,43 @@ public class IoTDBManager implements IDataBaseManager {
 
   @Override
   public long close() {
+    if (sessionPool != null) {
+      if (asyncInserter != null) {
+        asyncInserter.shutdown();
+      }
+      sessionPool.release();
+      return 0;
+    }
+    if (asyncInserter != null) {
+      asyncInserter.shutdown();
+      // the main session is one of the pool
+      for (Session asyncSession : asyncSessions) {
+        if (asyncSession != session) {
+          closeSession(asyncSession);
+        }
+      }
+    }
+    closeSession(session);
+    return 0;
+  }
+
+  private void closeSession(Session session) {
     try {
       session.close();
     } catch (IoTDBConnectionException ioTDBConnectionException) {
       logger.error("Failed to close session.");
     }
-    return 0;
+  }
+
+  /**
+   * a converted write, which logs its failure
+   */
+  private interface SessionWrite {
+
+    /**
+     * @return false if the connection of the session failed, then it is not reused
+     */
+    boolean writeTo(Session session);
   }
 
 }
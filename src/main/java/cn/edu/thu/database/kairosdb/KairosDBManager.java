@@ -2,8 +2,10 @@ package cn.edu.thu.database.kairosdb;
 
 import cn.edu.thu.common.Config;
 import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
 import cn.edu.thu.common.Schema;
 import cn.edu.thu.common.ThuHttpRequest;
+import cn.edu.thu.database.AsyncInserter;
 import cn.edu.thu.database.IDataBaseManager;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.serializer.SerializerFeature;
@@ -12,6 +14,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,6 +26,8 @@ public class KairosDBManager implements IDataBaseManager {
   private String writeUrl;
   private String deleteUrl;
   private String url;
+  // null if inserts are synchronous
+  private AsyncInserter asyncInserter;
 
   private static final String QUERY_START_TIME = "start_absolute";
   private static final String QUERY_END_TIME = "end_absolute";
@@ -33,6 +38,9 @@ public class KairosDBManager implements IDataBaseManager {
     queryUrl = url + "/api/v1/datapoints/query";
     writeUrl = url + "/api/v1/datapoints";
     deleteUrl = url + "/api/v1/metric/%s";
+    if (config.CONNECTION_POOL_SIZE > 0) {
+      ThuHttpRequest.setConnectionPoolSize(config.CONNECTION_POOL_SIZE);
+    }
     if (config.KAIROSDB_BATCH_POINTS) {
       logger.info(
           "use batched data points API. See https://kairosdb.github.io/docs/restapi/AddDataPoints.html.");
@@ -64,11 +72,36 @@ public class KairosDBManager implements IDataBaseManager {
 
   @Override
   public void initClient() {
-
+    if (config.ASYNC_INSERT_WINDOW > 0) {
+      asyncInserter = new AsyncInserter(config);
+    }
   }
 
   @Override
   public long insertBatch(List<Record> records, Schema schema) {
+    String body = convertToJson(records, schema);
+
+    long start = System.nanoTime();
+    write(body);
+    return System.nanoTime() - start;
+  }
+
+  @Override
+  public CompletableFuture<Long> insertBatchAsync(List<Record> records, Schema schema) {
+    if (asyncInserter == null) {
+      return IDataBaseManager.super.insertBatchAsync(records, schema);
+    }
+    // converted here, so the records are no longer used once this returns
+    String body = convertToJson(records, schema);
+    return asyncInserter.submit(() -> write(body));
+  }
+
+  @Override
+  public CompletableFuture<Long> insertColumnarBatchAsync(RecordBatch batch, Schema schema) {
+    return insertBatchAsync(batch.toRecords(), schema);
+  }
+
+  private String convertToJson(List<Record> records, Schema schema) {
     List<KairosDBPoint> points;
 
     logger.info("Begin converting records to KairosDBPoints...");
@@ -99,9 +132,10 @@ public class KairosDBManager implements IDataBaseManager {
     }
     logger.info("Finish converting records to KairosDBPoints.");
 
-    String body = JSON.toJSONString(points, SerializerFeature.DisableCircularReferenceDetect);
+    return JSON.toJSONString(points, SerializerFeature.DisableCircularReferenceDetect);
+  }
 
-    long start = System.nanoTime();
+  private void write(String body) {
 //    String response = null;
     try {
       ThuHttpRequest.sendPost(writeUrl, body);
@@ -110,8 +144,6 @@ public class KairosDBManager implements IDataBaseManager {
       e.printStackTrace();
       logger.error("meet error when writing: {}", e.getMessage());
     }
-
-    return System.nanoTime() - start;
   }
 
 
@@ -386,6 +418,9 @@ public class KairosDBManager implements IDataBaseManager {
 
   @Override
   public long close() {
+    if (asyncInserter != null) {
+      asyncInserter.shutdown();
+    }
     return 0;
   }
 }
@@ -28,6 +28,9 @@ public class OpenTSDBManager implements IDataBaseManager {
     this.dbUrl = config.OPENTSDB_URL;
     this.writeUrl = this.dbUrl + "/api/put?summary";
     this.queryUrl = this.dbUrl + "/api/query";
+    if (config.CONNECTION_POOL_SIZE > 0) {
+      ThuHttpRequest.setConnectionPoolSize(config.CONNECTION_POOL_SIZE);
+    }
   }
 
   @Override
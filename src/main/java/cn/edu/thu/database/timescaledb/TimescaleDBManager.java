@@ -3,10 +3,12 @@ package cn.edu.thu.database.timescaledb;
 import cn.edu.thu.common.Config;
 import cn.edu.thu.common.Record;
 import cn.edu.thu.common.Schema;
+import cn.edu.thu.database.ConnectionPool;
 import cn.edu.thu.database.IDataBaseManager;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Arrays;
 import java.util.List;
@@ -34,6 +36,9 @@ public class TimescaleDBManager implements IDataBaseManager {
   private static final String dropTable = "DROP TABLE %s;";
 
   private Connection connection;
+  // null unless CONNECTION_POOL_SIZE > 0, then the inserts and queries take connections from them
+  private ConnectionPool<Connection> connectionPool;
+  private ConnectionPool<Connection> queryConnectionPool;
 
   private static String COUNT_SQL_WITH_TIME = "select count(%s) from %s where time >= %dms and time <= %dms and %s='%s'";
 
@@ -86,6 +91,10 @@ public class TimescaleDBManager implements IDataBaseManager {
       String url = String.format(POSTGRESQL_URL, config.TIMESCALEDB_HOST, config.TIMESCALEDB_PORT,
           config.TIMESCALEDB_DATABASE);
       logger.info("connecting url: " + url);
+      if (config.CONNECTION_POOL_SIZE > 0) {
+        connectionPool = acquirePool(url, true);
+        return;
+      }
       connection = DriverManager.getConnection(url, config.TIMESCALEDB_USERNAME,
           config.TIMESCALEDB_PASSWORD);
     } catch (Exception e) {
@@ -93,11 +102,67 @@ public class TimescaleDBManager implements IDataBaseManager {
     }
   }
 
+  /**
+   * @param autoCommit false for queries, which only fetch the results in batches without it
+   */
+  private ConnectionPool<Connection> acquirePool(String url, boolean autoCommit) {
+    String key = (autoCommit ? "" : "query ") + url + " as " + config.TIMESCALEDB_USERNAME;
+    return ConnectionPool.acquire(key, config.CONNECTION_POOL_SIZE, () -> {
+      Connection pooledConnection = DriverManager.getConnection(url,
+          config.TIMESCALEDB_USERNAME, config.TIMESCALEDB_PASSWORD);
+      pooledConnection.setAutoCommit(autoCommit);
+      return pooledConnection;
+    }, Connection::close);
+  }
+
+  /**
+   * @return a connection of the pool, the insert or query fails if none can be opened, so that it
+   * is not counted
+   */
+  private Connection borrowConnection(ConnectionPool<Connection> pool) {
+    try {
+      return pool.borrow();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("interrupted while waiting for a connection", e);
+    } catch (Exception e) {
+      throw new RuntimeException("Initialize TimescaleDB failed", e);
+    }
+  }
+
+  /**
+   * give the connection back to the pool, unless the driver closed it after a fatal error
+   */
+  private void giveBack(ConnectionPool<Connection> pool, Connection pooledConnection) {
+    boolean closed;
+    try {
+      closed = pooledConnection.isClosed();
+    } catch (SQLException e) {
+      closed = true;
+    }
+    if (closed) {
+      pool.discard(pooledConnection);
+    } else {
+      pool.giveBack(pooledConnection);
+    }
+  }
+
   @Override
   public long query() {
     String[] res = generateQuery();
     String queryURL = res[0];
     String[] sqls = Arrays.copyOfRange(res, 1, res.length);
+    if (config.CONNECTION_POOL_SIZE > 0) {
+      if (queryConnectionPool == null) {
+        queryConnectionPool = acquirePool(queryURL, false);
+      }
+      Connection pooledConnection = borrowConnection(queryConnectionPool);
+      try {
+        return query(pooledConnection, sqls);
+      } finally {
+        giveBack(queryConnectionPool, pooledConnection);
+      }
+    }
     try {
       connection = DriverManager.getConnection(queryURL, config.TIMESCALEDB_USERNAME,
           config.TIMESCALEDB_PASSWORD);
@@ -106,6 +171,10 @@ public class TimescaleDBManager implements IDataBaseManager {
       logger.error("Initialize TimescaleDB failed because ", e);
     }
     logger.info("connecting url: " + queryURL);
+    return query(connection, sqls);
+  }
+
+  private long query(Connection connection, String[] sqls) {
     for (String sql : sqls) {
       logger.info("Begin query: {}", sql);
     }
@@ -328,6 +397,12 @@ public class TimescaleDBManager implements IDataBaseManager {
 
   @Override
   public long close() {
+    if (connectionPool != null) {
+      connectionPool.release();
+    }
+    if (queryConnectionPool != null) {
+      queryConnectionPool.release();
+    }
     if (connection == null) {
       return 0;
     }
@@ -339,7 +414,7 @@ public class TimescaleDBManager implements IDataBaseManager {
     return 0;
   }
 
-  private void registerSchema(Schema schema) {
+  private void registerSchema(Connection connection, Schema schema) {
     // TODO: Can't create PG table because: 错误: 表最多可以有 1600 个字段
     try (Statement statement = connection.createStatement()) {
       String[] pgsql = getCreateTableSql(schema);
@@ -405,10 +480,22 @@ public class TimescaleDBManager implements IDataBaseManager {
 
   @Override
   public long insertBatch(List<Record> records, Schema schema) {
+    if (connectionPool == null) {
+      return insertBatch(connection, records, schema);
+    }
+    Connection pooledConnection = borrowConnection(connectionPool);
+    try {
+      return insertBatch(pooledConnection, records, schema);
+    } finally {
+      giveBack(connectionPool, pooledConnection);
+    }
+  }
+
+  private long insertBatch(Connection connection, List<Record> records, Schema schema) {
     // TODO: Can't create PG table because: 错误: 表最多可以有 1600 个字段
     if (currentTagTable == null || !currentTagTable.equals(schema.getTag())) {
       currentTagTable = schema.getTag();
-      registerSchema(schema);
+      registerSchema(connection, schema);
     }
 
     long start = 0;
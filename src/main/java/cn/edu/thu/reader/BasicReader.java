@@ -1,16 +1,22 @@
 package cn.edu.thu.reader;
 
 import cn.edu.thu.common.Config;
+import cn.edu.thu.common.OffHeapRecordBatch;
 import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
 import cn.edu.thu.common.Schema;
+import cn.edu.thu.common.StringDictionary;
+import cn.edu.thu.reader.disorder.IDisorderGenerator;
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.Collections;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,18 +33,37 @@ public abstract class BasicReader implements Iterator<List<Record>> {
 
   protected String currentFile;
   protected String currentDeviceId;
+  // interns the text values, the one of the cache
+  protected StringDictionary dictionary;
+
+  // null if no disorder is injected
+  private IDisorderGenerator disorderGenerator;
+  private boolean disorderSeeded = false;
+  private String disorderFile;
+  // tells apart the readers without files, see setDisorderStream()
+  private int disorderStream = 0;
+
+  // the released batches and the dictionary, shared with the readers of the other files of the
+  // reading thread if it is set by setCache()
+  private ReaderCache cache;
+  // records per batch, BATCH_SIZE unless the writer tunes it
+  protected volatile int batchSize;
 
   public BasicReader(Config config) {
     this.config = config;
+    batchSize = config.BATCH_SIZE;
+    setCache(new ReaderCache(config));
   }
 
   public BasicReader(Config config, List<String> files) {
     this.config = config;
+    batchSize = config.BATCH_SIZE;
     this.files = files;
-    cachedLines = new ArrayList<>(config.BATCH_SIZE);
+    setCache(new ReaderCache(config));
+    cachedLines = new ArrayList<>(batchSize);
     try {
-      reader = new BufferedReader(new FileReader(files.get(currentFileIndex)));
       currentFile = files.get(currentFileIndex);
+      openFile(currentFile);
       logger.info("start to read {}-th file {}", currentFileIndex, currentFile);
       onFileOpened();
     } catch (Exception e) {
@@ -49,49 +74,35 @@ public abstract class BasicReader implements Iterator<List<Record>> {
 
   public boolean hasNext() {
 
-    if (!cachedLines.isEmpty()) {
+    if (bufferedNum() > 0) {
       return true;
     }
 
     try {
-      String line;
-      while (true) {
+      while (bufferedNum() < batchSize) {
 
-        if(reader == null) {
-          return false;
+        if (!isFileOpen()) {
+          break;
         }
 
-        line = reader.readLine();
-
-        // current file end
-        if(line == null) {
-
-          // current file has been resolved, read next file
-          if(cachedLines.isEmpty()) {
-            if (currentFileIndex < files.size() - 1) {
-              currentFile = files.get(++currentFileIndex);
-              logger.info("start to read {}-th file {}", currentFileIndex, currentFile);
-              reader.close();
-              reader = new BufferedReader(new FileReader(currentFile));
-              onFileOpened();
-              continue;
-            } else {
-              // no more file to read
-              reader.close();
-              reader = null;
-              break;
-            }
-          } else {
-            // resolve current file
-            return true;
-          }
-        } else if (line.isEmpty()){
+        if (bufferNextLine()) {
           continue;
         }
 
-        // read a line, cache it
-        cachedLines.add(line);
-        if (cachedLines.size() >= config.BATCH_SIZE) {
+        // current file end, resolve current file first, a batch never spans two files
+        if (bufferedNum() > 0) {
+          break;
+        }
+
+        // current file has been resolved, read next file
+        closeFile();
+        if (currentFileIndex < files.size() - 1) {
+          currentFile = files.get(++currentFileIndex);
+          logger.info("start to read {}-th file {}", currentFileIndex, currentFile);
+          openFile(currentFile);
+          onFileOpened();
+        } else {
+          // no more file to read
           break;
         }
       }
@@ -100,7 +111,38 @@ public abstract class BasicReader implements Iterator<List<Record>> {
       return false;
     }
 
-    return !cachedLines.isEmpty();
+    return bufferedNum() > 0;
+  }
+
+  /**
+   * @return the lines, or records, read for the next batch
+   */
+  protected int bufferedNum() {
+    return cachedLines.size();
+  }
+
+  /**
+   * @return true while the current file is open, false after the last one is closed
+   */
+  protected boolean isFileOpen() {
+    return reader != null;
+  }
+
+  /**
+   * read the next line of the current file for the next batch, empty lines are skipped
+   *
+   * @return false at the end of the current file
+   */
+  protected boolean bufferNextLine() throws Exception {
+    String line = reader.readLine();
+    if (line == null) {
+      return false;
+    }
+    if (!line.isEmpty()) {
+      // read a line, cache it
+      cachedLines.add(line);
+    }
+    return true;
   }
 
 
@@ -122,9 +164,255 @@ public abstract class BasicReader implements Iterator<List<Record>> {
     List<Record> records = convertCachedLinesToRecords();
 //    cachedLines.clear();
 
+    if (disorderGenerator != null) {
+      disorder(records);
+    }
     return records;
   }
 
+  /**
+   * the same records as next(), stored by column
+   */
+  public RecordBatch nextBatch() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    RecordBatch batch = convertCachedLinesToBatch();
+    if (disorderGenerator != null) {
+      reseedDisorder();
+      for (int row = 0; row < batch.size(); row++) {
+        batch.setTimestamp(row,
+            disorderGenerator.disorder(batch.getTimestamp(row), batch.getTag(row)));
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * convert the cachedLines to a columnar batch, readers that parse into columns override it to
+   * skip the boxed records
+   */
+  protected RecordBatch convertCachedLinesToBatch() {
+    List<Record> records = convertCachedLinesToRecords();
+    RecordBatch batch = newBatch(getCurrentSchema());
+    batch.addRecords(records);
+    if (!isBatchReused()) {
+      release(records);
+    }
+    return batch;
+  }
+
+  /**
+   * Give a consumed batch of next() back to this reader, so that its list and records are
+   * overwritten by a later batch instead of being garbage. The caller must not use the batch
+   * afterwards. Batches that are not released are simply collected.
+   */
+  public void release(List<Record> records) {
+    cache.releasedRecords.offer(records);
+  }
+
+  /**
+   * give a consumed batch of nextBatch() back to this reader, see release(List)
+   */
+  public void release(RecordBatch batch) {
+    if (!cache.releasedBatches.offer(batch)) {
+      free(batch);
+    }
+  }
+
+  /**
+   * @return an empty list for the records of the next batch, a released one if there is any
+   */
+  protected List<Record> newRecordList() {
+    List<Record> records = cache.releasedRecords.poll();
+    if (records == null) {
+      return new ArrayList<>(batchSize);
+    }
+    for (Record record : records) {
+      if (cache.spareRecords.size() >= batchSize) {
+        break;
+      }
+      cache.spareRecords.add(record);
+    }
+    records.clear();
+    return records;
+  }
+
+  /**
+   * @return a record with the given timestamp and tag and no fields, which overwrites a record of
+   * a released batch if there is any
+   */
+  protected Record newRecord(long timestamp, String tag, int fieldNum) {
+    List<Record> spareRecords = cache.spareRecords;
+    if (spareRecords.isEmpty()) {
+      return new Record(timestamp, tag, new ArrayList<>(fieldNum));
+    }
+    Record record = spareRecords.remove(spareRecords.size() - 1);
+    record.timestamp = timestamp;
+    record.tag = tag;
+    record.fields.clear();
+    return record;
+  }
+
+  /**
+   * @return an empty batch of the schema, a released one if there is any of the same schema. New
+   * batches are off-heap while the OffHeapBudget of the writer allows.
+   */
+  protected RecordBatch newBatch(Schema schema) {
+    RecordBatch batch;
+    while ((batch = cache.releasedBatches.poll()) != null) {
+      // batches of the schema of a previous file, or smaller than the batch size, are dropped
+      if (batch.getSchema() == schema && batch.getCapacity() >= batchSize) {
+        batch.clear();
+        return batch;
+      }
+      free(batch);
+    }
+
+    batch = cache.offHeapBudget.allocate(schema, batchSize);
+    return batch != null ? batch : new RecordBatch(schema, batchSize);
+  }
+
+  private static void free(RecordBatch batch) {
+    if (batch instanceof OffHeapRecordBatch) {
+      ((OffHeapRecordBatch) batch).free();
+    }
+  }
+
+  /**
+   * skip the next records, e.g., the ones a previous run loaded, as if next() returned them
+   *
+   * @return the records skipped, fewer than recordNum at the end of the files
+   */
+  public long skip(long recordNum) {
+    return skipBatches(recordNum);
+  }
+
+  private long skipBatches(long recordNum) {
+    int size = batchSize;
+    long skippedNum = 0;
+    try {
+      while (skippedNum < recordNum) {
+        setBatchSize((int) Math.min(recordNum - skippedNum, size));
+        if (!hasNext()) {
+          break;
+        }
+        if (config.COLUMNAR_BATCH) {
+          RecordBatch batch = nextBatch();
+          skippedNum += batch.size();
+          release(batch);
+        } else {
+          List<Record> records = next();
+          skippedNum += records.size();
+          if (!isBatchReused()) {
+            release(records);
+          }
+        }
+      }
+    } finally {
+      batchSize = size;
+    }
+    return skippedNum;
+  }
+
+  /**
+   * skip() for readers that turn each cached line into one record, the lines are not parsed
+   * unless the records are disordered, then the disorder generator advances as if they were read
+   */
+  protected long skipLines(long lineNum) {
+    if (disorderGenerator != null) {
+      return skipBatches(lineNum);
+    }
+    int cachedNum = (int) Math.min(lineNum, cachedLines.size());
+    cachedLines.subList(0, cachedNum).clear();
+    long skippedNum = cachedNum;
+    try {
+      String line;
+      while (skippedNum < lineNum && reader != null && (line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          skippedNum++;
+        }
+      }
+    } catch (IOException e) {
+      logger.error("skip lines of file {} failed", currentFile, e);
+    }
+    return skippedNum;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param batchSize the records of the following batches, the ones already read keep theirs
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(batchSize, 1);
+  }
+
+  /**
+   * reuse the released batches and the dictionary of the cache, which the previous readers of the
+   * reading thread filled, instead of the ones of this reader; set before the first batch is read
+   */
+  public void setCache(ReaderCache cache) {
+    this.cache = cache;
+    this.dictionary = cache.dictionary;
+  }
+
+  /**
+   * @param disorderGenerator shifts the timestamps of the records returned by next(), null for
+   * none
+   */
+  public void setDisorderGenerator(IDisorderGenerator disorderGenerator) {
+    this.disorderGenerator = disorderGenerator;
+    this.disorderSeeded = false;
+  }
+
+  /**
+   * @param disorderStream mixed into the disorder seed of a reader without files, e.g., the index
+   * of its writer, so that the synthetic data of the writers is not disordered alike
+   */
+  public void setDisorderStream(int disorderStream) {
+    this.disorderStream = disorderStream;
+    this.disorderSeeded = false;
+  }
+
+  private void disorder(List<Record> records) {
+    reseedDisorder();
+    for (Record record : records) {
+      record.timestamp = disorderGenerator.disorder(record.timestamp, record.tag);
+    }
+  }
+
+  private void reseedDisorder() {
+    // a batch never spans two files, reseed when a new file is reached
+    if (!disorderSeeded || !Objects.equals(disorderFile, currentFile)) {
+      disorderGenerator.reset(disorderSeed(currentFile));
+      disorderFile = currentFile;
+      disorderSeeded = true;
+    }
+  }
+
+  /**
+   * the seed of a file depends on its path under DATA_DIR, not on the thread that reads it; the
+   * seed of generated data depends on its device range and its stream
+   */
+  private long disorderSeed(String file) {
+    long seed = config.DISORDER_SEED;
+    if (file != null) {
+      String dataDir = new File(config.DATA_DIR).getAbsolutePath();
+      String path = new File(file).getAbsolutePath();
+      if (path.startsWith(dataDir)) {
+        path = path.substring(dataDir.length());
+      }
+      seed = seed * 31 + path.hashCode();
+    } else {
+      seed = (seed * 31 + config.syntheticDeviceOffset) * 31 + disorderStream;
+    }
+    return seed;
+  }
+
   /**
    * return true with 10% probability
    */
@@ -141,6 +429,42 @@ public abstract class BasicReader implements Iterator<List<Record>> {
 //  }
 
 
+  /**
+   * stop reading before the end of the files, e.g., at the end of a measurement window, no batch
+   * is read afterwards
+   */
+  public void close() {
+    // readers of generated data have no files
+    if (files == null) {
+      return;
+    }
+    cachedLines.clear();
+    currentFileIndex = files.size() - 1;
+    try {
+      closeFile();
+    } catch (IOException e) {
+      logger.warn("close file {} failed", currentFile, e);
+    }
+  }
+
+  /**
+   * open the underlying input of a file before onFileOpened() is called, compressed files are
+   * decompressed transparently
+   */
+  protected void openFile(String file) throws IOException {
+    reader = CompressedInput.openReader(file, config.COMPRESSED_READ_AHEAD_CHUNKS);
+  }
+
+  /**
+   * release the underlying input of the current file
+   */
+  protected void closeFile() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+  }
+
   /**
    * initialize when start reading a file
    * maybe skip the first lines
@@ -149,4 +473,12 @@ public abstract class BasicReader implements Iterator<List<Record>> {
   public abstract void onFileOpened() throws Exception;
 
   public abstract Schema getCurrentSchema();
+
+  /**
+   * @return true if the records returned by next() are overwritten by the following call, so a
+   * consumer that keeps them longer must copy them
+   */
+  public boolean isBatchReused() {
+    return false;
+  }
 }
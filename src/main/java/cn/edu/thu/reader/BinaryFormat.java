@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader;
+
+/**
+ * Layout of the pre-converted binary replay files, one file per device and schema:
+ * <pre>
+ * file   := header block*
+ * header := int headerLength, int MAGIC, byte VERSION, string schemaTag, string deviceTag,
+ *           int fieldNum, (string field, byte typeCode, int precision) * fieldNum
+ * block  := int blockLength, int rowNum, long[rowNum] timestamps, column * fieldNum
+ * column := byte[(rowNum + 7) / 8] nullBitmap, values
+ * values := long[rowNum] | double[rowNum] | (int length, byte[length] utf8) * nonNullRowNum
+ * string := int length, byte[length] utf8
+ * </pre>
+ * A set bit in the null bitmap marks a null value, whose slot in a long or double column holds 0
+ * and which is skipped in a string column. All numbers are big-endian.
+ */
+public class BinaryFormat {
+
+  public static final int MAGIC = 0x42545342;
+  public static final byte VERSION = 1;
+  public static final String FILE_SUFFIX = ".bin";
+
+  public static final byte TYPE_LONG = 'L';
+  public static final byte TYPE_DOUBLE = 'D';
+  public static final byte TYPE_STRING = 'S';
+  // the source schema declares no type, values are stored as doubles
+  public static final byte TYPE_UNDECLARED = 'N';
+
+  private BinaryFormat() {
+  }
+
+  public static byte typeToCode(Class<?> type) {
+    if (type == null) {
+      return TYPE_UNDECLARED;
+    }
+    if (type == Long.class) {
+      return TYPE_LONG;
+    }
+    if (type == Double.class) {
+      return TYPE_DOUBLE;
+    }
+    return TYPE_STRING;
+  }
+
+  public static Class<?> codeToType(byte code) {
+    switch (code) {
+      case TYPE_LONG:
+        return Long.class;
+      case TYPE_DOUBLE:
+        return Double.class;
+      case TYPE_STRING:
+        return String.class;
+      default:
+        return null;
+    }
+  }
+
+  public static int nullBitmapLength(int rowNum) {
+    return (rowNum + 7) / 8;
+  }
+}
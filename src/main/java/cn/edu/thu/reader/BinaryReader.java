@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader;
+
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
+import cn.edu.thu.common.Schema;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays the files written by BinaryDatasetConverter. Blocks are memory-mapped one at a time and
+ * decoded without any text parsing, so the ingest measurement is not bound by the csv parser. A
+ * batch never spans two files, because every file has its own schema.
+ */
+public class BinaryReader extends BasicReader {
+
+  // the fields below are set in openFile() and onFileOpened(), which are called by the super
+  // constructor, so they must not have initializers
+  private FileChannel channel;
+  private long fileSize;
+  // file offset of the next block
+  private long position;
+  private Schema schema;
+  private String deviceTag;
+  private byte[] typeCodes;
+
+  private ByteBuffer block;
+  private int blockRowNum;
+  private int blockRow;
+  private int[] nullOffsets;
+  // the offset of the values of a column, of the next value for a string column
+  private int[] valueOffsets;
+  private byte[] scratch;
+
+  private List<Record> pendingRecords = new ArrayList<>();
+  // used instead of pendingRecords when COLUMNAR_BATCH=true
+  private RecordBatch pendingBatch;
+
+  public BinaryReader(Config config, List<String> files) {
+    super(config, files);
+  }
+
+  @Override
+  protected void openFile(String file) throws IOException {
+    channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+    fileSize = channel.size();
+  }
+
+  @Override
+  protected void closeFile() throws IOException {
+    block = null;
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  @Override
+  public void onFileOpened() throws Exception {
+    int headerLength = readInt(0);
+    ByteBuffer header = channel.map(MapMode.READ_ONLY, 4, headerLength);
+    if (header.getInt() != BinaryFormat.MAGIC || header.get() != BinaryFormat.VERSION) {
+      throw new IOException(currentFile + " is not a binary replay file of version "
+          + BinaryFormat.VERSION);
+    }
+    String schemaTag = readString(header);
+    deviceTag = readString(header);
+    int fieldNum = header.getInt();
+    schema = new Schema(new String[fieldNum], new int[fieldNum]);
+    schema.setTag(schemaTag);
+    typeCodes = new byte[fieldNum];
+    for (int i = 0; i < fieldNum; i++) {
+      schema.getFields()[i] = readString(header);
+      typeCodes[i] = header.get();
+      schema.getTypes()[i] = BinaryFormat.codeToType(typeCodes[i]);
+      schema.getPrecision()[i] = header.getInt();
+    }
+
+    nullOffsets = new int[fieldNum];
+    valueOffsets = new int[fieldNum];
+    position = 4L + headerLength;
+    blockRowNum = 0;
+    blockRow = 0;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    // the rows decoded for the next batch are dropped like the cached lines
+    pendingRecords.clear();
+    if (pendingBatch != null) {
+      release(pendingBatch);
+      pendingBatch = null;
+    }
+  }
+
+  @Override
+  protected int bufferedNum() {
+    return pendingNum();
+  }
+
+  @Override
+  protected boolean isFileOpen() {
+    return channel != null;
+  }
+
+  /**
+   * decode the next row of the current file, from the next block once this one is read
+   */
+  @Override
+  protected boolean bufferNextLine() throws IOException {
+    if (blockRow >= blockRowNum && !loadBlock()) {
+      return false;
+    }
+    if (config.COLUMNAR_BATCH) {
+      readRow(pendingBatch());
+    } else {
+      pendingRecords.add(readRow());
+    }
+    return true;
+  }
+
+  @Override
+  protected List<Record> convertCachedLinesToRecords() {
+    if (config.COLUMNAR_BATCH) {
+      RecordBatch batch = pendingBatch;
+      pendingBatch = null;
+      List<Record> records = batch.toRecords();
+      // the records are copies, the batch is reused or its off-heap memory freed
+      release(batch);
+      return records;
+    }
+    List<Record> records = pendingRecords;
+    pendingRecords = newRecordList();
+    return records;
+  }
+
+  @Override
+  protected RecordBatch convertCachedLinesToBatch() {
+    if (!config.COLUMNAR_BATCH) {
+      return super.convertCachedLinesToBatch();
+    }
+    RecordBatch batch = pendingBatch;
+    pendingBatch = null;
+    return batch;
+  }
+
+  private int pendingNum() {
+    if (config.COLUMNAR_BATCH) {
+      return pendingBatch == null ? 0 : pendingBatch.size();
+    }
+    return pendingRecords.size();
+  }
+
+  private RecordBatch pendingBatch() {
+    if (pendingBatch == null) {
+      pendingBatch = newBatch(schema);
+    }
+    return pendingBatch;
+  }
+
+  @Override
+  public Schema getCurrentSchema() {
+    return schema;
+  }
+
+  /**
+   * map the next block and locate its columns
+   *
+   * @return false if the current file has no more blocks
+   */
+  private boolean loadBlock() throws IOException {
+    while (position < fileSize) {
+      int blockLength = readInt(position);
+      block = channel.map(MapMode.READ_ONLY, position + 4, blockLength);
+      position += 4L + blockLength;
+
+      blockRowNum = block.getInt(0);
+      blockRow = 0;
+      int offset = 4 + blockRowNum * 8;
+      for (int i = 0; i < typeCodes.length; i++) {
+        nullOffsets[i] = offset;
+        offset += BinaryFormat.nullBitmapLength(blockRowNum);
+        valueOffsets[i] = offset;
+        if (typeCodes[i] == BinaryFormat.TYPE_STRING) {
+          for (int row = 0; row < blockRowNum; row++) {
+            if (!isNull(i, row)) {
+              offset += 4 + block.getInt(offset);
+            }
+          }
+        } else {
+          offset += blockRowNum * 8;
+        }
+      }
+      if (blockRowNum > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Record readRow() {
+    int row = blockRow++;
+    Record record = newRecord(block.getLong(4 + row * 8), deviceTag, typeCodes.length);
+    List<Object> fields = record.fields;
+    for (int i = 0; i < typeCodes.length; i++) {
+      if (isNull(i, row)) {
+        fields.add(null);
+        continue;
+      }
+      switch (typeCodes[i]) {
+        case BinaryFormat.TYPE_LONG:
+          fields.add(block.getLong(valueOffsets[i] + row * 8));
+          break;
+        case BinaryFormat.TYPE_STRING:
+          int length = block.getInt(valueOffsets[i]);
+          int id = dictionary.getId(block, valueOffsets[i] + 4, length);
+          if (id < 0) {
+            block.position(valueOffsets[i] + 4);
+            fields.add(readBytes(block, length));
+          } else {
+            fields.add(dictionary.getString(id));
+          }
+          valueOffsets[i] += 4 + length;
+          break;
+        default:
+          fields.add(block.getDouble(valueOffsets[i] + row * 8));
+      }
+    }
+    return record;
+  }
+
+  /**
+   * the same row as readRow(), appended to the batch without boxing
+   */
+  private void readRow(RecordBatch batch) {
+    int row = blockRow++;
+    int batchRow = batch.addRow(block.getLong(4 + row * 8), deviceTag);
+    for (int i = 0; i < typeCodes.length; i++) {
+      if (isNull(i, row)) {
+        continue;
+      }
+      switch (typeCodes[i]) {
+        case BinaryFormat.TYPE_LONG:
+          batch.setLong(i, batchRow, block.getLong(valueOffsets[i] + row * 8));
+          break;
+        case BinaryFormat.TYPE_STRING:
+          int length = block.getInt(valueOffsets[i]);
+          int id = dictionary.getId(block, valueOffsets[i] + 4, length);
+          if (id < 0) {
+            block.position(valueOffsets[i] + 4);
+            batch.setString(i, batchRow, readBytes(block, length));
+          } else {
+            batch.setString(i, batchRow, dictionary.getString(id), dictionary.getUtf8(id));
+          }
+          valueOffsets[i] += 4 + length;
+          break;
+        default:
+          batch.setDouble(i, batchRow, block.getDouble(valueOffsets[i] + row * 8));
+      }
+    }
+  }
+
+  private boolean isNull(int column, int row) {
+    return (block.get(nullOffsets[column] + (row >>> 3)) & (1 << (row & 7))) != 0;
+  }
+
+  private int readInt(long offset) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(4);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException(currentFile + " ends unexpectedly at " + offset);
+      }
+    }
+    return buffer.getInt(0);
+  }
+
+  private String readString(ByteBuffer buffer) {
+    return readBytes(buffer, buffer.getInt());
+  }
+
+  private String readBytes(ByteBuffer buffer, int length) {
+    if (scratch == null || scratch.length < length) {
+      scratch = new byte[Math.max(length, 64)];
+    }
+    buffer.get(scratch, 0, length);
+    return new String(scratch, 0, length, StandardCharsets.UTF_8);
+  }
+}
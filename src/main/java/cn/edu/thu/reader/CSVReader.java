@@ -21,16 +21,17 @@ package cn.edu.thu.reader;
 
 import cn.edu.thu.common.Config;
 import cn.edu.thu.common.IndexedSchema;
+import cn.edu.thu.common.NumberParser;
 import cn.edu.thu.common.IndexedSchema.MapIndexedSchema;
 import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
 import cn.edu.thu.common.Schema;
+import cn.edu.thu.common.SchemaCatalog;
+import cn.edu.thu.common.TimestampParser;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -38,8 +39,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,41 +53,96 @@ public class CSVReader extends BasicReader {
   private final int defaultPrecision = 8;
   private IndexedSchema overallSchema;
   private Schema currentFileSchema;
-  private boolean useDateFormat = true;
-  private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+  // the overall schema index of each column of the current file, null if the fields follow the
+  // file schema; assigned in onFileOpened(), so it has no initializer
+  private int[] overallIndexes;
   private Map<String, Class<?>> typeMap;
 
-  private double stdDev;
 
-  public CSVReader(Config config, List<String> files, double stdDev) throws IOException {
+  // only used in mmap mode, assigned while the super constructor opens the first file
+  private MappedCSVTokenizer tokenizer;
+  // detects epoch or date-time timestamps per file, assigned in onFileOpened()
+  private TimestampParser timestampParser;
+  private List<Record> pendingRecords = new ArrayList<>();
+  // used instead of pendingRecords in mmap mode when COLUMNAR_BATCH=true
+  private RecordBatch pendingBatch;
+  // created on first use, the type inference of the first file runs in the super constructor
+  private NumberParser numberParser;
+
+  public CSVReader(Config config, List<String> files) throws IOException {
+    this(config, files, null);
+  }
+
+  /**
+   * @param overallSchema the overall schema of all files when TYPE_INFO_EXIST=false and
+   * split_file_by_device=false, shared read-only between readers. If null, it is collected from
+   * the files of this reader.
+   */
+  public CSVReader(Config config, List<String> files, IndexedSchema overallSchema)
+      throws IOException {
     super(config, files);
+    if (config.CSV_USE_MMAP && !useMmap()) {
+      logger.warn("csv_use_mmap requires a single-char separator, got \"{}\", fall back to "
+          + "line-based reading", config.CSV_SEPARATOR);
+    }
     if (!config.TYPE_INFO_EXIST) {
       if (!config.splitFileByDevice) {
-        logger.info("Collecting the overall schema");
-        overallSchema = collectSchemaFromFiles(files);
-        logger.info("The overall schema is collected");
-        logger.debug("The overall schema is: {}", overallSchema);
+        if (overallSchema == null) {
+          overallSchema = collectOverallSchema(config, files);
+        }
+        this.overallSchema = overallSchema;
+        // the first file was opened by the super constructor without the overall schema
+        overallIndexes = projectToOverallSchema(currentFileSchema);
       }
     }
-    this.stdDev = stdDev;
   }
 
-  private IndexedSchema collectSchemaFromFiles(List<String> files) {
-    SchemaSet schemaSet = new SchemaSet();
-    logger.info("Collecting schema from {} files", files.size());
-    for (int i = 0; i < files.size(); i++) {
-      String file = files.get(i);
-      logger.info("Collecting schema from {} ({}/{})", file, (i + 1), files.size());
-      schemaSet.union(collectSchemaFromFile(file));
+  /**
+   * schema-only instance used to collect schemas, it does not open any file by itself
+   */
+  private CSVReader(Config config) {
+    super(config);
+  }
+
+  /**
+   * Collect the overall schema of the files in parallel, each file is scanned by a fork-join task
+   * and the partial results are merged pairwise.
+   */
+  public static IndexedSchema collectOverallSchema(Config config, List<String> files) {
+    logger.info("Collecting the overall schema from {} files", files.size());
+    CSVReader probe = new CSVReader(config);
+    ForkJoinPool pool = new ForkJoinPool(
+        Math.max(Runtime.getRuntime().availableProcessors(), config.THREAD_NUM));
+    IndexedSchema schema;
+    try {
+      schema = pool.invoke(new CollectSchemaTask(probe, files, 0, files.size(),
+          new AtomicInteger())).toSchema();
+    } finally {
+      pool.shutdown();
     }
-    return schemaSet.toSchema();
+    logger.info("The overall schema is collected");
+    logger.debug("The overall schema is: {}", schema);
+    return schema;
   }
 
   private Schema collectSchemaFromFile(String file) {
-    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+    SchemaCatalog catalog = schemaCatalog();
+    if (catalog != null) {
+      Schema schema = catalog.get(file, schemaCatalogParams());
+      if (schema != null) {
+        return schema;
+      }
+    }
+
+    try (BufferedReader reader = CompressedInput.openReader(file,
+        config.COMPRESSED_READ_AHEAD_CHUNKS)) {
       String headerLine = reader.readLine();
       if (headerLine != null) {
-        return convertHeaderToSchema(headerLine, reader, file, false);
+        Schema schema = convertHeaderToSchema(headerLine, reader::readLine, file, false);
+        if (catalog != null) {
+          catalog.put(file, schemaCatalogParams(), schema);
+        }
+        return schema;
       }
     } catch (IOException e) {
       logger.warn("Cannot read schema from file {}, file skipped", file);
@@ -93,7 +151,7 @@ public class CSVReader extends BasicReader {
     return null;
   }
 
-  private void inferTypeWithData(int fieldNum, Schema schema, BufferedReader reader,
+  private void inferTypeWithData(int fieldNum, Schema schema, LineSource reader,
       boolean fillCache) throws IOException {
     for (int i = 0; i < fieldNum; i++) {
       schema.getTypes()[i] = null;
@@ -283,7 +341,7 @@ public class CSVReader extends BasicReader {
     return result.toString();
   }
 
-  private Schema convertHeaderToSchema(String headerLine, BufferedReader reader, String fileName,
+  private Schema convertHeaderToSchema(String headerLine, LineSource reader, String fileName,
       boolean fillCache)
       throws IOException {
     String[] split = headerLine.split(config.CSV_SEPARATOR);
@@ -338,29 +396,30 @@ public class CSVReader extends BasicReader {
       return null;
     }
 
-    try {
-      Long.parseLong(field);
-      return Long.class;
-    } catch (NumberFormatException ignore) {
-      // ignored
-    }
-
-    try {
-      Double.parseDouble(field);
-      return Double.class;
-    } catch (NumberFormatException ignore) {
-      // ignored
-    }
-
-    return String.class;
+    // also called by the threads collecting the overall schema, inferType() keeps no state
+    return numberParser().inferType(field);
   }
 
   @Override
   public List<Record> convertCachedLinesToRecords() {
-    List<Record> records = new ArrayList<>();
+    if (useMmap()) {
+      if (config.COLUMNAR_BATCH) {
+        RecordBatch batch = pendingBatch;
+        pendingBatch = null;
+        List<Record> records = batch.toRecords();
+        // the records are copies, the batch is reused or its off-heap memory freed
+        release(batch);
+        return records;
+      }
+      List<Record> records = pendingRecords;
+      pendingRecords = newRecordList();
+      return records;
+    }
+
+    List<Record> records = newRecordList();
     Iterator<String> it = cachedLines.iterator();
     int n = 0;
-    while (n < config.BATCH_SIZE && it.hasNext()) {
+    while (n < batchSize && it.hasNext()) {
       String cachedLine = it.next();
       it.remove();
       records.add(convertToRecord(cachedLine));
@@ -387,22 +446,22 @@ public class CSVReader extends BasicReader {
     }
 
     Class<?> type = schema.getTypes()[index];
-    try {
-      if (type == Long.class) {
-        return Long.parseLong(field);
+    if (type == Long.class) {
+      if (numberParser().tryParseLong(field)) {
+        return numberParser.getLongValue();
       }
-      if (type == Double.class) {
-        return Double.parseDouble(field);
+    } else if (type == Double.class) {
+      if (numberParser().tryParseDouble(field)) {
+        return numberParser.getDoubleValue();
       }
-      return field;
-    } catch (NumberFormatException ignore) {
-      logger.info("field {}: parseField type conflict: return null object.", field);
-      return null;
+    } else {
+      return dictionary.intern(field);
     }
+    logger.info("field {}: parseField type conflict: return null object.", field);
+    return null;
   }
 
-  private List<Object> fieldsWithCurrentFileSchema(String[] split) {
-    List<Object> fields = new ArrayList<>(currentFileSchema.getFields().length);
+  private void fieldsWithCurrentFileSchema(String[] split, List<Object> fields) {
     for (int i = 1; i < split.length; i++) {
       split[i] = removeOuterQuote(split[i]);
       // IMPORTANT NOTE: here need to remove quote, otherwise for example 'null' can not be identified as null during writes.
@@ -413,70 +472,349 @@ public class CSVReader extends BasicReader {
     for (int i = split.length; i <= currentFileSchema.getFields().length; i++) {
       fields.add(null); // this is for tianyuan dataset, where data may be less than schema fields
     }
-
-    return fields;
   }
 
-  private List<Object> fieldsWithOverallSchema(String[] split) {
-    List<Object> fields = new ArrayList<>(overallSchema.getFields().length);
+  private void fieldsWithOverallSchema(String[] split, List<Object> fields) {
     for (int i = 0; i < overallSchema.getFields().length; i++) {
       fields.add(null);
     }
 
     for (int i = 1; i < split.length; i++) {
-      int overallIndex = overallSchema.getIndex(currentFileSchema.getFields()[i - 1]);
+      int overallIndex = overallIndexes[i - 1];
       split[i] = removeOuterQuote(split[i]);
 
       fields.set(overallIndex, parseField(split[i], overallSchema, overallIndex));
     }
-    return fields;
   }
 
-  private long parseTime(String timeStr) {
-    if (useDateFormat) {
-      try {
-        return dateFormat.parse(timeStr).getTime();
-      } catch (ParseException e) {
-        useDateFormat = false;
-        return Long.parseLong(timeStr);
+  private Record convertToRecord(String line) {
+    String[] split = line.split(config.CSV_SEPARATOR);
+    long time = timestampParser.parse(split[0]);
+
+    String tag = currentFileSchema.getTag();
+    Record record = newRecord(time, tag, getCurrentSchema().getFields().length);
+
+    if (config.TYPE_INFO_EXIST || config.splitFileByDevice) {
+      fieldsWithCurrentFileSchema(split, record.fields);
+    } else {
+      fieldsWithOverallSchema(split, record.fields);
+    }
+
+    return record;
+  }
+
+  private SchemaCatalog schemaCatalog() {
+    return config.SCHEMA_CATALOG_FILE.isEmpty() ? null
+        : SchemaCatalog.open(config.SCHEMA_CATALOG_FILE);
+  }
+
+  /**
+   * the parameters an inferred schema depends on besides the file itself
+   */
+  private String schemaCatalogParams() {
+    return config.CSV_SEPARATOR + "|" + config.INFER_TYPE_MAX_RECORD_NUM;
+  }
+
+  /**
+   * read the header and infer the schema of the current file, or take it from the schema catalog
+   */
+  private Schema collectCurrentFileSchema(LineSource lineSource) throws IOException {
+    String headerLine = lineSource.readLine();
+    SchemaCatalog catalog = schemaCatalog();
+    if (catalog != null) {
+      Schema schema = catalog.get(currentFile, schemaCatalogParams());
+      if (schema != null) {
+        if (overallSchema != null) {
+          inferTypeWithOverallSchema(schema);
+        }
+        logger.info("File {} schema loaded from catalog", currentFile);
+        return schema;
+      }
+    }
+
+    Schema schema = convertHeaderToSchema(headerLine, lineSource, currentFile, true);
+    // with an overall schema the types are not inferred from this file
+    if (catalog != null && overallSchema == null) {
+      catalog.put(currentFile, schemaCatalogParams(), schema);
+    }
+    logger.info("File {} schema collected automatically", currentFile);
+    return schema;
+  }
+
+  private Object parseField(int fieldIndex, Schema schema, int index) {
+    if (tokenizer.isNull(fieldIndex)) {
+      return null;
+    }
+
+    Class<?> type = schema.getTypes()[index];
+    if (type == Long.class) {
+      if (numberParser().tryParseLong(tokenizer.getCharSequence(fieldIndex))) {
+        return numberParser.getLongValue();
+      }
+    } else if (type == Double.class) {
+      if (numberParser().tryParseDouble(tokenizer.getCharSequence(fieldIndex))) {
+        return numberParser.getDoubleValue();
       }
     } else {
-      return Long.parseLong(timeStr);
+      int id = tokenizer.getStringId(fieldIndex, dictionary);
+      return id < 0 ? tokenizer.getString(fieldIndex) : dictionary.getString(id);
     }
+    logger.info("field {}: parseField type conflict: return null object.",
+        tokenizer.getString(fieldIndex));
+    return null;
   }
 
-  private Record convertToRecord(String line) {
-    Record record;
+  /**
+   * the same conversion as convertToRecord(), but reading the fields of the current line of the
+   * tokenizer in place
+   */
+  private Record convertTokenizedLine() {
+    long time = timestampParser.parse(tokenizer.getCharSequence(0));
+
+    Schema schema = getCurrentSchema();
+    int fieldNum = schema.getFields().length;
+    Record record = newRecord(time, currentFileSchema.getTag(), fieldNum);
+    List<Object> fields = record.fields;
+    for (int i = 0; i < fieldNum; i++) {
+      fields.add(null); // data may be less than schema fields, e.g., the tianyuan dataset
+    }
+
+    int columnNum = Math.min(tokenizer.getFieldCount(), currentFileSchema.getFields().length + 1);
+    for (int i = 1; i < columnNum; i++) {
+      tokenizer.removeOuterQuote(i);
+      int index = overallIndexes == null ? i - 1 : overallIndexes[i - 1];
+      fields.set(index, parseField(i, schema, index));
+    }
+    return record;
+  }
+
+  @Override
+  protected RecordBatch convertCachedLinesToBatch() {
+    if (useMmap()) {
+      if (!config.COLUMNAR_BATCH) {
+        return super.convertCachedLinesToBatch();
+      }
+      RecordBatch batch = pendingBatch;
+      pendingBatch = null;
+      return batch;
+    }
+
+    RecordBatch batch = newBatch(getCurrentSchema());
+    int n = Math.min(batchSize, cachedLines.size());
+    for (int i = 0; i < n; i++) {
+      addLineToBatch(batch, cachedLines.get(i));
+    }
+    cachedLines.subList(0, n).clear();
+    return batch;
+  }
+
+  /**
+   * the same conversion as convertToRecord(), into a new row of the batch
+   */
+  private void addLineToBatch(RecordBatch batch, String line) {
     String[] split = line.split(config.CSV_SEPARATOR);
-    long time = parseTime(split[0]);
+    int row = batch.addRow(timestampParser.parse(split[0]), currentFileSchema.getTag());
+
+    int columnNum = Math.min(split.length, currentFileSchema.getFields().length + 1);
+    for (int i = 1; i < columnNum; i++) {
+      int index = overallIndexes == null ? i - 1 : overallIndexes[i - 1];
+      String field = removeOuterQuote(split[i]);
+      if (field.isEmpty() || field.equalsIgnoreCase("null")) {
+        continue;
+      }
+      setField(batch, row, index, field);
+    }
+  }
 
-    // add a latency to create out-of-order for testing backward sort
-    Random random = new Random();
-    double randomGaussian = random.nextGaussian();  // 生成一个正态分布的随机数
-    time = time + (long) (this.stdDev * randomGaussian);
+  /**
+   * the same conversion as convertTokenizedLine(), into a new row of the batch
+   */
+  private void addTokenizedLineToBatch(RecordBatch batch) {
+    int row = batch.addRow(timestampParser.parse(tokenizer.getCharSequence(0)),
+        currentFileSchema.getTag());
+
+    int columnNum = Math.min(tokenizer.getFieldCount(), currentFileSchema.getFields().length + 1);
+    for (int i = 1; i < columnNum; i++) {
+      tokenizer.removeOuterQuote(i);
+      if (tokenizer.isNull(i)) {
+        continue;
+      }
+      int index = overallIndexes == null ? i - 1 : overallIndexes[i - 1];
+      Class<?> type = batch.getSchema().getTypes()[index];
+      if (type == Long.class || type == Double.class) {
+        setField(batch, row, index, tokenizer.getCharSequence(i));
+      } else {
+        int id = tokenizer.getStringId(i, dictionary);
+        if (id < 0) {
+          batch.setString(index, row, tokenizer.getString(i));
+        } else {
+          batch.setString(index, row, dictionary.getString(id), dictionary.getUtf8(id));
+        }
+      }
+    }
+  }
 
-    String tag = currentFileSchema.getTag();
-    List<Object> fields;
+  /**
+   * parse a non-null field into the batch, a value that does not match the type is left null
+   */
+  private void setField(RecordBatch batch, int row, int index, CharSequence field) {
+    Class<?> type = batch.getSchema().getTypes()[index];
+    if (type == Long.class) {
+      if (numberParser().tryParseLong(field)) {
+        batch.setLong(index, row, numberParser.getLongValue());
+        return;
+      }
+    } else if (type == Double.class) {
+      if (numberParser().tryParseDouble(field)) {
+        batch.setDouble(index, row, numberParser.getDoubleValue());
+        return;
+      }
+    } else {
+      String value = field.toString();
+      int id = dictionary.getId(value);
+      if (id < 0) {
+        batch.setString(index, row, value);
+      } else {
+        batch.setString(index, row, dictionary.getString(id), dictionary.getUtf8(id));
+      }
+      return;
+    }
+    logger.info("field {}: parseField type conflict: return null object.", field);
+  }
 
-    if (config.TYPE_INFO_EXIST || config.splitFileByDevice) {
-      fields = fieldsWithCurrentFileSchema(split);
+  private NumberParser numberParser() {
+    if (numberParser == null) {
+      numberParser = new NumberParser();
+    }
+    return numberParser;
+  }
+
+  private int pendingNum() {
+    if (config.COLUMNAR_BATCH) {
+      return pendingBatch == null ? 0 : pendingBatch.size();
+    }
+    return pendingRecords.size();
+  }
+
+  private RecordBatch pendingBatch() {
+    if (pendingBatch == null) {
+      pendingBatch = newBatch(getCurrentSchema());
+    }
+    return pendingBatch;
+  }
+
+  private void addPendingLine(String line) {
+    if (config.COLUMNAR_BATCH) {
+      addLineToBatch(pendingBatch(), line);
     } else {
-      fields = fieldsWithOverallSchema(split);
+      pendingRecords.add(convertToRecord(line));
     }
-    record = new Record(time, tag, fields);
+  }
 
-    return record;
+  private void addPendingTokenizedLine() {
+    if (config.COLUMNAR_BATCH) {
+      addTokenizedLineToBatch(pendingBatch());
+    } else {
+      pendingRecords.add(convertTokenizedLine());
+    }
+  }
+
+  @Override
+  public long skip(long recordNum) {
+    if (useMmap()) {
+      return super.skip(recordNum);
+    }
+    return skipLines(recordNum);
+  }
+
+  private boolean useMmap() {
+    return config.CSV_USE_MMAP && config.CSV_SEPARATOR.length() == 1;
+  }
+
+  @Override
+  protected void openFile(String file) throws IOException {
+    // compressed files cannot be mapped, they are read line by line even in mmap mode
+    if (useMmap() && !CompressedInput.isCompressed(file)) {
+      tokenizer = new MappedCSVTokenizer(file, (byte) config.CSV_SEPARATOR.charAt(0));
+    } else {
+      super.openFile(file);
+    }
+  }
+
+  @Override
+  protected void closeFile() throws IOException {
+    if (tokenizer != null) {
+      tokenizer.close();
+      tokenizer = null;
+    }
+    super.closeFile();
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    // the lines converted in mmap mode are dropped like the cached ones
+    pendingRecords.clear();
+    if (pendingBatch != null) {
+      release(pendingBatch);
+      pendingBatch = null;
+    }
+  }
+
+  @Override
+  protected int bufferedNum() {
+    return useMmap() ? pendingNum() : super.bufferedNum();
+  }
+
+  @Override
+  protected boolean isFileOpen() {
+    return tokenizer != null || super.isFileOpen();
+  }
+
+  /**
+   * in mmap mode the lines are converted as they are read, into pendingRecords or pendingBatch
+   */
+  @Override
+  protected boolean bufferNextLine() throws Exception {
+    if (!useMmap()) {
+      return super.bufferNextLine();
+    }
+    if (!cachedLines.isEmpty()) {
+      // lines read during type inference come first
+      addPendingLine(cachedLines.remove(0));
+      return true;
+    }
+    if (tokenizer != null) {
+      if (!tokenizer.nextLine()) {
+        return false;
+      }
+      addPendingTokenizedLine();
+      return true;
+    }
+    String line = reader.readLine();
+    if (line == null) {
+      return false;
+    }
+    if (!line.isEmpty()) {
+      addPendingLine(line);
+    }
+    return true;
   }
 
   @Override
   public void onFileOpened() {
+    if (timestampParser == null) {
+      timestampParser = new TimestampParser();
+    } else {
+      timestampParser.reset();
+    }
     Schema fileSchema = null;
+    LineSource lineSource = tokenizer != null ? tokenizer::readLine : reader::readLine;
     try {
       if (!config.TYPE_INFO_EXIST) {
-        fileSchema = convertHeaderToSchema(reader.readLine(), reader, currentFile, true);
-        logger.info("File {} schema collected automatically", currentFile);
+        fileSchema = collectCurrentFileSchema(lineSource);
       } else {
-        fileSchema = convertHeaderToSchemaWithTypeInfo(reader.readLine(), currentFile);
+        fileSchema = convertHeaderToSchemaWithTypeInfo(lineSource.readLine(), currentFile);
         logger.info("File {} schema collected with existent type information", currentFile);
       }
       logger.debug("Current file schema: {}", fileSchema);
@@ -485,6 +823,23 @@ public class CSVReader extends BasicReader {
       return;
     }
     currentFileSchema = fileSchema;
+    overallIndexes = projectToOverallSchema(fileSchema);
+  }
+
+  /**
+   * @return the overall schema index of each field of the file schema, or null if records follow
+   * the file schema or the overall schema is not collected yet
+   */
+  private int[] projectToOverallSchema(Schema fileSchema) {
+    if (config.TYPE_INFO_EXIST || config.splitFileByDevice || overallSchema == null
+        || fileSchema == null) {
+      return null;
+    }
+    int[] indexes = new int[fileSchema.getFields().length];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = overallSchema.getIndex(fileSchema.getFields()[i]);
+    }
+    return indexes;
   }
 
   @Override
@@ -496,6 +851,53 @@ public class CSVReader extends BasicReader {
     }
   }
 
+  private static class CollectSchemaTask extends RecursiveTask<SchemaSet> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CSVReader probe;
+    private final List<String> files;
+    private final int from;
+    private final int to;
+    private final AtomicInteger collectedNum;
+
+    private CollectSchemaTask(CSVReader probe, List<String> files, int from, int to,
+        AtomicInteger collectedNum) {
+      this.probe = probe;
+      this.files = files;
+      this.from = from;
+      this.to = to;
+      this.collectedNum = collectedNum;
+    }
+
+    @Override
+    protected SchemaSet compute() {
+      if (to - from <= 1) {
+        SchemaSet schemaSet = new SchemaSet();
+        if (from < to) {
+          String file = files.get(from);
+          schemaSet.union(probe.collectSchemaFromFile(file));
+          logger.info("Collected schema from {} ({}/{})", file, collectedNum.incrementAndGet(),
+              files.size());
+        }
+        return schemaSet;
+      }
+
+      int mid = (from + to) >>> 1;
+      CollectSchemaTask left = new CollectSchemaTask(probe, files, from, mid, collectedNum);
+      CollectSchemaTask right = new CollectSchemaTask(probe, files, mid, to, collectedNum);
+      left.fork();
+      SchemaSet schemaSet = right.compute();
+      schemaSet.union(left.join());
+      return schemaSet;
+    }
+  }
+
+  private interface LineSource {
+
+    String readLine() throws IOException;
+  }
+
   private static class SchemaSet {
 
     private final Map<String, Integer> fieldPrecisionMap = new HashMap<>();
@@ -517,6 +919,15 @@ public class CSVReader extends BasicReader {
       }
     }
 
+    public void union(SchemaSet other) {
+      for (Entry<String, Integer> entry : other.fieldPrecisionMap.entrySet()) {
+        fieldPrecisionMap.merge(entry.getKey(), entry.getValue(), Math::max);
+      }
+      for (Entry<String, Class<?>> entry : other.fieldTypeMap.entrySet()) {
+        fieldTypeMap.compute(entry.getKey(), (s, t) -> mergeType(t, entry.getValue()));
+      }
+    }
+
     public static Class<?> mergeType(Class<?> t1, Class<?> t2) {
       if (t1 == null && t2 == null) {
         return null;
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader;
+
+import com.github.luben.zstd.ZstdInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+
+/**
+ * Opens data files that may be compressed, the codec is chosen by the file suffix: .gz/.gzip,
+ * .zst/.zstd and .lz4 (frame format). Compressed files are decompressed on a background thread
+ * ahead of the reader; plain files are opened as they are.
+ */
+public class CompressedInput {
+
+  private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+  private CompressedInput() {
+  }
+
+  public static boolean isCompressed(String file) {
+    return codecOf(file) != null;
+  }
+
+  /**
+   * @param readAheadChunks decompressed chunks buffered ahead of the reader
+   */
+  public static InputStream open(String file, int readAheadChunks) throws IOException {
+    String codec = codecOf(file);
+    if (codec == null) {
+      return new FileInputStream(file);
+    }
+
+    InputStream in = new BufferedInputStream(new FileInputStream(file), FILE_BUFFER_SIZE);
+    InputStream decompressed;
+    try {
+      switch (codec) {
+        case "gzip":
+          decompressed = new GZIPInputStream(in, FILE_BUFFER_SIZE);
+          break;
+        case "zstd":
+          decompressed = new ZstdInputStream(in);
+          break;
+        default:
+          decompressed = new LZ4FrameInputStream(in);
+      }
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+    return new ReadAheadInputStream(decompressed, readAheadChunks,
+        "decompress-" + new File(file).getName());
+  }
+
+  /**
+   * a line reader with the default charset, as FileReader uses
+   */
+  public static BufferedReader openReader(String file, int readAheadChunks) throws IOException {
+    return new BufferedReader(new InputStreamReader(open(file, readAheadChunks)));
+  }
+
+  private static String codecOf(String file) {
+    String name = file.toLowerCase();
+    if (name.endsWith(".gz") || name.endsWith(".gzip")) {
+      return "gzip";
+    }
+    if (name.endsWith(".zst") || name.endsWith(".zstd")) {
+      return "zstd";
+    }
+    if (name.endsWith(".lz4")) {
+      return "lz4";
+    }
+    return null;
+  }
+}
@@ -4,10 +4,9 @@ import cn.edu.thu.common.Config;
 import cn.edu.thu.common.Record;
 
 import cn.edu.thu.common.Schema;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import cn.edu.thu.common.TimestampParser;
+import cn.edu.thu.common.TimestampParser.Format;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -19,7 +18,8 @@ public class GeolifeReader extends BasicReader {
       "Altitude"}, new int[]{6, 6, 0, 0});
 
   private static Logger logger = LoggerFactory.getLogger(GeolifeReader.class);
-  private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd-hh:mm:ss");
+  // date and time are two adjacent columns, parsed together with the comma as separator
+  private TimestampParser timestampParser = new TimestampParser(Format.DATE_TIME);
 
   public GeolifeReader(Config config, List<String> files) {
     super(config, files);
@@ -36,8 +36,9 @@ public class GeolifeReader extends BasicReader {
       fields.add(Double.parseDouble(items[2]));
       fields.add(Double.parseDouble(items[3]));
 
-      Date date = dateFormat.parse(items[5] + "-" + items[6]);
-      long time = date.getTime();
+      int dateStart = items[0].length() + items[1].length() + items[2].length()
+          + items[3].length() + items[4].length() + 5;
+      long time = timestampParser.parse(line, dateStart, line.length());
       return new Record(time, currentDeviceId, fields);
     } catch (Exception ignore) {
       logger.warn("can not parse: {}, error message: {}, File name: {}", line, ignore.getMessage(),
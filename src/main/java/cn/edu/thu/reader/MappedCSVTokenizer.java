@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader;
+
+import cn.edu.thu.common.StringDictionary;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a memory-mapped csv file into lines and fields without materializing them as Strings.
+ * After nextLine() returns true, the fields of the current line are addressed by their index
+ * and read directly from the mapped bytes. The file is mapped window by window, so files larger
+ * than 2GB are supported; a line is never split across two windows.
+ */
+public class MappedCSVTokenizer implements Closeable {
+
+  public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final byte separator;
+  private int windowSize;
+
+  private MappedByteBuffer buffer;
+  // file offset of buffer position 0
+  private long windowStart = 0;
+  private int windowLimit = 0;
+  private long nextLineOffset = 0;
+
+  private int lineStart;
+  private int lineEnd;
+  private int fieldCount;
+  private int[] fieldStarts = new int[64];
+  private int[] fieldEnds = new int[64];
+  private byte[] scratch = new byte[64];
+  private final FieldView fieldView = new FieldView();
+
+  public MappedCSVTokenizer(String path, byte separator) throws IOException {
+    this(path, separator, DEFAULT_WINDOW_SIZE);
+  }
+
+  public MappedCSVTokenizer(String path, byte separator, int windowSize) throws IOException {
+    this.file = new RandomAccessFile(path, "r");
+    this.channel = file.getChannel();
+    this.fileSize = channel.size();
+    this.separator = separator;
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * move to the next non-empty line and split it into fields
+   *
+   * @return false if the end of the file is reached
+   */
+  public boolean nextLine() throws IOException {
+    while (nextLineOffset < fileSize) {
+      if (buffer == null || nextLineOffset < windowStart
+          || nextLineOffset >= windowStart + windowLimit) {
+        map(nextLineOffset);
+      }
+
+      int start = (int) (nextLineOffset - windowStart);
+      int end = indexOfNewLine(start);
+      if (end < 0) {
+        if (windowStart + windowLimit < fileSize) {
+          // the line crosses the window boundary, remap from the line start
+          if (start == 0) {
+            if (windowSize == Integer.MAX_VALUE) {
+              throw new IOException("line at offset " + nextLineOffset + " is too long");
+            }
+            windowSize = (int) Math.min(Integer.MAX_VALUE, windowSize * 2L);
+          }
+          map(nextLineOffset);
+          continue;
+        }
+        end = windowLimit;
+      }
+      nextLineOffset = windowStart + end + 1;
+
+      if (end > start && buffer.get(end - 1) == '\r') {
+        end--;
+      }
+      if (end == start) {
+        continue;
+      }
+
+      lineStart = start;
+      lineEnd = end;
+      tokenize();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * move to the next non-empty line and return it as a String, used for headers and other lines
+   * that are read only a few times per file
+   *
+   * @return null if the end of the file is reached
+   */
+  public String readLine() throws IOException {
+    return nextLine() ? toString(lineStart, lineEnd) : null;
+  }
+
+  public int getFieldCount() {
+    return fieldCount;
+  }
+
+  /**
+   * strip a pair of single or double quotes surrounding the i-th field
+   */
+  public void removeOuterQuote(int i) {
+    int start = fieldStarts[i];
+    int end = fieldEnds[i];
+    if (end - start >= 2) {
+      byte first = buffer.get(start);
+      byte last = buffer.get(end - 1);
+      if (first == last && (first == '\'' || first == '"')) {
+        fieldStarts[i] = start + 1;
+        fieldEnds[i] = end - 1;
+      }
+    }
+  }
+
+  /**
+   * @return true if the i-th field is empty or "null" in any case
+   */
+  public boolean isNull(int i) {
+    int start = fieldStarts[i];
+    int length = fieldEnds[i] - start;
+    if (length == 0) {
+      return true;
+    }
+    return length == 4
+        && (buffer.get(start) | 0x20) == 'n'
+        && (buffer.get(start + 1) | 0x20) == 'u'
+        && (buffer.get(start + 2) | 0x20) == 'l'
+        && (buffer.get(start + 3) | 0x20) == 'l';
+  }
+
+  public String getString(int i) {
+    return toString(fieldStarts[i], fieldEnds[i]);
+  }
+
+  /**
+   * @return the id of the i-th field in the dictionary, or -1 if it is not interned
+   */
+  public int getStringId(int i, StringDictionary dictionary) {
+    return dictionary.getId(buffer, fieldStarts[i], fieldEnds[i] - fieldStarts[i]);
+  }
+
+  /**
+   * @return a view of the i-th field as single-byte chars. The view is reused, it is only valid
+   * until the next call of this method or nextLine().
+   */
+  public CharSequence getCharSequence(int i) {
+    fieldView.start = fieldStarts[i];
+    fieldView.end = fieldEnds[i];
+    return fieldView;
+  }
+
+  private String toString(int start, int end) {
+    int length = end - start;
+    if (scratch.length < length) {
+      scratch = new byte[Math.max(length, scratch.length * 2)];
+    }
+    for (int i = 0; i < length; i++) {
+      scratch[i] = buffer.get(start + i);
+    }
+    return new String(scratch, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private void tokenize() {
+    fieldCount = 0;
+    int fieldStart = lineStart;
+    for (int pos = lineStart; pos < lineEnd; pos++) {
+      if (buffer.get(pos) == separator) {
+        addField(fieldStart, pos);
+        fieldStart = pos + 1;
+      }
+    }
+    addField(fieldStart, lineEnd);
+  }
+
+  private void addField(int start, int end) {
+    if (fieldCount == fieldStarts.length) {
+      int newLength = fieldStarts.length * 2;
+      int[] newStarts = new int[newLength];
+      int[] newEnds = new int[newLength];
+      System.arraycopy(fieldStarts, 0, newStarts, 0, fieldCount);
+      System.arraycopy(fieldEnds, 0, newEnds, 0, fieldCount);
+      fieldStarts = newStarts;
+      fieldEnds = newEnds;
+    }
+    fieldStarts[fieldCount] = start;
+    fieldEnds[fieldCount++] = end;
+  }
+
+  private int indexOfNewLine(int from) {
+    for (int pos = from; pos < windowLimit; pos++) {
+      if (buffer.get(pos) == '\n') {
+        return pos;
+      }
+    }
+    return -1;
+  }
+
+  private void map(long offset) throws IOException {
+    windowStart = offset;
+    windowLimit = (int) Math.min(windowSize, fileSize - offset);
+    buffer = channel.map(MapMode.READ_ONLY, windowStart, windowLimit);
+  }
+
+  private class FieldView implements CharSequence {
+
+    private int start;
+    private int end;
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (buffer.get(start + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+      return MappedCSVTokenizer.this.toString(start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+      return MappedCSVTokenizer.this.toString(start, end);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    buffer = null;
+    channel.close();
+    file.close();
+  }
+}
@@ -4,8 +4,8 @@ import cn.edu.thu.common.Config;
 import cn.edu.thu.common.Record;
 
 import cn.edu.thu.common.Schema;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import cn.edu.thu.common.TimestampParser;
+import cn.edu.thu.common.TimestampParser.Format;
 import java.util.*;
 
 public class NOAAReader extends BasicReader {
@@ -13,7 +13,7 @@ public class NOAAReader extends BasicReader {
   public static final Schema SCHEMA = new Schema(new String[]{"TEMP", "DEWP", "SLP", "STP",
       "VISIB", "WDSP", "MXSPD", "GUST", "MAX", "MIN", "PRCP", "SNDP", "FRSHTT"},
       new int[]{1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2, 1, 0});
-  private DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+  private TimestampParser timestampParser = new TimestampParser(Format.BASIC_DATE);
 
   public NOAAReader(Config config, List<String> files) {
     super(config, files);
@@ -28,9 +28,7 @@ public class NOAAReader extends BasicReader {
 
       String tag = line.substring(0, 6).trim() + "_" + line.substring(7, 12).trim();
       //add 70 years, make sure time > 0
-      String yearmoda = line.substring(14, 22).trim();
-      Date date = dateFormat.parse(yearmoda);
-      long time = date.getTime() + 2209046400000L;
+      long time = timestampParser.parse(line, 14, 22) + 2209046400000L;
 
       fields.add(Double.parseDouble(line.substring(24, 30).trim()));
       fields.add(Double.parseDouble(line.substring(35, 41).trim()));
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a source stream on a background thread into a bounded queue of chunks, so that expensive
+ * decoding such as decompression overlaps with the parsing done by the consumer. Chunks are
+ * recycled, at most (readAheadChunks + 1) chunks are allocated.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+  public static final int CHUNK_SIZE = 1 << 20;
+
+  private static final Chunk END = new Chunk(0);
+
+  private final BlockingQueue<Chunk> freeChunks;
+  private final BlockingQueue<Chunk> readyChunks;
+  private final Thread producer;
+  // what stopped the producer, e.g., a corrupt frame or a missing native library of a codec
+  private volatile Throwable error;
+  private volatile boolean closed = false;
+
+  private Chunk current;
+  private int position;
+
+  public ReadAheadInputStream(InputStream source, int readAheadChunks, String name) {
+    int chunkNum = Math.max(1, readAheadChunks) + 1;
+    freeChunks = new ArrayBlockingQueue<>(chunkNum);
+    for (int i = 0; i < chunkNum; i++) {
+      freeChunks.add(new Chunk(CHUNK_SIZE));
+    }
+    // room for every chunk and the end marker, so the producer never blocks on it
+    readyChunks = new ArrayBlockingQueue<>(chunkNum + 1);
+    producer = new Thread(() -> produce(source), name);
+    producer.setDaemon(true);
+    producer.start();
+  }
+
+  private void produce(InputStream source) {
+    try (InputStream in = source) {
+      while (!closed) {
+        Chunk chunk = freeChunks.take();
+        chunk.length = readFully(in, chunk.data);
+        if (chunk.length == 0) {
+          break;
+        }
+        readyChunks.put(chunk);
+      }
+    } catch (InterruptedException e) {
+      // closed by the consumer
+    } catch (Throwable e) {
+      // handed to the consumer, which would otherwise take the end marker as the end of the file
+      error = e;
+    } finally {
+      readyChunks.offer(END);
+    }
+  }
+
+  private static int readFully(InputStream in, byte[] buffer) throws IOException {
+    int length = 0;
+    while (length < buffer.length) {
+      int n = in.read(buffer, length, buffer.length - length);
+      if (n < 0) {
+        break;
+      }
+      length += n;
+    }
+    return length;
+  }
+
+  /**
+   * @return false if the source is exhausted
+   */
+  private boolean ensureData() throws IOException {
+    if (current != null && position < current.length) {
+      return true;
+    }
+    if (current == END) {
+      return false;
+    }
+    if (current != null) {
+      freeChunks.offer(current);
+    }
+    try {
+      current = readyChunks.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for " + producer.getName());
+    }
+    position = 0;
+    if (current == END) {
+      Throwable cause = error;
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else if (cause != null) {
+        throw new IOException("cannot read ahead in " + producer.getName(), cause);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureData()) {
+      return -1;
+    }
+    return current.data[position++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureData()) {
+      return -1;
+    }
+    int n = Math.min(len, current.length - position);
+    System.arraycopy(current.data, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return current == null || current == END ? 0 : current.length - position;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    producer.interrupt();
+  }
+
+  private static class Chunk {
+
+    private final byte[] data;
+    private int length;
+
+    private Chunk(int size) {
+      this.data = new byte[size];
+    }
+  }
+}
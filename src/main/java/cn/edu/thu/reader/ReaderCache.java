@@ -0,0 +1,47 @@
+package cn.edu.thu.reader;
+
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.OffHeapBudget;
+import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
+import cn.edu.thu.common.StringDictionary;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * What the readers of one reading thread reuse from file to file: the batches given back through
+ * release(), the records of the released lists and the dictionary of text values. A writer takes
+ * its files one at a time from the shared queue and reads each with a new reader, so it keeps
+ * these in a cache given to all its readers, one per parser in the pipelined mode. The pools may
+ * be filled from other threads, the rest is only used by the reading thread.
+ */
+public class ReaderCache {
+
+  // batches given back by the consumer through release(), possibly from another thread
+  final BlockingQueue<List<Record>> releasedRecords;
+  final BlockingQueue<RecordBatch> releasedBatches;
+  // records of released lists, overwritten by newRecord()
+  final List<Record> spareRecords = new ArrayList<>();
+  // interns the text values of the readers
+  final StringDictionary dictionary;
+  // shared by the caches of a writer
+  final OffHeapBudget offHeapBudget;
+
+  public ReaderCache(Config config) {
+    this(config, new OffHeapBudget(config));
+  }
+
+  /**
+   * @param offHeapBudget the budget of the writer, shared with its other caches
+   */
+  public ReaderCache(Config config, OffHeapBudget offHeapBudget) {
+    // the batches in the pipeline queue, the one being inserted and the one being parsed
+    int poolSize = Math.max(config.PIPELINE_QUEUE_DEPTH, 0) + 2;
+    releasedRecords = new ArrayBlockingQueue<>(poolSize);
+    releasedBatches = new ArrayBlockingQueue<>(poolSize);
+    dictionary = new StringDictionary(config.TEXT_DICTIONARY_SIZE);
+    this.offHeapBudget = offHeapBudget;
+  }
+}
@@ -0,0 +1,59 @@
+package cn.edu.thu.reader;
+
+import backup.MLabUtilizationReader;
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.IndexedSchema;
+import cn.edu.thu.reader.disorder.DisorderFactory;
+import java.io.IOException;
+import java.util.List;
+
+public class ReaderFactory {
+
+  /**
+   * @param stdDev the standard deviation of the GAUSSIAN disorder model
+   * @param overallSchema the overall schema shared by all csv readers, null to let each reader
+   * collect it from its own files
+   */
+  public static BasicReader getReader(Config config, List<String> files, double stdDev,
+      IndexedSchema overallSchema) throws IOException {
+    return getReader(config, files, stdDev, overallSchema, null);
+  }
+
+  /**
+   * @param cache the cache of the previous readers of the calling thread, null for a new one
+   */
+  public static BasicReader getReader(Config config, List<String> files, double stdDev,
+      IndexedSchema overallSchema, ReaderCache cache) throws IOException {
+    BasicReader reader = createReader(config, files, overallSchema);
+    reader.setDisorderGenerator(DisorderFactory.getGenerator(config, stdDev));
+    if (cache != null) {
+      reader.setCache(cache);
+    }
+    return reader;
+  }
+
+  private static BasicReader createReader(Config config, List<String> files,
+      IndexedSchema overallSchema) throws IOException {
+    switch (config.DATA_SET) {
+      case "NOAA":
+        return new NOAAReader(config, files);
+      case "GEOLIFE":
+        return new GeolifeReader(config, files);
+      case "TDRIVE":
+        return new TDriveReader(config, files);
+      case "MLAB_UTILIZATION":
+        return new MLabUtilizationReader(config, files);
+      case "REDD":
+        return new ReddReader(config, files);
+      case "SYNTHETIC":
+        return new SyntheticReader(config);
+      case "CSV":
+        return new CSVReader(config, files, overallSchema);
+      case "BINARY":
+        return new BinaryReader(config, files);
+      default:
+        throw new RuntimeException(config.DATA_SET + " not supported");
+    }
+  }
+
+}
@@ -39,16 +39,9 @@ public class SyntheticReader extends BasicReader {
   public SyntheticReader(Config config) {
     super(config);
     for (int i = 0; i < config.syntheticDeviceNum; i++) {
-      deviceNames[i] = "root.device_" + i;
-    }
-    for (int i = 0; i < config.BATCH_SIZE; i++) {
-      List<Object> fields = new ArrayList<>(config.syntheticMeasurementNum);
-      for (int j = 0; j < config.syntheticMeasurementNum; j++) {
-        fields.add(random.nextDouble() < config.syntheticNullRatio ? null : random.nextDouble());
-      }
-      Record record = new Record(0, "", fields);
-      batch.add(record);
+      deviceNames[i] = "root.device_" + (config.syntheticDeviceOffset + i);
     }
+    addRecords();
 
     schema = new Schema();
     schema.setFields(new String[config.syntheticMeasurementNum]);
@@ -67,9 +60,10 @@ public class SyntheticReader extends BasicReader {
   @Override
   public List<Record> convertCachedLinesToRecords() {
     String device = deviceNames[deviceCursor];
+    addRecords();
 
     int i = 0;
-    for (; i < config.BATCH_SIZE && pointCursor < config.syntheticPointNum; i++) {
+    for (; i < batchSize && pointCursor < config.syntheticPointNum; i++) {
       Record record = batch.get(i);
       record.tag = device;
       record.timestamp = pointCursor++;
@@ -85,6 +79,34 @@ public class SyntheticReader extends BasicReader {
     return batch.subList(0, i);
   }
 
+  /**
+   * add records to the reused batch until it holds batchSize ones
+   */
+  private void addRecords() {
+    while (batch.size() < batchSize) {
+      List<Object> fields = new ArrayList<>(config.syntheticMeasurementNum);
+      for (int j = 0; j < config.syntheticMeasurementNum; j++) {
+        fields.add(random.nextDouble() < config.syntheticNullRatio ? null : random.nextDouble());
+      }
+      Record record = new Record(0, "", fields);
+      batch.add(record);
+    }
+  }
+
+  @Override
+  public long skip(long recordNum) {
+    if (config.syntheticPointNum <= 0) {
+      return 0;
+    }
+    // the records of a device are read in order, so the position after the skip is computed
+    long position = (long) deviceCursor * config.syntheticPointNum + pointCursor;
+    long target = Math.min(position + recordNum,
+        (long) config.syntheticDeviceNum * config.syntheticPointNum);
+    deviceCursor = (int) (target / config.syntheticPointNum);
+    pointCursor = (int) (target % config.syntheticPointNum);
+    return target - position;
+  }
+
   @Override
   public void onFileOpened() throws Exception {
      // no action
@@ -94,4 +116,9 @@ public class SyntheticReader extends BasicReader {
   public Schema getCurrentSchema() {
     return schema;
   }
+
+  @Override
+  public boolean isBatchReused() {
+    return true;
+  }
 }
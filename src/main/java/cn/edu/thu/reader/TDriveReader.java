@@ -3,11 +3,10 @@ package cn.edu.thu.reader;
 import cn.edu.thu.common.Config;
 import cn.edu.thu.common.Record;
 import cn.edu.thu.common.Schema;
+import cn.edu.thu.common.TimestampParser;
+import cn.edu.thu.common.TimestampParser.Format;
 import java.io.File;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,7 +15,7 @@ public class TDriveReader extends BasicReader {
 
   public static final Schema SCHEMA = new Schema(new String[]{"longitude", "latitude"},
       new int[]{5, 5});
-  private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+  private TimestampParser timestampParser = new TimestampParser(Format.DATE_TIME);
   private static Logger logger = LoggerFactory.getLogger(TDriveReader.class);
 
   public TDriveReader(Config config, List<String> files) {
@@ -52,8 +51,7 @@ public class TDriveReader extends BasicReader {
       fields.add(Double.parseDouble(items[2]));
       fields.add(Double.parseDouble(items[3]));
 
-      Date date = dateFormat.parse(items[1]);
-      long time = date.getTime();
+      long time = timestampParser.parse(items[1]);
 
       return new Record(time, currentDeviceId, fields);
     } catch (Exception ignore) {
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader.disorder;
+
+import java.util.Random;
+
+/**
+ * Delays records in bursts: before each record a burst starts with the given probability, then
+ * burstLength consecutive records share one uniform delay in [1, maxDelay].
+ */
+public class BurstyDisorder implements IDisorderGenerator {
+
+  private final Random random = new Random();
+  private final double burstProbability;
+  private final int burstLength;
+  private final long maxDelay;
+
+  private int remainingBurst = 0;
+  private long burstDelay = 0;
+
+  public BurstyDisorder(double burstProbability, int burstLength, long maxDelay) {
+    this.burstProbability = burstProbability;
+    this.burstLength = Math.max(1, burstLength);
+    this.maxDelay = Math.max(1, maxDelay);
+  }
+
+  @Override
+  public void reset(long seed) {
+    random.setSeed(seed);
+    remainingBurst = 0;
+  }
+
+  @Override
+  public long disorder(long timestamp, String tag) {
+    if (remainingBurst == 0) {
+      if (random.nextDouble() >= burstProbability) {
+        return timestamp;
+      }
+      remainingBurst = burstLength;
+      burstDelay = 1 + (long) (random.nextDouble() * maxDelay);
+    }
+    remainingBurst--;
+    return timestamp - burstDelay;
+  }
+}
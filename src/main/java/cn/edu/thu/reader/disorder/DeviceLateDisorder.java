@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader.disorder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A fixed fraction of the devices arrives late: the time of a late device is cut in periods of
+ * delay, and the records of every other period are delayed by delay, so they arrive after the
+ * records of the previous period they overlap, as unsequence data. Whether a device is late only
+ * depends on the base seed and its tag, and the late periods only on the timestamps, so both are
+ * the same in every file and every thread.
+ */
+public class DeviceLateDisorder implements IDisorderGenerator {
+
+  private final long baseSeed;
+  private final double lateRatio;
+  private final long delay;
+  private final Map<String, Boolean> lateDevices = new HashMap<>();
+
+  public DeviceLateDisorder(long baseSeed, double lateRatio, long delay) {
+    this.baseSeed = baseSeed;
+    this.lateRatio = lateRatio;
+    this.delay = Math.max(1, delay);
+  }
+
+  @Override
+  public void reset(long seed) {
+    // the late devices do not change between files
+  }
+
+  @Override
+  public long disorder(long timestamp, String tag) {
+    Boolean late = lateDevices.get(tag);
+    if (late == null) {
+      late = new Random(baseSeed * 31 + tag.hashCode()).nextDouble() < lateRatio;
+      lateDevices.put(tag, late);
+    }
+    if (!late || Math.floorMod(Math.floorDiv(timestamp, delay), 2L) == 0) {
+      return timestamp;
+    }
+    return timestamp - delay;
+  }
+}
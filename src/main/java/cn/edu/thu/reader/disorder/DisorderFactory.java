@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader.disorder;
+
+import cn.edu.thu.common.Config;
+
+public class DisorderFactory {
+
+  /**
+   * @param stdDev the standard deviation of the GAUSSIAN model
+   * @return null if no disorder is injected
+   */
+  public static IDisorderGenerator getGenerator(Config config, double stdDev) {
+    switch (config.DISORDER_MODEL) {
+      case "NONE":
+        return null;
+      case "GAUSSIAN":
+        return stdDev == 0 ? null : new GaussianDisorder(stdDev);
+      case "RATIO":
+        return new RatioDisorder(config.DISORDER_RATIO, config.DISORDER_MAX_DELAY);
+      case "BURSTY":
+        return new BurstyDisorder(config.DISORDER_RATIO, config.DISORDER_BURST_LENGTH,
+            config.DISORDER_MAX_DELAY);
+      case "DEVICE_LATE":
+        return new DeviceLateDisorder(config.DISORDER_SEED, config.DISORDER_RATIO,
+            config.DISORDER_MAX_DELAY);
+      default:
+        throw new RuntimeException(config.DISORDER_MODEL + " not supported");
+    }
+  }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader.disorder;
+
+import java.util.Random;
+
+public class GaussianDisorder implements IDisorderGenerator {
+
+  private final Random random = new Random();
+  private final double stdDev;
+
+  public GaussianDisorder(double stdDev) {
+    this.stdDev = stdDev;
+  }
+
+  @Override
+  public void reset(long seed) {
+    random.setSeed(seed);
+  }
+
+  @Override
+  public long disorder(long timestamp, String tag) {
+    return timestamp + (long) (stdDev * random.nextGaussian());
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader.disorder;
+
+/**
+ * Shifts record timestamps to simulate out-of-order arrival. An implementation keeps one random
+ * generator and is used by one reader thread, the sequence only depends on the seeds passed to
+ * reset(), so runs are reproducible.
+ */
+public interface IDisorderGenerator {
+
+  /**
+   * restart the random sequence, called when a reader starts a file
+   */
+  void reset(long seed);
+
+  /**
+   * @return the timestamp the record is ingested with
+   */
+  long disorder(long timestamp, String tag);
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.reader.disorder;
+
+import java.util.Random;
+
+/**
+ * Delays each record with a fixed probability by a uniform delay in [1, maxDelay].
+ */
+public class RatioDisorder implements IDisorderGenerator {
+
+  private final Random random = new Random();
+  private final double ratio;
+  private final long maxDelay;
+
+  public RatioDisorder(double ratio, long maxDelay) {
+    this.ratio = ratio;
+    this.maxDelay = Math.max(1, maxDelay);
+  }
+
+  @Override
+  public void reset(long seed) {
+    random.setSeed(seed);
+  }
+
+  @Override
+  public long disorder(long timestamp, String tag) {
+    if (random.nextDouble() >= ratio) {
+      return timestamp;
+    }
+    return timestamp - 1 - (long) (random.nextDouble() * maxDelay);
+  }
+}
@@ -0,0 +1,148 @@
+package cn.edu.thu.writer;
+
+import cn.edu.thu.common.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the batch size of one writer when ADAPTIVE_BATCH_SIZE is true. Every BATCH_SIZE_WINDOW
+ * batches it compares the insert throughput of the window, points per second the database took,
+ * with that of the previous window: the size keeps moving the same way while the throughput
+ * improves, otherwise it turns and the step shrinks (hill-climbing), until the step is too small to
+ * matter and the size has converged to the best one of the sink. A window whose mean batch latency
+ * exceeds BATCH_LATENCY_LIMIT_MS counts as worse and caps the climb below its size; until a size
+ * meets the limit, each such window halves the size. The size stays within [BATCH_SIZE_MIN,
+ * BATCH_SIZE_MAX].
+ */
+public class BatchSizeController {
+
+  private static Logger logger = LoggerFactory.getLogger(BatchSizeController.class);
+
+  // the first step doubles the size, each turn halves the step
+  private static final double INITIAL_FACTOR = 2;
+  // a step below it changes the throughput less than the noise of a window
+  private static final double CONVERGED_FACTOR = 1.05;
+
+  private final Config config;
+  private final String writer;
+  // read by the readers of the writer before each batch, updated by the inserts
+  private volatile int batchSize;
+  private volatile boolean converged = false;
+
+  private double factor = INITIAL_FACTOR;
+  private boolean growing = true;
+  // the best throughput so far in points per nanosecond and its size, < 0 if there is none
+  private double lastThroughput = -1;
+  private int lastBatchSize;
+  // the smallest size a window exceeded BATCH_LATENCY_LIMIT_MS at, the climb stays below it
+  private int latencyCeiling = Integer.MAX_VALUE;
+
+  private int windowBatchNum = 0;
+  private long windowPointNum = 0;
+  private long windowTime = 0;
+
+  /**
+   * @param writer the name of the writer, for logs
+   */
+  public BatchSizeController(Config config, String writer) {
+    this.config = config;
+    this.writer = writer;
+    this.batchSize = bound(config.BATCH_SIZE);
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public boolean isConverged() {
+    return converged;
+  }
+
+  /**
+   * account an insert, called from the threads asynchronous inserts complete on as well
+   *
+   * @param elapsedTime the time the database took for the batch in nanoseconds
+   */
+  public synchronized void onInsert(long pointNum, long elapsedTime) {
+    windowBatchNum++;
+    windowPointNum += pointNum;
+    windowTime += elapsedTime;
+    if (windowBatchNum < config.BATCH_SIZE_WINDOW) {
+      return;
+    }
+    double throughput = windowTime == 0 ? Double.MAX_VALUE : (double) windowPointNum / windowTime;
+    double meanLatency = (double) windowTime / windowBatchNum / 1000_000.0;
+    windowBatchNum = 0;
+    windowPointNum = 0;
+    windowTime = 0;
+
+    boolean tooSlow = config.BATCH_LATENCY_LIMIT_MS > 0
+        && meanLatency > config.BATCH_LATENCY_LIMIT_MS;
+    if (tooSlow) {
+      latencyCeiling = Math.min(latencyCeiling, batchSize);
+    }
+    if (converged) {
+      if (!tooSlow) {
+        return;
+      }
+      // the sink slowed down, search again below the ceiling
+      converged = false;
+      growing = true;
+      factor = INITIAL_FACTOR;
+      lastThroughput = -1;
+    }
+    if (tooSlow && lastThroughput < 0) {
+      // no size within the limit yet
+      int halved = bound(batchSize / 2);
+      if (halved != batchSize) {
+        logger.info("{} mean batch latency {} ms exceeds the limit, batch size {} -> {}", writer,
+            meanLatency, batchSize, halved);
+        batchSize = halved;
+      }
+      return;
+    }
+
+    int base = batchSize;
+    if (tooSlow || throughput < lastThroughput) {
+      // the previous size was the better one, step from it shorter, the other way unless the
+      // latency limit stopped the climb
+      base = lastBatchSize;
+      if (!tooSlow) {
+        growing = !growing;
+      }
+      factor = 1 + (factor - 1) / 2;
+      if (factor < CONVERGED_FACTOR) {
+        batchSize = base;
+        converged = true;
+        logger.info("Exp:{} {} batch size converged to {} for {}", config.EXP_NAME, writer,
+            batchSize, config.DATABASE);
+        return;
+      }
+    } else {
+      lastThroughput = throughput;
+    }
+    lastBatchSize = base;
+
+    int next = step(base);
+    if (next == base) {
+      // at a bound, try the other way
+      growing = !growing;
+      next = step(base);
+    }
+    logger.debug("{} throughput {} pts/s at batch size {}, next {}", writer,
+        throughput * 1000_000_000L, batchSize, next);
+    batchSize = next;
+  }
+
+  private int step(int size) {
+    if (growing) {
+      return bound(Math.min((int) Math.ceil(size * factor), latencyCeiling - 1));
+    }
+    return bound((int) (size / factor));
+  }
+
+  private int bound(int size) {
+    return Math.max(Math.max(config.BATCH_SIZE_MIN, 1),
+        Math.min(size, Math.max(config.BATCH_SIZE_MAX, config.BATCH_SIZE_MIN)));
+  }
+}
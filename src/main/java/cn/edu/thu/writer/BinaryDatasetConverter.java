@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package cn.edu.thu.writer;
+
+import cn.edu.thu.common.Record;
+import cn.edu.thu.common.Schema;
+import cn.edu.thu.reader.BinaryFormat;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts the records of any reader into the binary replay format described in BinaryFormat.
+ * Records are buffered per device and appended to the file of the device block by block, so no
+ * file stays open between two blocks. At most maxBufferedBlocks devices hold a block in memory,
+ * the block of the least recently appended device is flushed early when another one is needed.
+ */
+public class BinaryDatasetConverter implements Closeable {
+
+  private static Logger logger = LoggerFactory.getLogger(BinaryDatasetConverter.class);
+
+  private final File outputDir;
+  private final int blockSize;
+  private final int maxBufferedBlocks;
+  private final Map<String, DeviceFile> deviceFiles = new HashMap<>();
+  // the devices holding a block, in the order they were last appended to
+  private final LinkedHashMap<String, DeviceFile> bufferedDevices =
+      new LinkedHashMap<>(16, 0.75f, true);
+  // number of files created for a file name, a device gets a new file when its schema changes
+  private final Map<String, Integer> fileNums = new HashMap<>();
+  private long recordNum = 0;
+
+  /**
+   * @param maxBufferedBlocks the devices that hold a block in memory, a smaller number flushes
+   * shorter blocks when the records of many devices are interleaved
+   */
+  public BinaryDatasetConverter(String outputDir, int blockSize, int maxBufferedBlocks)
+      throws IOException {
+    this.outputDir = new File(outputDir);
+    this.blockSize = blockSize;
+    this.maxBufferedBlocks = Math.max(maxBufferedBlocks, 1);
+    if (!this.outputDir.isDirectory() && !this.outputDir.mkdirs()) {
+      throw new IOException("cannot create output dir " + outputDir);
+    }
+  }
+
+  public void append(List<Record> records, Schema schema) throws IOException {
+    for (Record record : records) {
+      DeviceFile deviceFile = deviceFiles.get(record.tag);
+      if (deviceFile == null || !deviceFile.accepts(schema)) {
+        if (deviceFile != null) {
+          deviceFile.flush();
+          deviceFile.releaseBlock();
+          bufferedDevices.remove(record.tag);
+        }
+        deviceFile = createDeviceFile(record.tag, schema);
+        deviceFiles.put(record.tag, deviceFile);
+      }
+      if (bufferedDevices.put(record.tag, deviceFile) == null
+          && bufferedDevices.size() > maxBufferedBlocks) {
+        flushLeastRecentBlock();
+      }
+      deviceFile.add(record);
+      if (deviceFile.rowNum == blockSize) {
+        deviceFile.flush();
+      }
+    }
+    recordNum += records.size();
+  }
+
+  public long getRecordNum() {
+    return recordNum;
+  }
+
+  private void flushLeastRecentBlock() throws IOException {
+    Iterator<DeviceFile> iterator = bufferedDevices.values().iterator();
+    DeviceFile deviceFile = iterator.next();
+    iterator.remove();
+    deviceFile.flush();
+    deviceFile.releaseBlock();
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (DeviceFile deviceFile : deviceFiles.values()) {
+      deviceFile.flush();
+    }
+    logger.info("converted {} records of {} devices into {} files under {}", recordNum,
+        deviceFiles.size(), fileNums.values().stream().mapToInt(Integer::intValue).sum(),
+        outputDir);
+    deviceFiles.clear();
+    bufferedDevices.clear();
+  }
+
+  private DeviceFile createDeviceFile(String deviceTag, Schema schema) throws IOException {
+    String name = deviceTag.replaceAll("[^A-Za-z0-9._-]", "_");
+    int fileNum = fileNums.getOrDefault(name, 0);
+    fileNums.put(name, fileNum + 1);
+    File file = new File(outputDir, name + "_" + fileNum + BinaryFormat.FILE_SUFFIX);
+    return new DeviceFile(file, deviceTag, schema);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private class DeviceFile {
+
+    private final File file;
+    private final String[] fields;
+    private final int[] precision;
+    private final Class<?>[] types;
+    private final byte[] typeCodes;
+    // the last schema instance found equal to the one of this file
+    private Schema lastSchema;
+
+    // the block, allocated by the first record added and null while it is released
+    private int rowNum = 0;
+    private long[] timestamps;
+    // long[], double[] or String[] by the type of the column
+    private Object[] columns;
+    private byte[][] nullBitmaps;
+
+    private DeviceFile(File file, String deviceTag, Schema schema) throws IOException {
+      this.file = file;
+      this.lastSchema = schema;
+      this.fields = schema.getFields().clone();
+      this.precision = schema.getPrecision().clone();
+      this.types = schema.getTypes().clone();
+
+      int fieldNum = fields.length;
+      typeCodes = new byte[fieldNum];
+      for (int i = 0; i < fieldNum; i++) {
+        typeCodes[i] = BinaryFormat.typeToCode(types[i]);
+      }
+
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(header);
+      out.writeInt(BinaryFormat.MAGIC);
+      out.writeByte(BinaryFormat.VERSION);
+      writeString(out, schema.getTag());
+      writeString(out, deviceTag);
+      out.writeInt(fieldNum);
+      for (int i = 0; i < fieldNum; i++) {
+        writeString(out, fields[i]);
+        out.writeByte(typeCodes[i]);
+        out.writeInt(precision[i]);
+      }
+      write(header, false);
+    }
+
+    private boolean accepts(Schema schema) {
+      if (schema == lastSchema) {
+        return true;
+      }
+      if (Arrays.equals(fields, schema.getFields())
+          && Arrays.equals(precision, schema.getPrecision())
+          && Arrays.equals(types, schema.getTypes())) {
+        lastSchema = schema;
+        return true;
+      }
+      return false;
+    }
+
+    private void allocateBlock() {
+      int fieldNum = fields.length;
+      columns = new Object[fieldNum];
+      nullBitmaps = new byte[fieldNum][BinaryFormat.nullBitmapLength(blockSize)];
+      timestamps = new long[blockSize];
+      for (int i = 0; i < fieldNum; i++) {
+        switch (typeCodes[i]) {
+          case BinaryFormat.TYPE_LONG:
+            columns[i] = new long[blockSize];
+            break;
+          case BinaryFormat.TYPE_STRING:
+            columns[i] = new String[blockSize];
+            break;
+          default:
+            columns[i] = new double[blockSize];
+        }
+      }
+    }
+
+    /**
+     * free the memory of the flushed block until the device gets records again
+     */
+    private void releaseBlock() {
+      timestamps = null;
+      columns = null;
+      nullBitmaps = null;
+    }
+
+    private void add(Record record) {
+      if (timestamps == null) {
+        allocateBlock();
+      }
+      int row = rowNum++;
+      timestamps[row] = record.timestamp;
+      for (int i = 0; i < columns.length; i++) {
+        Object value = i < record.fields.size() ? record.fields.get(i) : null;
+        if (value == null) {
+          nullBitmaps[i][row >>> 3] |= 1 << (row & 7);
+        }
+        switch (typeCodes[i]) {
+          case BinaryFormat.TYPE_LONG:
+            ((long[]) columns[i])[row] = value == null ? 0 : ((Number) value).longValue();
+            break;
+          case BinaryFormat.TYPE_STRING:
+            ((String[]) columns[i])[row] = value == null ? null : value.toString();
+            break;
+          default:
+            ((double[]) columns[i])[row] = value == null ? 0 : ((Number) value).doubleValue();
+        }
+      }
+    }
+
+    private void flush() throws IOException {
+      if (rowNum == 0) {
+        return;
+      }
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(block);
+      out.writeInt(rowNum);
+      for (int row = 0; row < rowNum; row++) {
+        out.writeLong(timestamps[row]);
+      }
+      int bitmapLength = BinaryFormat.nullBitmapLength(rowNum);
+      for (int i = 0; i < columns.length; i++) {
+        out.write(nullBitmaps[i], 0, bitmapLength);
+        switch (typeCodes[i]) {
+          case BinaryFormat.TYPE_LONG:
+            long[] longs = (long[]) columns[i];
+            for (int row = 0; row < rowNum; row++) {
+              out.writeLong(longs[row]);
+            }
+            break;
+          case BinaryFormat.TYPE_STRING:
+            String[] strings = (String[]) columns[i];
+            for (int row = 0; row < rowNum; row++) {
+              if (strings[row] != null) {
+                writeString(out, strings[row]);
+              }
+            }
+            Arrays.fill(strings, 0, rowNum, null);
+            break;
+          default:
+            double[] doubles = (double[]) columns[i];
+            for (int row = 0; row < rowNum; row++) {
+              out.writeDouble(doubles[row]);
+            }
+        }
+        Arrays.fill(nullBitmaps[i], 0, bitmapLength, (byte) 0);
+      }
+      rowNum = 0;
+      write(block, true);
+    }
+
+    /**
+     * write the content prefixed by its length
+     */
+    private void write(ByteArrayOutputStream content, boolean append) throws IOException {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file, append)))) {
+        out.writeInt(content.size());
+        content.writeTo(out);
+      }
+    }
+  }
+}
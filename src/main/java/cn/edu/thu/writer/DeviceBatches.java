@@ -0,0 +1,115 @@
+package cn.edu.thu.writer;
+
+import cn.edu.thu.common.Record;
+import cn.edu.thu.common.Schema;
+import cn.edu.thu.writer.DeviceRouter.Fragment;
+import cn.edu.thu.writer.DeviceRouter.Part;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The records routed to one writer by DeviceRouter, buffered by device until they fill a batch.
+ * Only used by the thread of the writer.
+ */
+class DeviceBatches {
+
+  interface Sink {
+
+    /**
+     * @param commit runs once the batch is inserted
+     */
+    void insert(List<Record> records, Schema schema, Runnable commit)
+        throws InterruptedException;
+  }
+
+  private final Map<String, Device> devices = new HashMap<>();
+  private long recordNum = 0;
+
+  /**
+   * buffer the records and insert the batches of their device that are full
+   */
+  void add(Fragment fragment, int batchSize, Sink sink) throws InterruptedException {
+    Device device = devices.get(fragment.tag);
+    if (device != null && device.schema != fragment.schema) {
+      // a batch has one schema
+      flush(device, batchSize, sink);
+    }
+    if (device == null || device.recordNum == 0) {
+      device = new Device(fragment.schema);
+      devices.put(fragment.tag, device);
+    }
+    device.fragments.add(fragment);
+    device.recordNum += fragment.records.size();
+    recordNum += fragment.records.size();
+    while (device.recordNum >= batchSize) {
+      insert(device, batchSize, sink);
+    }
+  }
+
+  /**
+   * @return the records buffered
+   */
+  long getRecordNum() {
+    return recordNum;
+  }
+
+  /**
+   * insert the records of all devices, the last batch of a device may be smaller
+   */
+  void flush(int batchSize, Sink sink) throws InterruptedException {
+    Iterator<Device> iterator = devices.values().iterator();
+    while (iterator.hasNext()) {
+      flush(iterator.next(), batchSize, sink);
+      iterator.remove();
+    }
+  }
+
+  private void flush(Device device, int batchSize, Sink sink) throws InterruptedException {
+    while (device.recordNum > 0) {
+      insert(device, Math.min(batchSize, device.recordNum), sink);
+    }
+  }
+
+  /**
+   * insert the first records of the device, which may come from several batches read
+   */
+  private void insert(Device device, int batchSize, Sink sink) throws InterruptedException {
+    List<Record> records = new ArrayList<>(batchSize);
+    List<Part> parts = new ArrayList<>();
+    List<Integer> partRecordNums = new ArrayList<>();
+    while (records.size() < batchSize) {
+      Fragment fragment = device.fragments.peekFirst();
+      int n = Math.min(batchSize - records.size(), fragment.records.size() - fragment.offset);
+      records.addAll(fragment.records.subList(fragment.offset, fragment.offset + n));
+      fragment.offset += n;
+      parts.add(fragment.part);
+      partRecordNums.add(n);
+      if (fragment.offset == fragment.records.size()) {
+        device.fragments.pollFirst();
+      }
+    }
+    device.recordNum -= batchSize;
+    recordNum -= batchSize;
+    sink.insert(records, device.schema, () -> {
+      for (int i = 0; i < parts.size(); i++) {
+        parts.get(i).inserted(partRecordNums.get(i));
+      }
+    });
+  }
+
+  private static class Device {
+
+    private final Schema schema;
+    private final Deque<Fragment> fragments = new ArrayDeque<>();
+    private int recordNum = 0;
+
+    private Device(Schema schema) {
+      this.schema = schema;
+    }
+  }
+}
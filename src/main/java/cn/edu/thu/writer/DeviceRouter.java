@@ -0,0 +1,193 @@
+package cn.edu.thu.writer;
+
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.Record;
+import cn.edu.thu.common.Schema;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Routes the records read by the writers of this process to the writer owning their device, the
+ * hash of the tag modulo the writers, when DEVICE_AFFINITY is true. A device is then written by
+ * one writer only, in batches of its own records, so the database does not see concurrent writes
+ * to a device, and the sinks that close a file on a new tag do not switch back and forth. Each
+ * writer has a lock-free queue of the records routed to it. While any queue holds more than
+ * ROUTING_QUEUE_BATCHES batches the writers stop reading, and drain their own queue meanwhile,
+ * so that writers waiting on each other still progress.
+ */
+public class DeviceRouter {
+
+  private final Config config;
+  private final List<Queue<Fragment>> queues;
+  // the records in each queue
+  private final AtomicLongArray queuedNums;
+  // 1 once a writer stopped taking records, e.g., after an exception
+  private final AtomicIntegerArray exited;
+  // the writers not finished reading, no record is routed once it is 0
+  private final AtomicInteger readingNum;
+  private final AtomicInteger registeredNum = new AtomicInteger(0);
+
+  public DeviceRouter(Config config, int writerNum) {
+    this.config = config;
+    this.queues = new ArrayList<>(writerNum);
+    for (int i = 0; i < writerNum; i++) {
+      queues.add(new ConcurrentLinkedQueue<>());
+    }
+    this.queuedNums = new AtomicLongArray(writerNum);
+    this.exited = new AtomicIntegerArray(writerNum);
+    this.readingNum = new AtomicInteger(writerNum);
+  }
+
+  /**
+   * @return the index of a new writer, at most the writer number given to the constructor
+   */
+  public int register() {
+    return registeredNum.getAndIncrement();
+  }
+
+  /**
+   * split a batch read by a writer by device and queue each device to its owner
+   *
+   * @param commit runs once all the records are inserted, see RealDatasetWriter.readBatch()
+   * @param release runs after the commit, e.g., to give the batch back to its reader
+   */
+  public void route(List<Record> records, Schema schema, Runnable commit, Runnable release) {
+    Part part = new Part(records.size(), commit, release);
+    if (records.isEmpty()) {
+      part.inserted(0);
+      return;
+    }
+    // the records of a file are mostly of one device
+    Map<String, List<Record>> devices = new LinkedHashMap<>();
+    String tag = records.get(0).tag;
+    int start = 0;
+    for (int i = 1; i <= records.size(); i++) {
+      if (i < records.size() && Objects.equals(records.get(i).tag, tag)) {
+        continue;
+      }
+      if (start == 0 && i == records.size()) {
+        devices.put(tag, records);
+      } else {
+        devices.computeIfAbsent(tag, t -> new ArrayList<>()).addAll(records.subList(start, i));
+      }
+      if (i < records.size()) {
+        tag = records.get(i).tag;
+        start = i;
+      }
+    }
+
+    for (Map.Entry<String, List<Record>> device : devices.entrySet()) {
+      int owner = owner(device.getKey());
+      queuedNums.addAndGet(owner, device.getValue().size());
+      queues.get(owner).offer(new Fragment(device.getKey(), schema, device.getValue(), part));
+    }
+  }
+
+  /**
+   * @return the next records routed to the writer, or null if there is none
+   */
+  public Fragment poll(int writer) {
+    Fragment fragment = queues.get(writer).poll();
+    if (fragment != null) {
+      queuedNums.addAndGet(writer, -fragment.records.size());
+    }
+    return fragment;
+  }
+
+  /**
+   * @return false if a queue of a running writer is full, then no more records are read
+   */
+  public boolean hasRoom(int batchSize) {
+    long limit = (long) Math.max(config.ROUTING_QUEUE_BATCHES, 1) * batchSize;
+    for (int i = 0; i < queues.size(); i++) {
+      if (exited.get(i) == 0 && queuedNums.get(i) > limit) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * a writer has no more files to read
+   */
+  public void readerDone() {
+    readingNum.decrementAndGet();
+  }
+
+  /**
+   * @return true once the writers read all their files and no record of the writer is left in
+   * its queue, then it has received all its records
+   */
+  public boolean isDrained(int writer) {
+    // read before the queue, all the records are queued once the last reader is done
+    return readingNum.get() == 0 && queues.get(writer).isEmpty();
+  }
+
+  /**
+   * the writer takes no more records, the ones routed to it are dropped
+   */
+  public void exit(int writer) {
+    exited.set(writer, 1);
+    queues.get(writer).clear();
+    queuedNums.set(writer, 0);
+  }
+
+  private int owner(String tag) {
+    int hash = Objects.hashCode(tag);
+    return Math.floorMod(hash ^ (hash >>> 16), queues.size());
+  }
+
+  /**
+   * the records of one device in a batch read by a writer
+   */
+  public static class Fragment {
+
+    final String tag;
+    final Schema schema;
+    final List<Record> records;
+    final Part part;
+    // the records already put in a batch by the owner
+    int offset = 0;
+
+    private Fragment(String tag, Schema schema, List<Record> records, Part part) {
+      this.tag = tag;
+      this.schema = schema;
+      this.records = records;
+      this.part = part;
+    }
+  }
+
+  /**
+   * a batch read by a writer, which is committed once the owners inserted all its records
+   */
+  static class Part {
+
+    private final AtomicInteger remaining;
+    private final Runnable commit;
+    private final Runnable release;
+
+    private Part(int recordNum, Runnable commit, Runnable release) {
+      this.remaining = new AtomicInteger(recordNum);
+      this.commit = commit;
+      this.release = release;
+    }
+
+    /**
+     * @param recordNum records of the batch inserted by an owner
+     */
+    void inserted(int recordNum) {
+      if (remaining.addAndGet(-recordNum) == 0) {
+        commit.run();
+        release.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package cn.edu.thu.writer;
+
+import cn.edu.thu.common.Config;
+import cn.edu.thu.common.Statistics;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The progress of a load when PROGRESS_FILE is set: for each file, the records inserted from its
+ * start, without gaps, and whether all of them are. A background thread writes it every
+ * CHECKPOINT_INTERVAL_SECONDS, with the statistics so far, to PROGRESS_FILE, replacing the file
+ * atomically so that a killed run leaves the last complete checkpoint. A run with "--resume"
+ * skips the files done, skips the loaded records of the others and adds the statistics to its
+ * own. Progress is counted in records, not bytes, because compressed and buffered inputs have no
+ * position to seek to; skipping a plain csv file does not parse the lines. Batches inserted out
+ * of order after a failed or pending one are loaded again on resume.
+ */
+public class LoadProgress {
+
+  private static Logger logger = LoggerFactory.getLogger(LoadProgress.class);
+
+  private static final int VERSION = 1;
+  // the key of the synthetic data of a writer, which has no file
+  private static final String SYNTHETIC = "SYNTHETIC-";
+
+  private final Config config;
+  private final Statistics statistics;
+  private final Map<String, FileProgress> files = new ConcurrentHashMap<>();
+  // an insert is counted in the progress and in the statistics under the read lock and a
+  // checkpoint is taken under the write lock, so that both agree
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private final AtomicInteger syntheticNum = new AtomicInteger(0);
+  private Thread checkpointer;
+
+  public LoadProgress(Config config, Statistics statistics) {
+    this.config = config;
+    this.statistics = statistics;
+  }
+
+  /**
+   * load the progress and the statistics of the previous run from PROGRESS_FILE
+   *
+   * @return false if there is no progress file, then everything is loaded
+   */
+  public boolean resume() throws IOException {
+    File file = new File(config.PROGRESS_FILE);
+    if (!file.exists()) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("unknown version " + version + " of " + file);
+      }
+      int fileNum = in.readInt();
+      for (int i = 0; i < fileNum; i++) {
+        String key = in.readUTF();
+        long loadedNum = in.readLong();
+        files.put(key, new FileProgress(loadedNum, in.readBoolean()));
+      }
+      statistics.mergeTotalsFrom(in);
+    }
+    statistics.resumedPointNum.set(statistics.pointNum.get() + statistics.warmUpPointNum.get());
+
+    long doneNum = files.values().stream().filter(FileProgress::isDone).count();
+    logger.info("Exp:{} resume from {}: {} of {} files done, {} points loaded before",
+        config.EXP_NAME, file, doneNum, files.size(), statistics.resumedPointNum);
+    return true;
+  }
+
+  /**
+   * @return the key of the synthetic data of a new writer, each writer generates all devices, the
+   * writers are created in the same order on resume
+   */
+  public String newSyntheticKey() {
+    return SYNTHETIC + syntheticNum.getAndIncrement();
+  }
+
+  /**
+   * @return true if a previous run loaded all the records of the file
+   */
+  public boolean isDone(String file) {
+    FileProgress fileProgress = files.get(file);
+    return fileProgress != null && fileProgress.isDone();
+  }
+
+  /**
+   * @return the progress of the file, the one of a previous run if it is resumed
+   */
+  public FileProgress open(String file) {
+    return files.computeIfAbsent(file, f -> new FileProgress(0, false));
+  }
+
+  /**
+   * @return the lock to hold while an insert is counted in the progress and the statistics
+   */
+  public Lock countLock() {
+    return lock.readLock();
+  }
+
+  /**
+   * start checkpointing every CHECKPOINT_INTERVAL_SECONDS, only at stop() if it is not positive
+   */
+  public void start() {
+    if (config.CHECKPOINT_INTERVAL_SECONDS <= 0) {
+      return;
+    }
+    long interval = Math.max((long) (config.CHECKPOINT_INTERVAL_SECONDS * 1000), 1);
+    checkpointer = new Thread(() -> {
+      try {
+        while (!stopped.await(interval, TimeUnit.MILLISECONDS)) {
+          checkpoint();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "checkpoint");
+    checkpointer.setDaemon(true);
+    checkpointer.start();
+  }
+
+  /**
+   * stop checkpointing and write the final progress
+   */
+  public void stop() throws InterruptedException {
+    stopped.countDown();
+    if (checkpointer != null) {
+      checkpointer.join();
+    }
+    checkpoint();
+    logger.info("progress saved to {}", config.PROGRESS_FILE);
+  }
+
+  /**
+   * write the progress and the statistics to a temporary file, which then replaces PROGRESS_FILE
+   */
+  private void checkpoint() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        lock.writeLock().lock();
+        try {
+          List<Map.Entry<String, FileProgress>> entries = new ArrayList<>(files.entrySet());
+          out.writeInt(VERSION);
+          out.writeInt(entries.size());
+          for (Map.Entry<String, FileProgress> entry : entries) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().getLoadedNum());
+            out.writeBoolean(entry.getValue().isDone());
+          }
+          statistics.writeTotalsTo(out);
+        } finally {
+          lock.writeLock().unlock();
+        }
+      }
+
+      // the file is written outside the lock, the inserts only wait for the copy
+      Path path = Paths.get(config.PROGRESS_FILE);
+      Path tmp = Paths.get(config.PROGRESS_FILE + ".tmp");
+      Files.write(tmp, bytes.toByteArray());
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      logger.warn("checkpoint to {} failed", config.PROGRESS_FILE, e);
+    }
+  }
+
+  /**
+   * The progress of one file. Its records are numbered in the order they are read; the batches of
+   * a file are inserted in order, except those in flight with ASYNC_INSERT_WINDOW, so the inserted
+   * ones beyond the first gap are kept as ranges until the gap is filled.
+   */
+  public static class FileProgress {
+
+    // the records inserted from the start of the file
+    private long loadedNum;
+    private boolean done;
+    // the records read, including the skipped ones
+    private long readNum = 0;
+    private boolean readAll = false;
+    // [start, end) of the batches inserted beyond loadedNum
+    private final TreeMap<Long, Long> insertedRanges = new TreeMap<>();
+
+    private FileProgress(long loadedNum, boolean done) {
+      this.loadedNum = loadedNum;
+      this.done = done;
+    }
+
+    public synchronized long getLoadedNum() {
+      return loadedNum;
+    }
+
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    /**
+     * @param skippedNum the records the reader skipped, fewer than getLoadedNum() if the file
+     * became shorter
+     */
+    public synchronized void skipped(long skippedNum) {
+      readNum = skippedNum;
+      loadedNum = Math.min(loadedNum, skippedNum);
+    }
+
+    /**
+     * @return marks the batch of the next recordNum records as inserted, run once it is
+     */
+    public synchronized Runnable read(int recordNum) {
+      long start = readNum;
+      readNum += recordNum;
+      long end = readNum;
+      return () -> inserted(start, end);
+    }
+
+    /**
+     * the reader reached the end of the file, it is done once all batches are inserted
+     */
+    public synchronized void readAll() {
+      readAll = true;
+      done = loadedNum == readNum;
+    }
+
+    private synchronized void inserted(long start, long end) {
+      if (start == end) {
+        return;
+      }
+      insertedRanges.put(start, end);
+      Map.Entry<Long, Long> first;
+      while ((first = insertedRanges.firstEntry()) != null && first.getKey() == loadedNum) {
+        loadedNum = first.getValue();
+        insertedRanges.pollFirstEntry();
+      }
+      done = readAll && loadedNum == readNum;
+    }
+  }
+}
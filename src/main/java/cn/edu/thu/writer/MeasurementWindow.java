@@ -0,0 +1,60 @@
+package cn.edu.thu.writer;
+
+import cn.edu.thu.common.Config;
+
+/**
+ * The phases of one writer. Its first WARMUP_BATCHES batches, and the batches sent in the first
+ * WARMUP_SECONDS, warm up the JIT, the connection and the schemas of the database, and are
+ * reported apart from the steady state that follows. The steady state lasts MEASURE_SECONDS if it
+ * is > 0, otherwise until the data ends.
+ */
+public class MeasurementWindow {
+
+  private final Config config;
+  private int batchNum = 0;
+  private long firstBatchTime = -1; // unit: ns
+  private long steadyStartTime = -1; // unit: ns
+
+  public MeasurementWindow(Config config) {
+    this.config = config;
+  }
+
+  public static boolean hasWarmUp(Config config) {
+    return config.WARMUP_BATCHES > 0 || config.WARMUP_SECONDS > 0;
+  }
+
+  /**
+   * called once per batch, when it is sent
+   *
+   * @return true if the batch belongs to the warm-up
+   */
+  public boolean isWarmUp(long sendTime) {
+    if (steadyStartTime >= 0) {
+      return false;
+    }
+    if (firstBatchTime < 0) {
+      firstBatchTime = sendTime;
+    }
+    if (batchNum++ < config.WARMUP_BATCHES
+        || sendTime - firstBatchTime < config.WARMUP_SECONDS * 1000_000_000L) {
+      return true;
+    }
+    steadyStartTime = sendTime;
+    return false;
+  }
+
+  /**
+   * @return true once the steady state lasted MEASURE_SECONDS, the writer sends no more batches
+   */
+  public boolean isOver() {
+    return config.MEASURE_SECONDS > 0 && steadyStartTime >= 0
+        && System.nanoTime() - steadyStartTime >= config.MEASURE_SECONDS * 1000_000_000L;
+  }
+
+  /**
+   * @return the send time of the first steady-state batch, -1 if there is none yet
+   */
+  public long getSteadyStartTime() {
+    return steadyStartTime;
+  }
+}
@@ -0,0 +1,115 @@
+package cn.edu.thu.writer;
+
+import cn.edu.thu.common.Config;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The times the batches of one writer are due in open-loop mode (TARGET_RATE > 0). A batch is due
+ * once the points before it were sent at the rate of the profile, whether or not the database
+ * kept up, so a latency measured from the due time includes the queueing that a closed loop hides
+ * by sending less (coordinated omission).
+ * <p>
+ * Each writer sends TARGET_RATE / THREAD_NUM points/s, plus RATE_STEP / THREAD_NUM after every
+ * RATE_STEP_SECONDS with the STEP profile, or increasingly so with the RAMP profile. Steps count
+ * from the first batch of the writer.
+ */
+public class RateSchedule {
+
+  private final Config config;
+  // 0 with the CONSTANT profile, which has one step
+  private final long stepLength; // unit: ns
+  private long startTime = -1; // unit: ns
+  private long nextDueTime; // unit: ns
+
+  public RateSchedule(Config config) {
+    switch (config.RATE_PROFILE) {
+      case "CONSTANT":
+      case "STEP":
+      case "RAMP":
+        break;
+      default:
+        throw new RuntimeException(config.RATE_PROFILE + " not supported");
+    }
+    this.config = config;
+    if ("CONSTANT".equals(config.RATE_PROFILE)) {
+      this.stepLength = 0;
+    } else {
+      this.stepLength = (long) (config.RATE_STEP_SECONDS * 1000_000_000L);
+      if (stepLength <= 0) {
+        throw new RuntimeException("RATE_STEP_SECONDS=" + config.RATE_STEP_SECONDS
+            + " must be positive with the " + config.RATE_PROFILE + " profile");
+      }
+    }
+  }
+
+  /**
+   * wait until the next batch is due, a late batch is sent at once
+   *
+   * @param pointNum the points of the batch, which delay the next one
+   * @return the due time of the batch, from System.nanoTime()
+   */
+  public long awaitNextBatch(long pointNum) throws InterruptedException {
+    long now = System.nanoTime();
+    if (startTime < 0) {
+      startTime = now;
+      nextDueTime = now;
+    }
+    long dueTime = nextDueTime;
+    double rate = getTotalRate(getStep(dueTime), dueTime - startTime) / config.THREAD_NUM;
+    nextDueTime += (long) (pointNum * 1000_000_000.0 / rate);
+
+    while ((now = System.nanoTime()) < dueTime) {
+      LockSupport.parkNanos(dueTime - now);
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedException();
+      }
+    }
+    return dueTime;
+  }
+
+  /**
+   * @param time from System.nanoTime(), not before the first batch
+   */
+  public int getStep(long time) {
+    if (stepLength == 0) {
+      return 0;
+    }
+    return (int) ((time - startTime) / stepLength);
+  }
+
+  /**
+   * @param time from System.nanoTime(), not before the first batch
+   * @return the time spent in the step up to the time, the whole run so far with the CONSTANT
+   * profile, unit: ns
+   */
+  public long getTimeInStep(int step, long time) {
+    long elapsedTime = time - startTime;
+    if (stepLength == 0) {
+      return elapsedTime;
+    }
+    return Math.min(Math.max(elapsedTime - step * stepLength, 0), stepLength);
+  }
+
+  /**
+   * @return the points/s of all writers at the start of the step
+   */
+  public double getTotalRate(int step) {
+    return getTotalRate(step, step * stepLength);
+  }
+
+  private double getTotalRate(int step, long elapsedTime) {
+    double rate;
+    switch (config.RATE_PROFILE) {
+      case "STEP":
+        rate = config.TARGET_RATE + config.RATE_STEP * step;
+        break;
+      case "RAMP":
+        rate = config.TARGET_RATE + config.RATE_STEP * elapsedTime / stepLength;
+        break;
+      default:
+        rate = config.TARGET_RATE;
+    }
+    // a descending profile keeps sending, slowly
+    return Math.max(rate, config.THREAD_NUM);
+  }
+}
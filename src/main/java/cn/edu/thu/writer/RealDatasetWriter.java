@@ -1,103 +1,737 @@
 package cn.edu.thu.writer;
 
-import backup.MLabUtilizationReader;
 import cn.edu.thu.common.Config;
+import cn.edu.thu.common.OffHeapBudget;
+import cn.edu.thu.common.FileQueue;
+import cn.edu.thu.common.IndexedSchema;
 import cn.edu.thu.common.Record;
+import cn.edu.thu.common.RecordBatch;
+import cn.edu.thu.common.Schema;
 import cn.edu.thu.common.Statistics;
+import cn.edu.thu.common.Statistics.RateStep;
+import cn.edu.thu.common.Statistics.WriterTime;
+import cn.edu.thu.common.VirtualThreads;
 import cn.edu.thu.database.DatabaseFactory;
 import cn.edu.thu.database.IDataBaseManager;
 import cn.edu.thu.reader.BasicReader;
-import cn.edu.thu.reader.CSVReader;
-import cn.edu.thu.reader.GeolifeReader;
-import cn.edu.thu.reader.NOAAReader;
-import cn.edu.thu.reader.ReddReader;
-import cn.edu.thu.reader.SyntheticReader;
-import cn.edu.thu.reader.TDriveReader;
+import cn.edu.thu.reader.ReaderCache;
+import cn.edu.thu.reader.ReaderFactory;
+import cn.edu.thu.writer.LoadProgress.FileProgress;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class RealDatasetWriter implements Runnable {
 
   private static Logger logger = LoggerFactory.getLogger(RealDatasetWriter.class);
+  // the commit of batches without progress, the release of batches of no reader
+  private static final Runnable NO_OP = () -> {
+  };
+  // the time a writer of DEVICE_AFFINITY waits when it has nothing to read or insert
+  private static final long ROUTING_IDLE_TIME = 100_000; // unit: ns
   private IDataBaseManager database;
   private Config config;
-  private BasicReader reader;
+  // shared with the other writers, each reader reads one file taken from it
+  private final FileQueue fileQueue;
+  private final double stdDev;
+  private final IndexedSchema overallSchema;
   private final Statistics statistics;
+  // shared with the other writers, null if the connections are not limited
+  private final Semaphore connections;
+  private boolean syntheticStarted = false;
+  private final AtomicLong fileNum = new AtomicLong(0);
+  // also counted by the completions of asynchronous inserts
+  private final AtomicLong recordNum = new AtomicLong(0);
+  // permits of the batches this writer may have in flight, null if inserts are synchronous
+  private final Semaphore inFlight;
+  // the first failure of an asynchronous insert, which ends the writer like a synchronous one
+  private final AtomicReference<Throwable> asyncFailure = new AtomicReference<>();
+  // when batches are due in open-loop mode, null if batches are sent as fast as possible
+  private final RateSchedule schedule;
+  private final MeasurementWindow window;
+  // set once the measurement window is over, to stop the parsers of the pipelined mode
+  private volatile boolean stopped = false;
+  // tunes the batch size of the readers, null if ADAPTIVE_BATCH_SIZE is false
+  private volatile BatchSizeController batchSizeController;
+  // shared with the other writers, null if PROGRESS_FILE is not set
+  private final LoadProgress progress;
+  // the progress of the files being read, by reader, also used by the parsers
+  private final Map<BasicReader, FileProgress> readerProgress = new ConcurrentHashMap<>();
+  // the key of the synthetic data of this writer in the progress
+  private final String syntheticKey;
+  // shared with the other writers, null if DEVICE_AFFINITY is false
+  private final DeviceRouter router;
+  // the index of this writer in the load, the same on resume
+  private final int writerIndex;
+  // the index of this writer in the router
+  private final int routerIndex;
+  // the direct memory of the batches of all readers of this writer
+  private final OffHeapBudget offHeapBudget;
 
-  public RealDatasetWriter(Config config, List<String> files, final Statistics statistics,
-      double stdDev)
+  /**
+   * @param shared what this writer shares with the other writers of the load
+   */
+  public RealDatasetWriter(Config config, Statistics statistics, double stdDev, Shared shared)
       throws IOException {
-    this.database = DatabaseFactory.getDbManager(config);
-    database.initClient();
     this.config = config;
+    this.fileQueue = shared.fileQueue;
     this.statistics = statistics;
+    this.stdDev = stdDev;
+    this.overallSchema = shared.overallSchema;
+    this.connections = shared.connections;
+    this.progress = shared.progress;
+    this.syntheticKey = progress != null && config.useSynthetic
+        ? progress.newSyntheticKey() : null;
+    this.writerIndex = shared.writerNum.getAndIncrement();
+    this.router = shared.router;
+    this.routerIndex = router == null ? -1 : router.register();
+    this.inFlight = config.ASYNC_INSERT_WINDOW > 0
+        ? new Semaphore(config.ASYNC_INSERT_WINDOW) : null;
+    this.schedule = config.TARGET_RATE > 0 ? new RateSchedule(config) : null;
+    this.window = new MeasurementWindow(config);
+    this.offHeapBudget = new OffHeapBudget(config);
+    if (connections == null) {
+      openClient();
+    }
 
-    logger.info("thread construct!, need to read {} files", files.size());
+    logger.info("thread construct!, {} files in the queue", fileQueue.size());
     logger.info("stdDev=" + stdDev);
+  }
+
+  /**
+   * @param cache the cache of the readers of the calling thread, which the new reader reuses
+   * @return a reader of the next file in the queue, or null if no file is left
+   */
+  private BasicReader nextReader(ReaderCache cache) throws IOException {
+    if (config.useSynthetic) {
+      if (syntheticStarted || progress != null && progress.isDone(syntheticKey)) {
+        return null;
+      }
+      syntheticStarted = true;
+      BasicReader reader = ReaderFactory.getReader(config, Collections.emptyList(), stdDev,
+          overallSchema, cache);
+      // each writer generates the same data, it is disordered differently
+      reader.setDisorderStream(writerIndex);
+      return resume(reader, syntheticKey);
+    }
+    String file = fileQueue.poll();
+    if (file == null) {
+      return null;
+    }
+    fileNum.incrementAndGet();
+    return resume(ReaderFactory.getReader(config, Collections.singletonList(file), stdDev,
+        overallSchema, cache), file);
+  }
 
-    switch (config.DATA_SET) {
-      case "NOAA":
-        reader = new NOAAReader(config, files);
-        break;
-      case "GEOLIFE":
-        reader = new GeolifeReader(config, files);
-        break;
-      case "TDRIVE":
-        reader = new TDriveReader(config, files);
-        break;
-      case "MLAB_UTILIZATION":
-        reader = new MLabUtilizationReader(config, files);
-        break;
-      case "REDD":
-        reader = new ReddReader(config, files);
-        break;
-      case "SYNTHETIC":
-        reader = new SyntheticReader(config);
-        break;
-      case "CSV":
-        reader = new CSVReader(config, files, stdDev);
-        break;
-      default:
-        throw new RuntimeException(config.DATA_SET + " not supported");
+  /**
+   * skip the records of the file that a previous run loaded and track the progress of the reader
+   */
+  private BasicReader resume(BasicReader reader, String file) {
+    if (progress == null) {
+      return reader;
     }
+    FileProgress fileProgress = progress.open(file);
+    long skippedNum = 0;
+    if (fileProgress.getLoadedNum() > 0) {
+      skippedNum = reader.skip(fileProgress.getLoadedNum());
+      logger.info("resume {} after {} records", file, skippedNum);
+    }
+    fileProgress.skipped(skippedNum);
+    readerProgress.put(reader, fileProgress);
+    return reader;
+  }
+
+  /**
+   * @return the commit of a batch of the reader, which marks its records as inserted in the
+   * progress
+   */
+  private Runnable readBatch(BasicReader reader, int recordNum) {
+    FileProgress fileProgress = readerProgress.get(reader);
+    return fileProgress == null ? NO_OP : fileProgress.read(recordNum);
+  }
 
+  /**
+   * @param readAll whether the reader reached the end of its file, otherwise it was stopped
+   */
+  private void finishFile(BasicReader reader, boolean readAll) {
+    FileProgress fileProgress = readerProgress.remove(reader);
+    if (fileProgress != null && readAll) {
+      fileProgress.readAll();
+    }
+  }
+
+  private void openClient() {
+    database = DatabaseFactory.getDbManager(config);
+    database.initClient();
   }
 
   @Override
   public void run() {
-
+    if (connections != null) {
+      // the client is only opened once a connection is available and kept until this writer is
+      // done, so at most SINK_CONNECTION_LIMIT writers run at once
+      try {
+        connections.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    if (config.ADAPTIVE_BATCH_SIZE) {
+      batchSizeController = new BatchSizeController(config, Thread.currentThread().getName());
+    }
+    long startTime = System.nanoTime();
     try {
+      if (database == null) {
+        openClient();
+      }
 
-      while (reader.hasNext()) {
-        List<Record> batch = reader.next();
-        long elapsedTime = database.insertBatch(batch, reader.getCurrentSchema());
-        statistics.batchInsertNum.addAndGet(1);
-        statistics.addLatency(elapsedTime);
-        statistics.timeCost.addAndGet(elapsedTime);
-        statistics.recordNum.addAndGet(batch.size());
-        statistics.pointNum.addAndGet(batch.size() * reader.getCurrentSchema().getFields().length);
-        logger.info("batch size: " + batch.size());
-        logger.info(
-            "Exp:{} ING. Current records:{}, points:{}, time:{} ms, speed:{} pts/s, "
-                + "average latency using all:{} ms, "
-                + "average latency circular:{} ms, "
-                + "latency circular list(length:{},unit:ns): SKIP",
-            config.EXP_NAME, statistics.recordNum, statistics.pointNum,
-            (float) statistics.timeCost.get() / 1000_000F, statistics.speed(),
-            statistics.getAverageAllLatencyInMillisecond(),
-            statistics.getAverageCircularLatencyInMillisecond(),
-            statistics.writeLatency.size()
-        );
+      if (router != null) {
+        runRouted();
+      } else if (config.PIPELINE_QUEUE_DEPTH > 0) {
+        runPipelined();
+      } else {
+        ReaderCache cache = new ReaderCache(config, offHeapBudget);
+        BasicReader reader;
+        while ((reader = nextReader(cache)) != null) {
+          while (!window.isOver() && hasNext(reader)) {
+            // consumed batches go back to the reader, which overwrites them later
+            if (config.COLUMNAR_BATCH) {
+              RecordBatch batch = reader.nextBatch();
+              insertBatch(batch, batch.getSchema(), reader, readBatch(reader, batch.size()));
+            } else {
+              List<Record> batch = reader.next();
+              if (inFlight != null && reader.isBatchReused()) {
+                batch = copyBatch(batch);
+              }
+              insertBatch(batch, reader.getCurrentSchema(), reader,
+                  readBatch(reader, batch.size()));
+            }
+          }
+          finishFile(reader, !window.isOver());
+          if (window.isOver()) {
+            reader.close();
+            break;
+          }
+        }
       }
+      awaitInFlight();
 
       statistics.timeCost.addAndGet(database.flush());
       statistics.timeCost.addAndGet(database.close());
     } catch (Exception e) {
       logger.warn("Exception during write", e);
+    } finally {
+      if (router != null) {
+        router.exit(routerIndex);
+      }
+      long endTime = System.nanoTime();
+      long steadyStartTime = startTime;
+      if (MeasurementWindow.hasWarmUp(config)) {
+        steadyStartTime = window.getSteadyStartTime() >= 0 ? window.getSteadyStartTime() : endTime;
+      }
+      statistics.writerTimes.add(new WriterTime(Thread.currentThread().getName(), startTime,
+          steadyStartTime, endTime, fileNum.get(), recordNum.get()));
+      if (batchSizeController != null) {
+        logger.info("Exp:{} {} final batch size {} for {} ({})", config.EXP_NAME,
+            Thread.currentThread().getName(), batchSizeController.getBatchSize(),
+            config.DATABASE, batchSizeController.isConverged() ? "converged" : "not converged");
+      }
+      if (connections != null) {
+        connections.release();
+      }
+    }
+
+  }
+
+  /**
+   * the next batch of the reader is cut at the batch size of the controller, if any
+   */
+  private boolean hasNext(BasicReader reader) {
+    if (batchSizeController != null) {
+      reader.setBatchSize(batchSizeController.getBatchSize());
+    }
+    return reader.hasNext();
+  }
+
+  /**
+   * insert the batch and release it to the reader once it is written, asynchronously if
+   * ASYNC_INSERT_WINDOW > 0
+   *
+   * @param commit marks the batch as inserted in the progress once it is, see readBatch()
+   */
+  private void insertBatch(List<Record> batch, Schema schema, BasicReader reader,
+      Runnable commit) throws InterruptedException {
+    insertBatch(batch, schema, commit, () -> reader.release(batch));
+  }
+
+  /**
+   * @param release runs once the batch is written
+   */
+  private void insertBatch(List<Record> batch, Schema schema, Runnable commit, Runnable release)
+      throws InterruptedException {
+    long dueTime = awaitDueTime(batch.size(), schema);
+    boolean warmUp = window.isWarmUp(System.nanoTime());
+    if (inFlight == null) {
+      long elapsedTime = database.insertBatch(batch, schema);
+      recordInsert(elapsedTime, dueTime, warmUp, batch.size(), schema, commit);
+      release.run();
+      return;
+    }
+    acquireInFlight();
+    onCompletion(database.insertBatchAsync(batch, schema), dueTime, warmUp, batch.size(),
+        schema, commit, release);
+  }
+
+  private void insertBatch(RecordBatch batch, Schema schema, BasicReader reader,
+      Runnable commit) throws InterruptedException {
+    long dueTime = awaitDueTime(batch.size(), schema);
+    boolean warmUp = window.isWarmUp(System.nanoTime());
+    if (inFlight == null) {
+      long elapsedTime = database.insertColumnarBatch(batch, schema);
+      recordInsert(elapsedTime, dueTime, warmUp, batch.size(), schema, commit);
+      reader.release(batch);
+      return;
+    }
+    acquireInFlight();
+    onCompletion(database.insertColumnarBatchAsync(batch, schema), dueTime, warmUp,
+        batch.size(), schema, commit, () -> reader.release(batch));
+  }
+
+  /**
+   * in open-loop mode, wait until the batch is due
+   *
+   * @return the due time of the batch, 0 in closed-loop mode
+   */
+  private long awaitDueTime(int batchSize, Schema schema) throws InterruptedException {
+    if (schedule == null) {
+      return 0;
+    }
+    return schedule.awaitNextBatch((long) batchSize * schema.getFields().length);
+  }
+
+  /**
+   * record the completion latency of an asynchronous insert and free its place in the window
+   */
+  private void onCompletion(CompletableFuture<Long> future, long dueTime, boolean warmUp,
+      int batchSize, Schema schema, Runnable commit, Runnable release) {
+    future.whenComplete((elapsedTime, e) -> {
+      try {
+        if (e != null) {
+          asyncFailure.compareAndSet(null, e);
+        } else {
+          recordInsert(elapsedTime, dueTime, warmUp, batchSize, schema, commit);
+        }
+        release.run();
+      } finally {
+        inFlight.release();
+      }
+    });
+  }
+
+  /**
+   * wait until all asynchronous inserts of this writer completed
+   */
+  private void awaitInFlight() throws InterruptedException {
+    if (inFlight != null) {
+      inFlight.acquire(config.ASYNC_INSERT_WINDOW);
+      inFlight.release(config.ASYNC_INSERT_WINDOW);
+      checkAsyncFailure();
+    }
+  }
+
+  /**
+   * take a place in the window of asynchronous inserts
+   *
+   * @throws RuntimeException if an asynchronous insert failed, then no more batch is sent
+   */
+  private void acquireInFlight() throws InterruptedException {
+    inFlight.acquire();
+    if (asyncFailure.get() != null) {
+      inFlight.release();
+      checkAsyncFailure();
+    }
+  }
+
+  private void checkAsyncFailure() {
+    Throwable failure = asyncFailure.get();
+    if (failure != null) {
+      throw new RuntimeException("asynchronous insert failed", failure);
+    }
+  }
+
+  /**
+   * @param elapsedTime the time the database took, which timeCost sums
+   * @param dueTime in open-loop mode, the time the batch was due, which the latency is measured
+   * from, so a late send or a wait for the window counts
+   * @param warmUp whether the batch belongs to the warm-up, which is counted apart
+   * @param commit marks the batch as inserted in the progress, together with the statistics
+   */
+  private void recordInsert(long elapsedTime, long dueTime, boolean warmUp, int batchSize,
+      Schema schema, Runnable commit) {
+    if (progress == null) {
+      commit.run();
+      countInsert(elapsedTime, dueTime, warmUp, batchSize, schema);
+      return;
+    }
+    Lock lock = progress.countLock();
+    lock.lock();
+    try {
+      commit.run();
+      countInsert(elapsedTime, dueTime, warmUp, batchSize, schema);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void countInsert(long elapsedTime, long dueTime, boolean warmUp, int batchSize,
+      Schema schema) {
+    long pointNum = (long) batchSize * schema.getFields().length;
+    recordNum.addAndGet(batchSize);
+    if (batchSizeController != null) {
+      batchSizeController.onInsert(pointNum, elapsedTime);
+    }
+    if (warmUp) {
+      statistics.warmUpBatchNum.addAndGet(1);
+      statistics.warmUpTimeCost.addAndGet(elapsedTime);
+      statistics.warmUpRecordNum.addAndGet(batchSize);
+      statistics.warmUpPointNum.addAndGet(pointNum);
+      return;
     }
+    long latency = elapsedTime;
+    if (schedule != null) {
+      long now = System.nanoTime();
+      latency = now - dueTime;
+      int dueStep = schedule.getStep(dueTime);
+      statistics.getRateStep(dueStep, schedule.getTotalRate(dueStep)).latencies.add(latency);
+      int completedStep = schedule.getStep(now);
+      RateStep step = statistics.getRateStep(completedStep,
+          schedule.getTotalRate(completedStep));
+      step.completedPointNum.addAndGet(pointNum);
+      step.addLength(schedule.getTimeInStep(completedStep, now));
+    }
+    statistics.batchInsertNum.addAndGet(1);
+    statistics.addLatency(latency);
+    statistics.timeCost.addAndGet(elapsedTime);
+    statistics.recordNum.addAndGet(batchSize);
+    statistics.pointNum.addAndGet(pointNum);
+    logger.info("batch size: " + batchSize);
+    logger.info(
+        "Exp:{} ING. Current records:{}, points:{}, time:{} ms, speed:{} pts/s, "
+            + "average latency using all:{} ms, "
+            + "average latency circular:{} ms, "
+            + "latency circular list(length:{},unit:ns): SKIP",
+        config.EXP_NAME, statistics.recordNum, statistics.pointNum,
+        (float) statistics.timeCost.get() / 1000_000F, statistics.speed(),
+        statistics.getAverageAllLatencyInMillisecond(),
+        statistics.getAverageCircularLatencyInMillisecond(),
+        statistics.getLatencySampleNum()
+    );
+  }
+
+  /**
+   * Parser stages fill a bounded queue of ready batches and this thread drains it into the
+   * database, so parsing overlaps with the network round trips of inserts. A full queue blocks
+   * the parsers (reader stall), an empty queue blocks the inserts (writer stall).
+   */
+  private void runPipelined() throws InterruptedException {
+    BlockingQueue<ParsedBatch> queue = new ArrayBlockingQueue<>(config.PIPELINE_QUEUE_DEPTH);
+    // parser stages take whole files from the queue, so the records of a file stay in order
+    int parserNum = config.useSynthetic ? 1 : Math.max(1, config.PIPELINE_PARSER_NUM);
+    List<Thread> parsers = new ArrayList<>();
+    for (int i = 0; i < parserNum; i++) {
+      parsers.add(VirtualThreads.start(config.VIRTUAL_THREADS,
+          Thread.currentThread().getName() + "-parser-" + i, () -> parse(queue)));
+    }
+
+    int finishedParsers = 0;
+    try {
+      while (finishedParsers < parsers.size()) {
+        ParsedBatch parsedBatch = queue.poll();
+        if (parsedBatch == null) {
+          long start = System.nanoTime();
+          parsedBatch = queue.take();
+          statistics.writerStallTime.addAndGet(System.nanoTime() - start);
+        }
+
+        if (parsedBatch == ParsedBatch.END) {
+          finishedParsers++;
+        } else if (stopped || window.isOver()) {
+          // the parsers stop at their next batch, the ready ones are dropped
+          stopped = true;
+          parsedBatch.release();
+        } else if (parsedBatch.columns != null) {
+          insertBatch(parsedBatch.columns, parsedBatch.schema, parsedBatch.reader,
+              parsedBatch.commit);
+        } else {
+          insertBatch(parsedBatch.records, parsedBatch.schema, parsedBatch.reader,
+              parsedBatch.commit);
+        }
+      }
+    } finally {
+      stopParsers(queue, parsers, finishedParsers);
+    }
+  }
 
+  /**
+   * stop the parsers, e.g., after an insert failed, and drop their ready batches until each of
+   * them ended, so that none stays blocked on the full queue, then wait for them
+   */
+  private void stopParsers(BlockingQueue<ParsedBatch> queue, List<Thread> parsers,
+      int finishedParsers) {
+    stopped = true;
+    try {
+      while (finishedParsers < parsers.size()) {
+        ParsedBatch parsedBatch = queue.take();
+        if (parsedBatch == ParsedBatch.END) {
+          finishedParsers++;
+        } else {
+          parsedBatch.release();
+        }
+      }
+      for (Thread parser : parsers) {
+        parser.join();
+      }
+    } catch (InterruptedException e) {
+      // the parsers waiting on the queue exit once interrupted
+      for (Thread parser : parsers) {
+        parser.interrupt();
+      }
+      Thread.currentThread().interrupt();
+    }
   }
 
+  /**
+   * With DEVICE_AFFINITY, this writer reads its files like the others and routes each record to
+   * the writer owning its device, and between batches inserts the records routed to it, by
+   * device. It ends once all writers read their files and its queue is empty.
+   */
+  private void runRouted() throws InterruptedException, IOException {
+    DeviceBatches batches = new DeviceBatches();
+    DeviceBatches.Sink sink = (records, schema, commit) ->
+        insertBatch(records, schema, commit, NO_OP);
+    ReaderCache cache = new ReaderCache(config, offHeapBudget);
+    BasicReader reader = null;
+    // the other writers wait for the records of this one until it is done reading
+    boolean reading = true;
+    try {
+      reader = nextReader(cache);
+      while (!window.isOver()) {
+        int batchSize = getBatchSize();
+        boolean read = false;
+        if (reader != null && router.hasRoom(batchSize)) {
+          read = true;
+          if (hasNext(reader)) {
+            // the records wait in the queues of their writers, so they are not overwritten
+            List<Record> batch = reader.next();
+            if (reader.isBatchReused()) {
+              batch = copyBatch(batch);
+            }
+            BasicReader batchReader = reader;
+            List<Record> records = batch;
+            router.route(records, reader.getCurrentSchema(), readBatch(reader, records.size()),
+                () -> batchReader.release(records));
+          } else {
+            finishFile(reader, true);
+            reader = nextReader(cache);
+          }
+        }
+        if (reader == null && reading) {
+          reading = false;
+          router.readerDone();
+        }
+
+        boolean inserted = false;
+        DeviceRouter.Fragment fragment;
+        while ((fragment = router.poll(routerIndex)) != null) {
+          batches.add(fragment, batchSize, sink);
+          inserted = true;
+        }
+        if (batches.getRecordNum() > (long) Math.max(config.ROUTING_QUEUE_BATCHES, 1)
+            * batchSize) {
+          // too many devices with partial batches
+          batches.flush(batchSize, sink);
+        }
+        if (!read && !inserted) {
+          if (reader == null && router.isDrained(routerIndex)) {
+            break;
+          }
+          // the partial batches wait for the records the other writers are still reading
+          LockSupport.parkNanos(ROUTING_IDLE_TIME);
+        }
+      }
+      if (!window.isOver()) {
+        batches.flush(getBatchSize(), sink);
+      }
+    } finally {
+      if (reader != null) {
+        finishFile(reader, false);
+        reader.close();
+      }
+      if (reading) {
+        router.readerDone();
+      }
+    }
+  }
+
+  /**
+   * @return the batch size of the controller, if any
+   */
+  private int getBatchSize() {
+    return batchSizeController != null ? batchSizeController.getBatchSize() : config.BATCH_SIZE;
+  }
+
+  private void parse(BlockingQueue<ParsedBatch> queue) {
+    try {
+      // each parser has its own cache, the dictionary is not thread-safe
+      ReaderCache cache = new ReaderCache(config, offHeapBudget);
+      BasicReader reader;
+      while (!stopped && (reader = nextReader(cache)) != null) {
+        while (!stopped && hasNext(reader)) {
+          ParsedBatch parsedBatch;
+          if (config.COLUMNAR_BATCH) {
+            // a columnar batch is only reused after it is released
+            RecordBatch batch = reader.nextBatch();
+            parsedBatch = new ParsedBatch(batch, batch.getSchema(), reader,
+                readBatch(reader, batch.size()));
+          } else {
+            List<Record> batch = reader.next();
+            if (reader.isBatchReused()) {
+              batch = copyBatch(batch);
+            }
+            parsedBatch = new ParsedBatch(batch, reader.getCurrentSchema(), reader,
+                readBatch(reader, batch.size()));
+          }
+          if (!queue.offer(parsedBatch)) {
+            long start = System.nanoTime();
+            queue.put(parsedBatch);
+            statistics.readerStallTime.addAndGet(System.nanoTime() - start);
+          }
+        }
+        finishFile(reader, !stopped);
+        if (stopped) {
+          reader.close();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.warn("Exception during parse", e);
+    } finally {
+      try {
+        queue.put(ParsedBatch.END);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static List<Record> copyBatch(List<Record> batch) {
+    List<Record> copy = new ArrayList<>(batch.size());
+    for (Record record : batch) {
+      copy.add(new Record(record.timestamp, record.tag, new ArrayList<>(record.fields)));
+    }
+    return copy;
+  }
+
+  private static class ParsedBatch {
+
+    private static final ParsedBatch END = new ParsedBatch((List<Record>) null, null, null,
+        null);
+
+    // exactly one of records and columns is set
+    private final List<Record> records;
+    private final RecordBatch columns;
+    private final Schema schema;
+    // the batch is released to it once inserted
+    private final BasicReader reader;
+    private final Runnable commit;
+
+    private ParsedBatch(List<Record> records, Schema schema, BasicReader reader,
+        Runnable commit) {
+      this.records = records;
+      this.columns = null;
+      this.schema = schema;
+      this.reader = reader;
+      this.commit = commit;
+    }
+
+    private ParsedBatch(RecordBatch columns, Schema schema, BasicReader reader,
+        Runnable commit) {
+      this.records = null;
+      this.columns = columns;
+      this.schema = schema;
+      this.reader = reader;
+      this.commit = commit;
+    }
+
+    private void release() {
+      if (columns != null) {
+        reader.release(columns);
+      } else {
+        reader.release(records);
+      }
+    }
+  }
+
+  /**
+   * What the writers of a load share. Only the file queue is required, the others are null by
+   * default.
+   */
+  public static class Shared {
+
+    // each reader reads one file taken from it, so that an idle writer takes the next file
+    private final FileQueue fileQueue;
+    // the overall schema shared by all csv readers, null to let each reader collect it from its
+    // own files
+    private IndexedSchema overallSchema;
+    // one permit is held while the database client of a writer is open, null for no limit
+    private Semaphore connections;
+    // the inserted records are counted in it and the ones loaded by a resumed run are skipped,
+    // null for none
+    private LoadProgress progress;
+    // the records read are routed to the writer owning their device, null to insert the records
+    // read
+    private DeviceRouter router;
+    // counts the writers created
+    private final AtomicInteger writerNum = new AtomicInteger(0);
+
+    public Shared(FileQueue fileQueue) {
+      this.fileQueue = fileQueue;
+    }
+
+    public Shared(List<String> files) {
+      this(new FileQueue(files));
+    }
+
+    public void setOverallSchema(IndexedSchema overallSchema) {
+      this.overallSchema = overallSchema;
+    }
+
+    public void setConnections(Semaphore connections) {
+      this.connections = connections;
+    }
+
+    public void setProgress(LoadProgress progress) {
+      this.progress = progress;
+    }
+
+    public void setRouter(DeviceRouter router) {
+      this.router = router;
+    }
+  }
 }